@@ -0,0 +1,87 @@
+package com.thenewentity.utils.dropwizard;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.fasterxml.jackson.databind.JsonNode;
+
+/**
+ * Measures {@link MultipleConfigurationMerger#mergeConfigs} and {@link MultipleConfigurationMerger#loadConfigs} against
+ * synthetic layer sets read from disk.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MultipleConfigurationMergerBenchmark {
+
+    @Param
+    public SyntheticLayers.Shape shape;
+
+    public enum Engine {
+        /** Layers are parsed into trees one at a time. */
+        SEQUENTIAL,
+        /** Layers are read and parsed concurrently on {@link MultipleConfigurationMerger#newLayerExecutor()}. */
+        PARALLEL,
+        /** Layers are merged straight from the token stream; see {@link StreamingMerge}. */
+        STREAMING
+    }
+
+    @Param
+    public Engine engine;
+
+    private SyntheticLayers layers;
+    private List<String> paths;
+    private ExecutorService executor;
+    private MultipleConfigurationMerger merger;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        layers = SyntheticLayers.generate(shape);
+        paths = layers.getAllPaths();
+        executor = engine == Engine.PARALLEL ? MultipleConfigurationMerger.newLayerExecutor() : null;
+        //@formatter:off
+        merger = MultipleConfigurationMerger.builder()
+                .setExecutor(executor)
+                .setStreamingMerge(engine == Engine.STREAMING)
+                .build();
+        //@formatter:on
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+        layers.delete();
+    }
+
+    @Benchmark
+    public Map<Object, Object> mergeConfigs() {
+        return merger.mergeConfigs(paths);
+    }
+
+    @Benchmark
+    public JsonNode loadConfigs() {
+        return merger.loadConfigs(paths, JsonNode.class);
+    }
+}
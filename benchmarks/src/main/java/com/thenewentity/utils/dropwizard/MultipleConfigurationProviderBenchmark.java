@@ -0,0 +1,60 @@
+package com.thenewentity.utils.dropwizard;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures {@link MultipleConfigurationProvider#open(String)} the way DropWizard calls it: the base file as the path, and the
+ * overrides as a single glob over the conf.d directory.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MultipleConfigurationProviderBenchmark {
+
+    @Param
+    public SyntheticLayers.Shape shape;
+
+    private SyntheticLayers layers;
+    private MultipleConfigurationProvider provider;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        layers = SyntheticLayers.generate(shape);
+        // @formatter:off
+        provider = MultipleConfigurationProvider.builder()
+                .setOverrideFiles(Arrays.asList(layers.getOverrideGlob()))
+                .setMultipleConfigurationMerger(MultipleConfigurationMerger.builder().build())
+                .build();
+        // @formatter:on
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        layers.delete();
+    }
+
+    @Benchmark
+    public InputStream open() throws IOException {
+        return provider.open(layers.getBasePath());
+    }
+}
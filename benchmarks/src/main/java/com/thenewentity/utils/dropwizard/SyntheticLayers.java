@@ -0,0 +1,236 @@
+package com.thenewentity.utils.dropwizard;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.yaml.snakeyaml.DumperOptions;
+import org.yaml.snakeyaml.Yaml;
+
+/**
+ * Generates a layered set of synthetic .yaml files on disk: one base file and a {@code conf.d} directory of overrides whose
+ * names sort in merge order. The {@link Shape} decides what the layers look like.
+ */
+public class SyntheticLayers {
+
+    public enum Shape {
+        /** A handful of layers over a bushy tree nested seven levels deep; overrides touch one path down to the bottom. */
+        DEEP,
+        /** A handful of layers over maps with thousands of keys; overrides touch a scattered subset of keys. */
+        WIDE,
+        /** A handful of layers over lists of a thousand map entries; overrides merge positionally. */
+        LONG_LISTS,
+        /** A few huge layers next to many tiny override files, as produced by a globbed conf.d directory. */
+        MIXED
+    }
+
+    private final Path root;
+    private final String basePath;
+    private final List<String> overridePaths;
+
+    private SyntheticLayers(Path root, String basePath, List<String> overridePaths) {
+        this.root = root;
+        this.basePath = basePath;
+        this.overridePaths = Collections.unmodifiableList(overridePaths);
+    }
+
+    /**
+     * The base configuration, as DropWizard would pass it to {@link MultipleConfigurationProvider#open(String)}.
+     */
+    public String getBasePath() {
+        return basePath;
+    }
+
+    /**
+     * The override files, in merge order.
+     */
+    public List<String> getOverridePaths() {
+        return overridePaths;
+    }
+
+    /**
+     * The base configuration followed by every override, in merge order.
+     */
+    public List<String> getAllPaths() {
+        List<String> result = new ArrayList<>();
+        result.add(basePath);
+        result.addAll(overridePaths);
+        return result;
+    }
+
+    /**
+     * A glob pattern matching every override file.
+     */
+    public String getOverrideGlob() {
+        return root.resolve("conf.d").toAbsolutePath().toString() + File.separator + "*.yaml";
+    }
+
+    /**
+     * Write a layer set of the given {@code shape} into a fresh temporary directory.
+     */
+    public static SyntheticLayers generate(Shape shape) throws IOException {
+        Path root = Files.createTempDirectory("multi-config-bench-");
+        Path confD = Files.createDirectories(root.resolve("conf.d"));
+        Writer writer = new Writer(confD);
+        Path base = root.resolve("service.yaml");
+
+        switch (shape) {
+        case DEEP:
+            write(base, deepTree(7, 3, 0));
+            for (int i = 0; i < 8; ++i) {
+                writer.write(deepTree(7, 1, i + 1));
+            }
+            break;
+        case WIDE:
+            write(base, wideTree(20, 500, 0, 1));
+            for (int i = 0; i < 8; ++i) {
+                writer.write(wideTree(20, 500, i + 1, 37));
+            }
+            break;
+        case LONG_LISTS:
+            write(base, listTree(4, 1000, 0));
+            for (int i = 0; i < 8; ++i) {
+                writer.write(listTree(4, 1000, i + 1));
+            }
+            break;
+        case MIXED:
+            write(base, wideTree(40, 500, 0, 1));
+            writer.write(listTree(4, 1000, 1));
+            for (int i = 0; i < 60; ++i) {
+                writer.write(smallOverride(i));
+            }
+            writer.write(wideTree(40, 500, 2, 1));
+            break;
+        default:
+            throw new IllegalArgumentException("unknown shape: " + shape);
+        }
+
+        return new SyntheticLayers(root, base.toAbsolutePath().toString(), writer.paths);
+    }
+
+    /**
+     * Remove every file this layer set wrote.
+     */
+    public void delete() throws IOException {
+        Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                Files.delete(file);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path dir, IOException exc) throws IOException {
+                Files.delete(dir);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    /**
+     * A tree {@code depth} levels deep with {@code breadth} children per level. Every level also carries a few scalars, so
+     * overrides have something to change on the way down.
+     */
+    private static Map<String, Object> deepTree(int depth, int breadth, int seed) {
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("name", "level-" + depth + "-" + seed);
+        result.put("enabled", (seed % 2) == 0);
+        result.put("threshold", depth * 100 + seed);
+        if (depth > 0) {
+            for (int i = 0; i < breadth; ++i) {
+                result.put("child" + i, deepTree(depth - 1, breadth, seed));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * {@code sections} maps of {@code keys} scalars each. Only every {@code stride}th key is written, so overrides can be sparse.
+     */
+    private static Map<String, Object> wideTree(int sections, int keys, int seed, int stride) {
+        Map<String, Object> result = new LinkedHashMap<>();
+        for (int s = 0; s < sections; ++s) {
+            Map<String, Object> section = new LinkedHashMap<>();
+            for (int k = (seed * 7) % stride; k < keys; k += stride) {
+                section.put("key" + k, "value-" + s + "-" + k + "-" + seed);
+            }
+            result.put("section" + s, section);
+        }
+        return result;
+    }
+
+    /**
+     * {@code lists} lists of {@code length} small maps, in the style of logger appenders or upstream hosts.
+     */
+    private static Map<String, Object> listTree(int lists, int length, int seed) {
+        Map<String, Object> result = new LinkedHashMap<>();
+        for (int l = 0; l < lists; ++l) {
+            List<Object> entries = new ArrayList<>();
+            for (int i = 0; i < length; ++i) {
+                if (seed != 0 && (i % 10) != seed % 10) {
+                    // An override leaves most positions alone.
+                    entries.add(null);
+                    continue;
+                }
+                Map<String, Object> entry = new LinkedHashMap<>();
+                entry.put("name", "upstream-" + l + "-" + i);
+                entry.put("host", "10.0." + (i / 256) + "." + (i % 256));
+                entry.put("port", 8000 + i);
+                entry.put("weight", seed + 1);
+                entries.add(entry);
+            }
+            result.put("list" + l, entries);
+        }
+        return result;
+    }
+
+    /**
+     * A tiny override of the kind found in conf.d directories: a logger level and an instance id.
+     */
+    private static Map<String, Object> smallOverride(int seed) {
+        Map<String, Object> loggers = new LinkedHashMap<>();
+        loggers.put("com.example.component" + seed, (seed % 2) == 0 ? "DEBUG" : "INFO");
+        Map<String, Object> logging = new LinkedHashMap<>();
+        logging.put("loggers", loggers);
+        Map<String, Object> section = new LinkedHashMap<>();
+        section.put("key" + (seed * 13), "instance-" + seed);
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("logging", logging);
+        result.put("section" + (seed % 40), section);
+        return result;
+    }
+
+    private static void write(Path path, Object tree) throws IOException {
+        DumperOptions options = new DumperOptions();
+        options.setDefaultFlowStyle(DumperOptions.FlowStyle.BLOCK);
+        Files.write(path, new Yaml(options).dump(tree).getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Writes numbered override files so that their names sort in the order they were written.
+     */
+    private static class Writer {
+        private final Path dir;
+        private final List<String> paths = new ArrayList<>();
+
+        Writer(Path dir) {
+            this.dir = dir;
+        }
+
+        void write(Object tree) throws IOException {
+            Path path = dir.resolve(String.format("%04d-override.yaml", paths.size()));
+            SyntheticLayers.write(path, tree);
+            paths.add(path.toAbsolutePath().toString());
+        }
+    }
+}
@@ -0,0 +1,129 @@
+package com.thenewentity.utils.dropwizard;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * <p>
+ * Merges many overlay stacks over one shared base, as for {@link MultipleConfigurationMerger#mergeTenants}. The base is
+ * merged once, and every overlay is merged over that same tree, so each result shares whatever its overlays leave alone with
+ * the base, and with every other result. Overlay layers which several stacks have in common are parsed only once.
+ * </p>
+ *
+ * <p>
+ * The overlays are split in halves until each piece is small enough to be worth a task of its own, and the pieces merged on a
+ * {@link ForkJoinPool}.
+ * </p>
+ */
+final class BulkMerge<K> {
+
+    private final MultipleConfigurationMerger merger;
+    private final Map<Object, Object> base;
+    private final List<K> keys;
+    private final List<Collection<String>> overlays;
+    private final List<Map<Object, Object>> results;
+    private final ConcurrentMap<String, Parsed> parsed = new ConcurrentHashMap<>();
+    private final int leafSize;
+
+    private BulkMerge(MultipleConfigurationMerger merger, Map<Object, Object> base, Map<K, ? extends Collection<String>> overlays,
+            int parallelism) {
+        this.merger = merger;
+        this.base = base;
+        this.keys = new ArrayList<>(overlays.keySet());
+        this.overlays = new ArrayList<Collection<String>>(overlays.values());
+        this.results = new ArrayList<>(Collections.<Map<Object, Object>> nCopies(keys.size(), null));
+        // A few pieces per thread keeps them all busy even if some stacks are slower than others.
+        this.leafSize = Math.max(1, keys.size() / (parallelism * 4));
+    }
+
+    /**
+     * @param merger
+     * @param basePaths
+     * @param overlays
+     * @param pool
+     *            - where to merge the overlays
+     * @return the merged configuration for each key of {@code overlays}, in the same order.
+     */
+    static <K> Map<K, Map<Object, Object>> merge(MultipleConfigurationMerger merger, Collection<String> basePaths,
+            Map<K, ? extends Collection<String>> overlays, ForkJoinPool pool) {
+        BulkMerge<K> bulk = new BulkMerge<K>(merger, merger.mergeLayers(basePaths), overlays, pool.getParallelism());
+        pool.invoke(bulk.new Piece(0, bulk.keys.size()));
+
+        Map<K, Map<Object, Object>> result = new LinkedHashMap<>();
+        for (int i = 0; i < bulk.keys.size(); ++i) {
+            result.put(bulk.keys.get(i), bulk.results.get(i));
+        }
+        return result;
+    }
+
+    private Map<Object, Object> mergeOverlay(Collection<String> paths) {
+        Map<Object, Object> config = base;
+        if (paths != null) {
+            merger.prefetchLayers(paths);
+            for (String path : paths) {
+                config = merger.mergeLayer(config, path, parse(path));
+            }
+        }
+        return merger.substitute(config);
+    }
+
+    private Object parse(String path) {
+        Parsed layer = parsed.get(path);
+        if (layer == null) {
+            Parsed previous = parsed.putIfAbsent(path, layer = new Parsed());
+            if (previous != null) {
+                layer = previous;
+            }
+        }
+        return layer.get(path);
+    }
+
+    /**
+     * One layer, parsed by whichever task needs it first.
+     */
+    private class Parsed {
+        private boolean done;
+        private Object tree;
+
+        synchronized Object get(String path) {
+            if (!done) {
+                tree = merger.parseLayer(path);
+                done = true;
+            }
+            return tree;
+        }
+    }
+
+    private class Piece extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final int from;
+        private final int to;
+
+        Piece(int from, int to) {
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= leafSize) {
+                for (int i = from; i < to; ++i) {
+                    // Each piece sets only its own entries, and joining it makes them visible.
+                    results.set(i, mergeOverlay(overlays.get(i)));
+                }
+            } else {
+                int middle = (from + to) >>> 1;
+                invokeAll(new Piece(from, middle), new Piece(middle, to));
+            }
+        }
+    }
+}
@@ -0,0 +1,191 @@
+package com.thenewentity.utils.dropwizard;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.file.FileVisitOption;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.EnumSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.WeakHashMap;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * <p>
+ * Layers which are resources on the classpath, such as defaults shipped inside the service's own jar:
+ * {@code classpath:conf/defaults.yaml}. {@link DefaultConfigurationReader} reads them through the thread's context class
+ * loader, and {@link GlobExpander} expands patterns such as {@code classpath:conf.d/*.yaml} against every jar and directory on
+ * the classpath, sorted by resource name.
+ * </p>
+ *
+ * <p>
+ * Class loaders can't list their resources, so the jars and directories behind a class loader are scanned the first time a
+ * pattern is expanded against it, and the names found are kept for the rest of the process. Every later pattern is matched
+ * against that index without opening a jar.
+ * </p>
+ */
+final class ClasspathLayers {
+
+    private static Logger log = LoggerFactory.getLogger(ClasspathLayers.class);
+
+    static final String PREFIX = "classpath:";
+
+    // The names of every resource each class loader can see, sorted.
+    private static final Map<ClassLoader, NavigableSet<String>> indexes = new WeakHashMap<>();
+
+    private ClasspathLayers() {
+
+    }
+
+    static boolean isClasspath(String path) {
+        return path.startsWith(PREFIX);
+    }
+
+    /**
+     * Open the resource {@code path} names.
+     *
+     * @return the resource, or null if there is no such resource.
+     */
+    static InputStream open(String path) {
+        return classLoader().getResourceAsStream(resourceName(path));
+    }
+
+    /**
+     * Expand a {@code classpath:} glob pattern into the resources it matches, sorted by name. A path without glob
+     * characters is returned as it is.
+     */
+    static List<String> expand(String path) {
+        String name = resourceName(path);
+        int base = -1;
+        for (int i = 0; i < name.length(); ++i) {
+            if (GlobExpander.isGlobChar(name.charAt(i))) {
+                base = name.lastIndexOf('/', i) + 1;
+                break;
+            }
+        }
+        List<String> result = new ArrayList<>();
+        if (base < 0) {
+            result.add(path);
+            return result;
+        }
+
+        String prefix = name.substring(0, base);
+        List<PathMatcher> matchers = GlobExpander.matchers(name.substring(base), "/");
+        for (String resource : index(classLoader()).tailSet(prefix, true)) {
+            if (!resource.startsWith(prefix)) {
+                break;
+            }
+            if (GlobExpander.matches(matchers, Paths.get(resource.substring(base)))) {
+                result.add(PREFIX + resource);
+            }
+        }
+        return result;
+    }
+
+    private static String resourceName(String path) {
+        String name = path.substring(PREFIX.length());
+        return name.startsWith("/") ? name.substring(1) : name;
+    }
+
+    private static ClassLoader classLoader() {
+        ClassLoader loader = Thread.currentThread().getContextClassLoader();
+        return loader != null ? loader : ClasspathLayers.class.getClassLoader();
+    }
+
+    private static NavigableSet<String> index(ClassLoader loader) {
+        synchronized (indexes) {
+            NavigableSet<String> index = indexes.get(loader);
+            if (index == null) {
+                index = new TreeSet<>();
+                for (Path root : roots(loader)) {
+                    scan(root, index);
+                }
+                log.debug("Indexed " + index.size() + " classpath resources");
+                indexes.put(loader, index);
+            }
+            return index;
+        }
+    }
+
+    /**
+     * The jars and directories {@code loader} and its parents load from, as far as they can tell.
+     */
+    private static Set<Path> roots(ClassLoader loader) {
+        Set<Path> roots = new LinkedHashSet<>();
+        for (ClassLoader current = loader; current != null; current = current.getParent()) {
+            if (current instanceof URLClassLoader) {
+                for (URL url : ((URLClassLoader) current).getURLs()) {
+                    if ("file".equals(url.getProtocol())) {
+                        try {
+                            roots.add(Paths.get(url.toURI()));
+                        } catch (URISyntaxException | IllegalArgumentException e) {
+                            log.debug("Not indexing classpath entry " + url);
+                        }
+                    }
+                }
+            } else if (current == ClassLoader.getSystemClassLoader()) {
+                // The application class loader of newer JVMs doesn't expose its urls.
+                for (String entry : System.getProperty("java.class.path", "").split(File.pathSeparator)) {
+                    if (!entry.isEmpty()) {
+                        roots.add(Paths.get(entry));
+                    }
+                }
+            }
+        }
+        return roots;
+    }
+
+    private static void scan(final Path root, final NavigableSet<String> index) {
+        try {
+            if (Files.isDirectory(root)) {
+                Files.walkFileTree(root, EnumSet.of(FileVisitOption.FOLLOW_LINKS), Integer.MAX_VALUE,
+                        new SimpleFileVisitor<Path>() {
+                            @Override
+                            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                                if (!attrs.isDirectory()) {
+                                    index.add(root.relativize(file).toString().replace(File.separatorChar, '/'));
+                                }
+                                return FileVisitResult.CONTINUE;
+                            }
+
+                            @Override
+                            public FileVisitResult visitFileFailed(Path file, IOException e) {
+                                return FileVisitResult.CONTINUE;
+                            }
+                        });
+            } else if (Files.isRegularFile(root)) {
+                try (JarFile jar = new JarFile(root.toFile())) {
+                    for (Enumeration<JarEntry> entries = jar.entries(); entries.hasMoreElements();) {
+                        JarEntry entry = entries.nextElement();
+                        if (!entry.isDirectory()) {
+                            index.add(entry.getName());
+                        }
+                    }
+                }
+            }
+        } catch (IOException e) {
+            // Not a jar, or not readable; either way it holds no layers we could read.
+            log.debug("Could not index classpath entry " + root, e);
+        }
+    }
+}
@@ -0,0 +1,112 @@
+package com.thenewentity.utils.dropwizard;
+
+import java.math.BigInteger;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Helpers for building {@link ImmutableConfigMap} / {@link ImmutableConfigList} trees.
+ */
+final class ConfigNodes {
+
+    private ConfigNodes() {
+
+    }
+
+    /**
+     * Turn a freshly parsed tree of maps, lists and scalars into immutable nodes. Subtrees which are already immutable are
+     * returned as they are. Plain {@link LinkedHashMap}s, which is what SnakeYAML and Jackson produce, are adopted rather than
+     * copied, so the caller must own {@code node} and must not touch it afterwards.
+     */
+    @SuppressWarnings("unchecked")
+    static Object freeze(Object node) {
+        if (node instanceof ImmutableConfigMap || node instanceof ImmutableConfigList) {
+            return node;
+        } else if (node instanceof Map<?, ?>) {
+            LinkedHashMap<Object, Object> entries;
+            if (node.getClass() == LinkedHashMap.class) {
+                entries = (LinkedHashMap<Object, Object>) node;
+                for (Map.Entry<Object, Object> entry : entries.entrySet()) {
+                    entry.setValue(freeze(entry.getValue()));
+                }
+            } else {
+                entries = new LinkedHashMap<>();
+                for (Map.Entry<?, ?> entry : ((Map<?, ?>) node).entrySet()) {
+                    entries.put(entry.getKey(), freeze(entry.getValue()));
+                }
+            }
+            return new ImmutableConfigMap(entries);
+        } else if (node instanceof List<?>) {
+            List<?> list = (List<?>) node;
+            Object[] entries = new Object[list.size()];
+            for (int i = 0; i < entries.length; ++i) {
+                entries[i] = freeze(list.get(i));
+            }
+            return new ImmutableConfigList(entries);
+        } else {
+            return node;
+        }
+    }
+
+    /**
+     * The node at {@code segments} below {@code node}: Strings select map entries and Integers list entries.
+     * 
+     * @return the node, or null if there is nothing there.
+     */
+    static Object get(Object node, List<Object> segments) {
+        for (Object segment : segments) {
+            if (node instanceof Map<?, ?>) {
+                node = ((Map<?, ?>) node).get(segment);
+            } else if (node instanceof List<?> && segment instanceof Integer && (Integer) segment < ((List<?>) node).size()) {
+                node = ((List<?>) node).get((Integer) segment);
+            } else {
+                return null;
+            }
+        }
+        return node;
+    }
+
+    /**
+     * The number of maps, lists and scalars in {@code node}, counting {@code node} itself.
+     */
+    static long count(Object node) {
+        long result = 1;
+        if (node instanceof Map<?, ?>) {
+            for (Object value : ((Map<?, ?>) node).values()) {
+                result += count(value);
+            }
+        } else if (node instanceof List<?>) {
+            for (Object value : (List<?>) node) {
+                result += count(value);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Whether {@code node} reads back from Smile (or JSON) as an equal tree of the same types SnakeYAML produced.
+     */
+    static boolean isPortable(Object node) {
+        if (node == null || node instanceof String || node instanceof Boolean || node instanceof Integer || node instanceof Long
+                || node instanceof BigInteger || node instanceof Double) {
+            return true;
+        } else if (node instanceof Map<?, ?>) {
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>) node).entrySet()) {
+                if (!(entry.getKey() instanceof String) || !isPortable(entry.getValue())) {
+                    return false;
+                }
+            }
+            return true;
+        } else if (node instanceof List<?>) {
+            for (Object entry : (List<?>) node) {
+                if (!isPortable(entry)) {
+                    return false;
+                }
+            }
+            return true;
+        } else {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,20 @@
+package com.thenewentity.utils.dropwizard;
+
+import java.util.Map;
+
+/**
+ * Notified by a {@link MultipleConfigurationProvider} which is watching its configuration files, whenever one of them changes
+ * and the re-merged effective configuration differs from the one before it.
+ */
+public interface ConfigurationChangeListener {
+
+    /**
+     * Called on the provider's reload thread, never concurrently with itself. Exceptions are logged and otherwise ignored.
+     *
+     * @param previousConfig
+     *            - the effective configuration before the change
+     * @param effectiveConfig
+     *            - the effective configuration after the change
+     */
+    public void configurationChanged(Map<Object, Object> previousConfig, Map<Object, Object> effectiveConfig);
+}
@@ -0,0 +1,242 @@
+package com.thenewentity.utils.dropwizard;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import org.yaml.snakeyaml.error.YAMLException;
+
+/**
+ * <p>
+ * The differences between two merged configurations, such as the ones handed to a {@link ConfigurationChangeListener}: each
+ * path whose value was added, removed or changed, with the values before and after.
+ * </p>
+ *
+ * <p>
+ * Comparing costs time in proportion to the maps and lists along the changed paths rather than to the size of the
+ * configurations. Subtrees which the two share, as versions of a configuration merged by the same
+ * {@link MultipleConfigurationMerger} share everything a change didn't touch, are skipped without being looked at, and so are
+ * subtrees whose cached hashes show them to be equal.
+ * </p>
+ *
+ * <pre>
+ * ConfigurationDiff diff = ConfigurationDiff.compare(previousConfig, effectiveConfig);
+ * if (diff.touches("database.pool")) {
+ *     resizePool(...);
+ * }
+ * </pre>
+ */
+public final class ConfigurationDiff {
+
+    public enum Kind {
+        ADDED, REMOVED, CHANGED
+    }
+
+    /**
+     * One path which differs between the two configurations. Maps and lists are compared entry by entry, so a change is only
+     * reported for a map or list as a whole when it was added, removed, or replaced by something that isn't the same kind of
+     * container.
+     */
+    public static final class Change {
+        private final List<Object> segments;
+        private final Kind kind;
+        private final Object oldValue;
+        private final Object newValue;
+
+        private Change(List<Object> segments, Kind kind, Object oldValue, Object newValue) {
+            this.segments = Collections.unmodifiableList(segments);
+            this.kind = kind;
+            this.oldValue = oldValue;
+            this.newValue = newValue;
+        }
+
+        /**
+         * The path, in the syntax of {@link MultipleConfigurationMerger.Builder#setExpandPathKeys path keys}, such as
+         * {@code server.applicationConnectors[0].port} or {@code logging.loggers."org.foo"}.
+         */
+        public String getPath() {
+            return format(segments);
+        }
+
+        /**
+         * The path as map keys, as Strings, and list indexes, as Integers.
+         */
+        public List<Object> getSegments() {
+            return segments;
+        }
+
+        public Kind getKind() {
+            return kind;
+        }
+
+        /**
+         * @return the value before, or null if it was {@link Kind#ADDED}.
+         */
+        public Object getOldValue() {
+            return oldValue;
+        }
+
+        /**
+         * @return the value after, or null if it was {@link Kind#REMOVED}.
+         */
+        public Object getNewValue() {
+            return newValue;
+        }
+
+        @Override
+        public String toString() {
+            return kind + " " + getPath() + ": " + oldValue + " -> " + newValue;
+        }
+    }
+
+    private final List<Change> changes;
+
+    private ConfigurationDiff(List<Change> changes) {
+        this.changes = Collections.unmodifiableList(changes);
+    }
+
+    /**
+     * @param previous
+     *            - the configuration before; null is treated as empty
+     * @param current
+     *            - the configuration after; null is treated as empty
+     */
+    public static ConfigurationDiff compare(Map<Object, Object> previous, Map<Object, Object> current) {
+        List<Change> changes = new ArrayList<>();
+        compare(new ArrayList<Object>(), previous == null ? ImmutableConfigMap.EMPTY : previous,
+                current == null ? ImmutableConfigMap.EMPTY : current, changes);
+        return new ConfigurationDiff(changes);
+    }
+
+    /**
+     * Every change, in the order the paths appear in the configurations.
+     */
+    public List<Change> getChanges() {
+        return changes;
+    }
+
+    public boolean isEmpty() {
+        return changes.isEmpty();
+    }
+
+    /**
+     * Whether anything changed at {@code path}, below it, or above it (replacing it as part of something larger).
+     *
+     * @param path
+     *            - in the syntax of {@link Change#getPath()}
+     * @throws IllegalArgumentException
+     *             if {@code path} is malformed.
+     */
+    public boolean touches(String path) {
+        List<Object> segments;
+        try {
+            segments = PathKeys.parse(path, "a diff path");
+        } catch (YAMLException e) {
+            throw new IllegalArgumentException(e.getMessage(), e);
+        }
+        for (Change change : changes) {
+            int common = Math.min(segments.size(), change.segments.size());
+            if (segments.subList(0, common).equals(change.segments.subList(0, common))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static void compare(List<Object> path, Object before, Object after, List<Change> changes) {
+        if (before == after) {
+            // Shared, and so necessarily unchanged.
+            return;
+        }
+        if (before instanceof Map<?, ?> && after instanceof Map<?, ?>) {
+            if (probablyEqual(before, after) && before.equals(after)) {
+                return;
+            }
+            Map<?, ?> beforeMap = (Map<?, ?>) before;
+            Map<?, ?> afterMap = (Map<?, ?>) after;
+            for (Map.Entry<?, ?> entry : beforeMap.entrySet()) {
+                path.add(String.valueOf(entry.getKey()));
+                if (afterMap.containsKey(entry.getKey())) {
+                    compare(path, entry.getValue(), afterMap.get(entry.getKey()), changes);
+                } else {
+                    changes.add(new Change(new ArrayList<>(path), Kind.REMOVED, entry.getValue(), null));
+                }
+                path.remove(path.size() - 1);
+            }
+            for (Map.Entry<?, ?> entry : afterMap.entrySet()) {
+                if (!beforeMap.containsKey(entry.getKey())) {
+                    path.add(String.valueOf(entry.getKey()));
+                    changes.add(new Change(new ArrayList<>(path), Kind.ADDED, null, entry.getValue()));
+                    path.remove(path.size() - 1);
+                }
+            }
+        } else if (before instanceof List<?> && after instanceof List<?>) {
+            if (probablyEqual(before, after) && before.equals(after)) {
+                return;
+            }
+            List<?> beforeList = (List<?>) before;
+            List<?> afterList = (List<?>) after;
+            for (int i = 0; i < Math.max(beforeList.size(), afterList.size()); ++i) {
+                path.add(i);
+                if (i >= afterList.size()) {
+                    changes.add(new Change(new ArrayList<>(path), Kind.REMOVED, beforeList.get(i), null));
+                } else if (i >= beforeList.size()) {
+                    changes.add(new Change(new ArrayList<>(path), Kind.ADDED, null, afterList.get(i)));
+                } else {
+                    compare(path, beforeList.get(i), afterList.get(i), changes);
+                }
+                path.remove(path.size() - 1);
+            }
+        } else if (before == null ? after != null : !before.equals(after)) {
+            changes.add(new Change(new ArrayList<>(path), Kind.CHANGED, before, after));
+        }
+    }
+
+    /**
+     * Whether the hashes of two merged nodes, which they cache, leave open that they are equal. Checking that is cheap, since
+     * {@code equals} stops at shared subtrees. For other nodes hashing would mean visiting every entry, so they are always
+     * compared entry by entry.
+     */
+    private static boolean probablyEqual(Object before, Object after) {
+        boolean cached = (before instanceof ImmutableConfigMap && after instanceof ImmutableConfigMap)
+                || (before instanceof ImmutableConfigList && after instanceof ImmutableConfigList);
+        return cached && before.hashCode() == after.hashCode();
+    }
+
+    /**
+     * Format segments as a path key, quoting map keys which would otherwise be read as more than one segment.
+     */
+    static String format(List<Object> segments) {
+        StringBuilder path = new StringBuilder();
+        for (Object segment : segments) {
+            if (segment instanceof Integer) {
+                path.append('[').append(segment).append(']');
+                continue;
+            }
+            if (path.length() > 0) {
+                path.append('.');
+            }
+            String key = (String) segment;
+            boolean quote = key.isEmpty();
+            for (int i = 0; i < key.length() && !quote; ++i) {
+                char c = key.charAt(i);
+                quote = c == '.' || c == '[' || c == ']' || c == '"' || c == '\\';
+            }
+            if (!quote) {
+                path.append(key);
+                continue;
+            }
+            path.append('"');
+            for (int i = 0; i < key.length(); ++i) {
+                char c = key.charAt(i);
+                if (c == '"' || c == '\\') {
+                    path.append('\\');
+                }
+                path.append(c);
+            }
+            path.append('"');
+        }
+        return path.toString();
+    }
+}
@@ -0,0 +1,239 @@
+package com.thenewentity.utils.dropwizard;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.Metric;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.MetricRegistryListener;
+import com.codahale.metrics.Timer;
+
+/**
+ * <p>
+ * The timers and histograms that the configuration load pipeline reports to a {@link MetricRegistry}. Metrics 3 has no tags,
+ * so a per-layer metric carries the layer's path in its name:
+ * {@code com.thenewentity.utils.dropwizard.MultipleConfigurationMerger.layer.<path>.<metric>}. Every per-layer update also
+ * goes to the aggregate {@code com.thenewentity.utils.dropwizard.MultipleConfigurationMerger.<metric>}.
+ * </p>
+ *
+ * <p>
+ * In a name, every character of the path other than letters, digits, '.', '_' and '-' becomes '_', and a path longer than
+ * {@value #MAX_LAYER_NAME_LENGTH} characters keeps only its end. Only the first {@value #MAX_LAYERS} layers seen get metrics
+ * of their own, so that an application which keeps loading new paths doesn't keep adding metrics; later ones are only
+ * counted in the aggregates.
+ * </p>
+ *
+ * <p>
+ * Without a registry, nothing is recorded and nothing extra is computed.
+ * </p>
+ */
+final class ConfigurationMetrics {
+
+    /** Time spent reading a layer's bytes. */
+    static final String READ = "read";
+    /** Time spent in {@code yaml.load} (including the reads of a streamed layer), or in the cache lookup that replaces it. */
+    static final String PARSE = "parse";
+    /** Time spent merging a parsed layer over the layers before it. */
+    static final String MERGE = "merge";
+    /** Time spent binding the merged tree to a configuration class. */
+    static final String BIND = "bind";
+    /** Bytes read per layer. */
+    static final String BYTES = "bytes";
+    /** Maps, lists and scalars per parsed layer. */
+    static final String NODES = "nodes";
+
+    /** How many layers get metrics of their own. */
+    static final int MAX_LAYERS = 100;
+    /** How many characters of a layer's path are kept in its metrics' names. */
+    static final int MAX_LAYER_NAME_LENGTH = 100;
+
+    static final ConfigurationMetrics NONE = new ConfigurationMetrics(null);
+
+    private final MetricRegistry registry;
+    // The name each layer's metrics are reported under, by path.
+    private final ConcurrentMap<String, String> layerNames = new ConcurrentHashMap<>();
+
+    ConfigurationMetrics(MetricRegistry registry) {
+        this.registry = registry;
+    }
+
+    boolean isEnabled() {
+        return registry != null;
+    }
+
+    MetricRegistry getRegistry() {
+        return registry;
+    }
+
+    /**
+     * Start timing {@code metric}; the aggregate timer is always updated, and the per-layer one too if {@code path} isn't null
+     * and the layer has metrics of its own.
+     */
+    Stopwatch start(String metric, String path) {
+        if (registry == null) {
+            return Stopwatch.NONE;
+        }
+        return new Stopwatch(registry, name(metric, null), path == null ? null : name(metric, path));
+    }
+
+    /**
+     * Start timing one of {@code owner}'s stages, such as {@link MultipleConfigurationProvider#open}.
+     */
+    Stopwatch start(Class<?> owner, String metric) {
+        if (registry == null) {
+            return Stopwatch.NONE;
+        }
+        return new Stopwatch(registry, MetricRegistry.name(owner, metric), null);
+    }
+
+    void time(String metric, String path, long nanos) {
+        if (registry == null) {
+            return;
+        }
+        registry.timer(name(metric, null)).update(nanos, TimeUnit.NANOSECONDS);
+        String layerName = path == null ? null : name(metric, path);
+        if (layerName != null) {
+            registry.timer(layerName).update(nanos, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    void update(String metric, String path, long value) {
+        if (registry == null) {
+            return;
+        }
+        registry.histogram(name(metric, null)).update(value);
+        String layerName = path == null ? null : name(metric, path);
+        if (layerName != null) {
+            registry.histogram(layerName).update(value);
+        }
+    }
+
+    /**
+     * @return the aggregate name of {@code metric} if {@code path} is null; otherwise the layer's name for it, or null if the
+     *         layer has no metrics of its own.
+     */
+    private String name(String metric, String path) {
+        if (path == null) {
+            return MetricRegistry.name(MultipleConfigurationMerger.class, metric);
+        }
+        String layer = layerName(path);
+        return layer == null ? null : MetricRegistry.name(MultipleConfigurationMerger.class, "layer", layer, metric);
+    }
+
+    private String layerName(String path) {
+        String result = layerNames.get(path);
+        if (result == null && layerNames.size() < MAX_LAYERS) {
+            String name = path.replaceAll("[^A-Za-z0-9._-]", "_");
+            if (name.length() > MAX_LAYER_NAME_LENGTH) {
+                name = name.substring(name.length() - MAX_LAYER_NAME_LENGTH);
+            }
+            String previous = layerNames.putIfAbsent(path, name);
+            result = previous == null ? name : previous;
+        }
+        return result;
+    }
+
+    /**
+     * Register every metric in {@code source}, present and future, in {@code target} as well. This is how the metrics of a
+     * merger built before DropWizard's registry existed end up on the admin port.
+     */
+    static void forward(MetricRegistry source, final MetricRegistry target) {
+        if (source == target) {
+            return;
+        }
+        source.addListener(new MetricRegistryListener() {
+            @Override
+            public void onGaugeAdded(String name, Gauge<?> gauge) {
+                register(name, gauge);
+            }
+
+            @Override
+            public void onGaugeRemoved(String name) {
+                target.remove(name);
+            }
+
+            @Override
+            public void onCounterAdded(String name, Counter counter) {
+                register(name, counter);
+            }
+
+            @Override
+            public void onCounterRemoved(String name) {
+                target.remove(name);
+            }
+
+            @Override
+            public void onHistogramAdded(String name, Histogram histogram) {
+                register(name, histogram);
+            }
+
+            @Override
+            public void onHistogramRemoved(String name) {
+                target.remove(name);
+            }
+
+            @Override
+            public void onMeterAdded(String name, Meter meter) {
+                register(name, meter);
+            }
+
+            @Override
+            public void onMeterRemoved(String name) {
+                target.remove(name);
+            }
+
+            @Override
+            public void onTimerAdded(String name, Timer timer) {
+                register(name, timer);
+            }
+
+            @Override
+            public void onTimerRemoved(String name) {
+                target.remove(name);
+            }
+
+            private void register(String name, Metric metric) {
+                try {
+                    target.register(name, metric);
+                } catch (IllegalArgumentException e) {
+                    // Already there, e.g. forwarded once before.
+                }
+            }
+        });
+    }
+
+    /**
+     * A running timing started by {@link ConfigurationMetrics#start}.
+     */
+    static class Stopwatch {
+
+        static final Stopwatch NONE = new Stopwatch(null, null, null);
+
+        private final MetricRegistry registry;
+        private final String name;
+        private final String layerName;
+        private final long startNanos = System.nanoTime();
+
+        private Stopwatch(MetricRegistry registry, String name, String layerName) {
+            this.registry = registry;
+            this.name = name;
+            this.layerName = layerName;
+        }
+
+        void stop() {
+            if (registry == null) {
+                return;
+            }
+            long nanos = System.nanoTime() - startNanos;
+            registry.timer(name).update(nanos, TimeUnit.NANOSECONDS);
+            if (layerName != null) {
+                registry.timer(layerName).update(nanos, TimeUnit.NANOSECONDS);
+            }
+        }
+    }
+}
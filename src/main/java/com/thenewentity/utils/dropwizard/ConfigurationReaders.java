@@ -0,0 +1,143 @@
+package com.thenewentity.utils.dropwizard;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.io.IOUtils;
+import org.yaml.snakeyaml.Yaml;
+import org.yaml.snakeyaml.error.YAMLException;
+
+/**
+ * Reads layers through a {@link ConfigurationReader}, streaming them whenever it is a {@link StreamingConfigurationReader}.
+ */
+final class ConfigurationReaders {
+
+    private ConfigurationReaders() {
+
+    }
+
+    /**
+     * Parse the layer at {@code path}.
+     * 
+     * @return the parsed layer, as {@link Yaml#load(String)} would return it.
+     * @throws ParserLimits.LimitExceededException
+     *             naming the layer, if {@code parser} enforces {@link ParserLimits} and the layer crosses one.
+     */
+    static Object load(ConfigurationReader reader, Yaml parser, String path) {
+        try {
+            if (reader instanceof StreamingConfigurationReader) {
+                InputStream stream = ((StreamingConfigurationReader) reader).openConfiguration(path);
+                try {
+                    return parser.load(stream);
+                } finally {
+                    IOUtils.closeQuietly(stream);
+                }
+            }
+            return parser.load(reader.readConfiguration(path));
+        } catch (ParserLimits.LimitExceededException e) {
+            throw e.in(path);
+        }
+    }
+
+    /**
+     * The number of bytes {@code content} takes as UTF-8, without encoding it.
+     */
+    static long utf8Length(String content) {
+        long bytes = 0;
+        for (int i = 0; i < content.length(); ++i) {
+            char c = content.charAt(i);
+            bytes += c < 0x80 ? 1 : c < 0x800 || Character.isSurrogate(c) ? 2 : 3;
+        }
+        return bytes;
+    }
+
+    /**
+     * A parsed layer, together with the digest of exactly the bytes that were parsed.
+     */
+    static final class DigestedLayer {
+        final Object tree;
+        final String digest;
+
+        DigestedLayer(Object tree, String digest) {
+            this.tree = tree;
+            this.digest = digest;
+        }
+    }
+
+    /**
+     * Parse the layer at {@code path}, computing its digest from the same read. Anything keyed by that digest is then
+     * guaranteed to match the tree, even if the file changes underneath us.
+     */
+    static DigestedLayer loadWithDigest(ConfigurationReader reader, Yaml parser, String path) {
+        try {
+            return loadAndDigest(reader, parser, path);
+        } catch (ParserLimits.LimitExceededException e) {
+            throw e.in(path);
+        }
+    }
+
+    private static DigestedLayer loadAndDigest(ConfigurationReader reader, Yaml parser, String path) {
+        if (reader instanceof StreamingConfigurationReader) {
+            MessageDigest sha256 = DigestUtils.getSha256Digest();
+            InputStream stream = new DigestInputStream(((StreamingConfigurationReader) reader).openConfiguration(path), sha256);
+            try {
+                Object tree = parser.load(stream);
+                // Make sure the digest covers anything the parser didn't need to look at.
+                IOUtils.skip(stream, Long.MAX_VALUE);
+                return new DigestedLayer(tree, Hex.encodeHexString(sha256.digest()));
+            } catch (IOException e) {
+                throw new YAMLException("Could not read " + path, e);
+            } finally {
+                IOUtils.closeQuietly(stream);
+            }
+        }
+        String content = reader.readConfiguration(path);
+        return new DigestedLayer(parser.load(content), DigestUtils.sha256Hex(content.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    /**
+     * The attributes of the layer at {@code path}, if it is a regular file.
+     *
+     * @return the attributes, or null if {@code path} isn't a file.
+     */
+    static BasicFileAttributes fileAttributes(String path) {
+        if (HttpConfigurationReader.isHttp(path) || ClasspathLayers.isClasspath(path)) {
+            return null;
+        }
+        try {
+            Path file = Paths.get(path.replaceFirst("^~" + File.separator, System.getProperty("user.home") + File.separator));
+            BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+            return attributes.isRegularFile() ? attributes : null;
+        } catch (IOException | InvalidPathException e) {
+            return null;
+        }
+    }
+
+    /**
+     * The SHA-256 of the layer at {@code path}, as hex.
+     */
+    static String digest(ConfigurationReader reader, String path) {
+        if (reader instanceof StreamingConfigurationReader) {
+            InputStream stream = ((StreamingConfigurationReader) reader).openConfiguration(path);
+            try {
+                return DigestUtils.sha256Hex(stream);
+            } catch (IOException e) {
+                throw new YAMLException("Could not read " + path, e);
+            } finally {
+                IOUtils.closeQuietly(stream);
+            }
+        }
+        return DigestUtils.sha256Hex(reader.readConfiguration(path).getBytes(StandardCharsets.UTF_8));
+    }
+}
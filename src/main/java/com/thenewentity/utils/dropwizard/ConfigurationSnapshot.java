@@ -0,0 +1,259 @@
+package com.thenewentity.utils.dropwizard;
+
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+
+/**
+ * <p>
+ * A merged configuration compiled ahead of time, together with enough about its sources to tell whether it is still what
+ * merging them would produce: the layer paths and patterns it was merged from, the size, modification time and digest of every
+ * layer, and the modification time of every directory a glob pattern searched. Written by {@link SnapshotCommand}, stored as
+ * Smile, and used by {@link MultipleConfigurationProvider#open} in place of the merge while nothing has changed.
+ * </p>
+ *
+ * <p>
+ * Checking is cheap when nothing changed: directories and files whose modification time and size still match are trusted
+ * without being read, and a layer is only digested when they don't, or when they are too close to the snapshot's creation for
+ * the file system's timestamps to tell changes apart.
+ * </p>
+ */
+final class ConfigurationSnapshot {
+
+    private static Logger log = LoggerFactory.getLogger(ConfigurationSnapshot.class);
+
+    private static final int FORMAT = 1;
+
+    /** As in {@link ParsedLayerCache}: timestamps this close to the snapshot are not trusted to reveal later changes. */
+    private static final long RACY_WINDOW_MILLIS = 2000;
+
+    private static final ObjectMapper smileMapper = new ObjectMapper(new SmileFactory());
+
+    private final long created;
+    private final List<String> patterns;
+    private final String options;
+    private final Map<String, Long> directories;
+    private final List<Map<String, Object>> layers;
+    private final Map<Object, Object> config;
+
+    private ConfigurationSnapshot(long created, List<String> patterns, String options, Map<String, Long> directories,
+            List<Map<String, Object>> layers, Map<Object, Object> config) {
+        this.created = created;
+        this.patterns = patterns;
+        this.options = options;
+        this.directories = directories;
+        this.layers = layers;
+        this.config = config;
+    }
+
+    /**
+     * Merge {@code layers} with {@code merger}, recording them first so that any change made during the merge shows up as a
+     * stale snapshot rather than going unnoticed.
+     *
+     * @param patterns
+     *            - the paths and patterns the layers were expanded from
+     * @param directories
+     *            - the modification times of the directories searched while expanding them, recorded before they were searched;
+     *            null if they couldn't be pinned down, in which case the patterns are always expanded again
+     * @param layers
+     * @param merger
+     * @throws IllegalArgumentException
+     *             if the merged configuration contains values that a snapshot can't store faithfully.
+     */
+    static ConfigurationSnapshot compile(List<String> patterns, Map<String, Long> directories, List<String> layers,
+            MultipleConfigurationMerger merger) {
+        long created = System.currentTimeMillis();
+        List<Map<String, Object>> recorded = new ArrayList<>();
+        for (String layer : layers) {
+            Map<String, Object> entry = new LinkedHashMap<>();
+            entry.put("path", layer);
+            BasicFileAttributes attributes = readAttributes(layer);
+            if (attributes != null) {
+                entry.put("size", attributes.size());
+                entry.put("modified", attributes.lastModifiedTime().toMillis());
+            }
+            entry.put("digest", merger.digestLayer(layer));
+            recorded.add(entry);
+        }
+
+        // Variables are substituted as the snapshot is loaded, since the environment may have changed by then.
+        Map<Object, Object> config = merger.mergeLayers(layers);
+        if (!ConfigNodes.isPortable(config)) {
+            throw new IllegalArgumentException(
+                    "The merged configuration contains keys or values (timestamps, binary, sets) that a snapshot can't store");
+        }
+        return new ConfigurationSnapshot(created, new ArrayList<>(patterns), merger.getOptionsFingerprint(), directories, recorded,
+                config);
+    }
+
+    /**
+     * Modification times of {@code directories}, keyed by path.
+     */
+    static Map<String, Long> modifiedTimes(Collection<Path> directories) throws IOException {
+        Map<String, Long> result = new LinkedHashMap<>();
+        for (Path directory : directories) {
+            result.put(directory.toString(), Files.getLastModifiedTime(directory).toMillis());
+        }
+        return result;
+    }
+
+    void write(Path file) throws IOException {
+        Map<String, Object> fields = new LinkedHashMap<>();
+        fields.put("format", FORMAT);
+        fields.put("created", created);
+        fields.put("patterns", patterns);
+        fields.put("options", options);
+        fields.put("directories", directories);
+        fields.put("layers", layers);
+        fields.put("config", config);
+
+        Path parent = file.toAbsolutePath().getParent();
+        Files.createDirectories(parent);
+        Path temporary = Files.createTempFile(parent, file.getFileName().toString(), ".tmp");
+        try {
+            smileMapper.writeValue(temporary.toFile(), fields);
+            try {
+                Files.move(temporary, file, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            Files.deleteIfExists(temporary);
+        }
+    }
+
+    /**
+     * @return the snapshot in {@code file}, or null if there isn't a readable one.
+     */
+    @SuppressWarnings("unchecked")
+    static ConfigurationSnapshot read(Path file) {
+        if (!Files.isRegularFile(file)) {
+            return null;
+        }
+        try {
+            Map<String, Object> fields = smileMapper.readValue(file.toFile(), Map.class);
+            if (!Integer.valueOf(FORMAT).equals(fields.get("format"))) {
+                return null;
+            }
+            Map<String, Long> directories = null;
+            if (fields.get("directories") != null) {
+                directories = new LinkedHashMap<>();
+                for (Map.Entry<String, Object> entry : ((Map<String, Object>) fields.get("directories")).entrySet()) {
+                    directories.put(entry.getKey(), ((Number) entry.getValue()).longValue());
+                }
+            }
+            //@formatter:off
+            return new ConfigurationSnapshot(
+                    ((Number) fields.get("created")).longValue(),
+                    (List<String>) fields.get("patterns"),
+                    (String) fields.get("options"),
+                    directories,
+                    (List<Map<String, Object>>) fields.get("layers"),
+                    (Map<Object, Object>) ConfigNodes.freeze(fields.get("config")));
+            //@formatter:on
+        } catch (IOException | RuntimeException e) {
+            log.warn("Ignoring unreadable configuration snapshot " + file, e);
+            return null;
+        }
+    }
+
+    /**
+     * Whether this snapshot was compiled from {@code patterns} by a merger configured like {@code merger}.
+     */
+    boolean isFor(List<String> patterns, MultipleConfigurationMerger merger) {
+        return this.patterns.equals(patterns) && merger.getOptionsFingerprint().equals(options);
+    }
+
+    /**
+     * Whether the patterns would still expand to {@link #getLayers()}, judging only by the searched directories' modification
+     * times. False means they have to be expanded again to find out.
+     */
+    boolean directoriesUnchanged() {
+        if (directories == null) {
+            return false;
+        }
+        for (Map.Entry<String, Long> directory : directories.entrySet()) {
+            long modified = directory.getValue();
+            if (modified >= created - RACY_WINDOW_MILLIS) {
+                return false;
+            }
+            try {
+                if (Files.getLastModifiedTime(Paths.get(directory.getKey())).toMillis() != modified) {
+                    return false;
+                }
+            } catch (IOException e) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    List<String> getLayers() {
+        List<String> result = new ArrayList<>(layers.size());
+        for (Map<String, Object> layer : layers) {
+            result.add((String) layer.get("path"));
+        }
+        return result;
+    }
+
+    /**
+     * Whether {@code currentLayers} are the snapshot's layers, each with the contents it had when the snapshot was compiled.
+     */
+    boolean isCurrent(List<String> currentLayers, MultipleConfigurationMerger merger) {
+        if (!getLayers().equals(currentLayers)) {
+            return false;
+        }
+        for (Map<String, Object> layer : layers) {
+            String path = (String) layer.get("path");
+            if (!isTrustworthy(layer, readAttributes(path)) && !layer.get("digest").equals(merger.digestLayer(path))) {
+                log.debug("Configuration snapshot is stale; " + path + " changed");
+                return false;
+            }
+        }
+        return true;
+    }
+
+    Map<Object, Object> getConfig() {
+        return config;
+    }
+
+    /**
+     * Whether the layer's size and modification time alone show that it hasn't changed.
+     */
+    private boolean isTrustworthy(Map<String, Object> layer, BasicFileAttributes attributes) {
+        if (attributes == null || !(layer.get("size") instanceof Number) || !(layer.get("modified") instanceof Number)) {
+            return false;
+        }
+        long modified = ((Number) layer.get("modified")).longValue();
+        //@formatter:off
+        return modified < created - RACY_WINDOW_MILLIS
+                && attributes.lastModifiedTime().toMillis() == modified
+                && attributes.size() == ((Number) layer.get("size")).longValue();
+        //@formatter:on
+    }
+
+    private static BasicFileAttributes readAttributes(String path) {
+        try {
+            BasicFileAttributes attributes = Files.readAttributes(Paths.get(path), BasicFileAttributes.class);
+            return attributes.isRegularFile() ? attributes : null;
+        } catch (IOException | InvalidPathException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,80 @@
+package com.thenewentity.utils.dropwizard;
+
+import java.util.List;
+import java.util.Map;
+
+import org.yaml.snakeyaml.error.YAMLException;
+
+/**
+ * <p>
+ * A typed view of one subtree of a merged configuration, such as {@code database.shards} bound to {@code ShardConfig[]}. The
+ * subtree is only bound the first time {@link #get()} is called, and the result is kept for as long as the subtree stays the
+ * same.
+ * </p>
+ *
+ * <p>
+ * Views obtained from {@link MultipleConfigurationProvider#view} follow reloads: since a reload shares every subtree it didn't
+ * change with the configuration before it, a view of an untouched subtree keeps its bound object, and a view of a changed one
+ * binds again on the next {@link #get()}.
+ * </p>
+ *
+ * @param <T>
+ *            - the type the subtree is bound to
+ */
+public class ConfigurationView<T> {
+
+    /**
+     * Where a view finds the current configuration.
+     */
+    interface Source {
+        Map<Object, Object> getTree();
+    }
+
+    private final Source source;
+    private final MultipleConfigurationMerger merger;
+    private final String path;
+    private final List<Object> segments;
+    private final Class<T> type;
+
+    // Guarded by this.
+    private boolean bound;
+    private Object boundNode;
+    private T value;
+
+    ConfigurationView(Source source, MultipleConfigurationMerger merger, String path, Class<T> type) {
+        this.source = source;
+        this.merger = merger;
+        this.path = path;
+        try {
+            this.segments = PathKeys.parse(path, "a view");
+        } catch (YAMLException e) {
+            throw new IllegalArgumentException(e.getMessage(), e);
+        }
+        this.type = type;
+    }
+
+    public String getPath() {
+        return path;
+    }
+
+    public Class<T> getType() {
+        return type;
+    }
+
+    /**
+     * Bind the subtree, unless it was already bound in its current form.
+     *
+     * @return the bound subtree, or null if the configuration has nothing at {@link #getPath()}.
+     * @throws IllegalArgumentException
+     *             if the subtree can't be bound to {@link #getType()}.
+     */
+    public synchronized T get() {
+        Object node = ConfigNodes.get(source.getTree(), segments);
+        if (!bound || node != boundNode) {
+            value = merger.bind(node, type, path);
+            boundNode = node;
+            bound = true;
+        }
+        return value;
+    }
+}
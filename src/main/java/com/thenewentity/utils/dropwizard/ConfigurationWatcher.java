@@ -0,0 +1,156 @@
+package com.thenewentity.utils.dropwizard;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Watches the directories behind a set of configuration files and glob patterns, and runs a reload task once things have been
+ * quiet for a while after a relevant change. Used by {@link MultipleConfigurationProvider#startWatching}.
+ */
+class ConfigurationWatcher implements Closeable {
+
+    private static Logger log = LoggerFactory.getLogger(ConfigurationWatcher.class);
+
+    private final Runnable reload;
+    private final long debounceMillis;
+    private final WatchService watchService;
+    private final ScheduledExecutorService scheduler;
+    private final Thread thread;
+
+    // All guarded by this.
+    private final Map<WatchKey, Path> keys = new HashMap<>();
+    private Map<Path, List<PathMatcher>> targets = Collections.emptyMap();
+    private ScheduledFuture<?> pendingReload;
+
+    ConfigurationWatcher(Runnable reload, long debounceMillis) throws IOException {
+        this.reload = reload;
+        this.debounceMillis = debounceMillis;
+        this.watchService = FileSystems.getDefault().newWatchService();
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "multi-config-reload");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        this.thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                watch();
+            }
+        }, "multi-config-watcher");
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    /**
+     * Replace the set of watched files. Directories which are no longer needed stop being watched.
+     *
+     * @param value
+     *            - for each absolute directory, matchers for the file names within it that matter
+     */
+    synchronized void setTargets(Map<Path, List<PathMatcher>> value) {
+        targets = value;
+
+        for (Iterator<Map.Entry<WatchKey, Path>> it = keys.entrySet().iterator(); it.hasNext();) {
+            Map.Entry<WatchKey, Path> entry = it.next();
+            if (!targets.containsKey(entry.getValue())) {
+                entry.getKey().cancel();
+                it.remove();
+            }
+        }
+
+        for (Path dir : targets.keySet()) {
+            if (keys.containsValue(dir)) {
+                continue;
+            }
+            try {
+                WatchKey key = dir.register(watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY,
+                        StandardWatchEventKinds.ENTRY_DELETE);
+                keys.put(key, dir);
+            } catch (IOException e) {
+                // Most likely the directory doesn't exist (yet); there's nothing in it to merge either.
+                log.debug("Could not watch " + dir, e);
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        thread.interrupt();
+        scheduler.shutdownNow();
+        watchService.close();
+    }
+
+    private void watch() {
+        while (true) {
+            WatchKey key;
+            try {
+                key = watchService.take();
+            } catch (InterruptedException | ClosedWatchServiceException e) {
+                return;
+            }
+
+            boolean relevant = false;
+            for (WatchEvent<?> event : key.pollEvents()) {
+                if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                    relevant = true;
+                } else {
+                    relevant |= isRelevant(key, (Path) event.context());
+                }
+            }
+            key.reset();
+
+            if (relevant) {
+                scheduleReload();
+            }
+        }
+    }
+
+    private synchronized boolean isRelevant(WatchKey key, Path name) {
+        Path dir = keys.get(key);
+        List<PathMatcher> matchers = dir == null ? null : targets.get(dir);
+        if (matchers != null) {
+            for (PathMatcher matcher : matchers) {
+                if (matcher.matches(name)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private synchronized void scheduleReload() {
+        if (pendingReload != null) {
+            pendingReload.cancel(false);
+        }
+        try {
+            pendingReload = scheduler.schedule(reload, debounceMillis, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            // Closed while the event was being handled.
+        }
+    }
+}
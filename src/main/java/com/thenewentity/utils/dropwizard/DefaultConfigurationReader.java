@@ -1,16 +1,55 @@
 package com.thenewentity.utils.dropwizard;
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 
-public class DefaultConfigurationReader implements ConfigurationReader {
+import org.apache.commons.io.IOUtils;
+
+/**
+ * Reads layers from the file system, where {@code ~/} stands for the user's home directory, and from the classpath, for paths
+ * starting with {@code classpath:}; see {@link ClasspathLayers}.
+ */
+public class DefaultConfigurationReader implements StreamingConfigurationReader {
+
+    /**
+     * Files at least this large are memory-mapped by {@link #openConfiguration(String)} rather than read through a stream.
+     */
+    public static final long DEFAULT_MAP_THRESHOLD = 1024 * 1024;
+
+    private final long mapThreshold;
+
+    public DefaultConfigurationReader() {
+        this(DEFAULT_MAP_THRESHOLD);
+    }
+
+    /**
+     * @param mapThreshold
+     *            - files at least this many bytes long are memory-mapped by {@link #openConfiguration(String)}.
+     */
+    public DefaultConfigurationReader(long mapThreshold) {
+        this.mapThreshold = mapThreshold;
+    }
 
     @Override
     public String readConfiguration(String path) {
+        if (ClasspathLayers.isClasspath(path)) {
+            InputStream stream = ClasspathLayers.open(path);
+            try {
+                return stream == null ? "" : IOUtils.toString(stream, StandardCharsets.UTF_8);
+            } catch (IOException e) {
+                return "";
+            } finally {
+                IOUtils.closeQuietly(stream);
+            }
+        }
         try {
             Path filePath = Paths.get(path.replaceFirst("^~" + File.separator, System.getProperty("user.home") + File.separator));
             byte[] encoded = Files.readAllBytes(filePath);
@@ -20,4 +59,28 @@ public class DefaultConfigurationReader implements ConfigurationReader {
         }
     }
 
+    /**
+     * Large files are memory-mapped and handed to the parser straight from the mapping; smaller ones are simply streamed.
+     */
+    @Override
+    public InputStream openConfiguration(String path) {
+        if (ClasspathLayers.isClasspath(path)) {
+            InputStream stream = ClasspathLayers.open(path);
+            return stream == null ? new ByteArrayInputStream(new byte[0]) : stream;
+        }
+        try {
+            Path filePath = Paths.get(path.replaceFirst("^~" + File.separator, System.getProperty("user.home") + File.separator));
+            try (FileChannel channel = FileChannel.open(filePath, StandardOpenOption.READ)) {
+                long size = channel.size();
+                if (size >= mapThreshold && size <= Integer.MAX_VALUE) {
+                    // The mapping stays valid after the channel is closed.
+                    return new ByteBufferInputStream(channel.map(FileChannel.MapMode.READ_ONLY, 0, size));
+                }
+            }
+            return Files.newInputStream(filePath);
+        } catch (IOException e) {
+            return new ByteArrayInputStream(new byte[0]);
+        }
+    }
+
 }
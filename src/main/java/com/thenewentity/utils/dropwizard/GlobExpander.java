@@ -0,0 +1,349 @@
+package com.thenewentity.utils.dropwizard;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitOption;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.EnumSet;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * <p>
+ * Expands the layer paths given to one {@link MultipleConfigurationProvider#open(String)} call. Glob patterns may span
+ * several path segments, and {@code **} matches any number of directories, including none.
+ * </p>
+ *
+ * <p>
+ * Every directory tree the patterns need is walked once, up front, to the deepest level any pattern can reach (never deeper
+ * than {@code maxDepth}); a pattern nested inside another pattern's tree is served from the same walk. Each pattern then
+ * matches against the shared listing, and its matches come out sorted by absolute path.
+ * </p>
+ */
+class GlobExpander {
+
+    static final int DEFAULT_MAX_DEPTH = 16;
+
+    private static final Set<Character> globChars = new HashSet<>(Arrays.asList('[', ']', '{', '}', '*', '?', '\\'));
+
+    private static final PathMatcher ANY_NAME = new PathMatcher() {
+        @Override
+        public boolean matches(Path name) {
+            return true;
+        }
+    };
+
+    private final int maxDepth;
+
+    // Every file and directory found below the walked roots, by absolute path.
+    private final NavigableSet<String> files = new TreeSet<>();
+    private final NavigableSet<String> directories = new TreeSet<>();
+    // The directories whose listings the expanded globs depend on.
+    private final Set<Path> searchedDirectories = new LinkedHashSet<>();
+
+    /**
+     * Walk everything the glob patterns among {@code paths} can match.
+     *
+     * @param paths
+     * @param maxDepth
+     *            - the most directory levels below a pattern's fixed prefix that it will search
+     */
+    GlobExpander(Collection<String> paths, int maxDepth) throws IOException {
+        this.maxDepth = maxDepth;
+
+        // Deepest level needed below each root; a root inside another one is folded into it.
+        Map<Path, Integer> roots = new TreeMap<>();
+        for (String path : paths) {
+            if (!isFilePath(path)) {
+                continue;
+            }
+            Glob glob = Glob.parse(expandHome(path), maxDepth);
+            if (glob != null) {
+                Integer depth = roots.get(glob.base);
+                roots.put(glob.base, depth == null ? glob.depth : Math.max(depth, glob.depth));
+            }
+        }
+        Map<Path, Integer> walks = new LinkedHashMap<>();
+        for (Map.Entry<Path, Integer> root : roots.entrySet()) {
+            Path outer = enclosingWalk(walks, root.getKey(), root.getValue());
+            if (outer == null) {
+                walks.put(root.getKey(), root.getValue());
+            } else {
+                int depth = outer.relativize(root.getKey()).getNameCount() + root.getValue();
+                walks.put(outer, Math.max(walks.get(outer), depth));
+            }
+        }
+
+        for (Map.Entry<Path, Integer> walk : walks.entrySet()) {
+            walk(walk.getKey(), walk.getValue());
+        }
+    }
+
+    /**
+     * Expands {@code path} with glob patterns to return a sorted collection of absolute paths. A path without glob patterns, or a
+     * url, is returned as it is. A {@code classpath:} pattern is expanded by {@link ClasspathLayers}.
+     *
+     * @param path
+     *            - one of the paths given to the constructor
+     * @param watchTargets
+     *            - the directories searched, and matchers for the file names that matter in them, are added here
+     */
+    Collection<String> expand(String path, Map<Path, List<PathMatcher>> watchTargets) throws IOException {
+        if (ClasspathLayers.isClasspath(path)) {
+            // The classpath doesn't change while we run, so there is nothing to watch.
+            return ClasspathLayers.expand(path);
+        }
+        if (!isFilePath(path)) {
+            return Arrays.asList(path);
+        }
+        path = expandHome(path);
+
+        Glob glob = Glob.parse(path, maxDepth);
+        if (glob == null) {
+            addFileWatchTarget(watchTargets, path);
+            return Arrays.asList(path);
+        }
+
+        String base = glob.base.toString();
+        if (!directories.contains(base)) {
+            // Listing a missing directory always failed the open.
+            throw new NoSuchFileException(base);
+        }
+
+        String prefix = base.endsWith(File.separator) ? base : base + File.separator;
+        String end = prefix.substring(0, prefix.length() - 1) + (char) (File.separatorChar + 1);
+
+        searchedDirectories.add(glob.base);
+        if (glob.depth == 1) {
+            addWatchTarget(watchTargets, glob.base, FileSystems.getDefault().getPathMatcher("glob:" + glob.pattern));
+        } else {
+            // New subdirectories may bring new matches, so any change in the searched tree is worth a look.
+            addWatchTarget(watchTargets, glob.base, ANY_NAME);
+            for (String dir : directories.subSet(prefix, true, end, false)) {
+                Path relative = glob.base.relativize(Paths.get(dir));
+                if (relative.getNameCount() < glob.depth) {
+                    searchedDirectories.add(Paths.get(dir));
+                    addWatchTarget(watchTargets, Paths.get(dir), ANY_NAME);
+                }
+            }
+        }
+
+        List<String> result = new ArrayList<>();
+        for (String file : files.subSet(prefix, true, end, false)) {
+            Path relative = glob.base.relativize(Paths.get(file));
+            if (relative.getNameCount() <= glob.depth && glob.matches(relative)) {
+                result.add(file);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * The directories whose listings went into the results of {@link #expand} so far. As long as none of them changes, the
+     * globs expand the same way.
+     */
+    Set<Path> getSearchedDirectories() {
+        return searchedDirectories;
+    }
+
+    private void walk(Path root, int depth) throws IOException {
+        if (!Files.isDirectory(root)) {
+            // Reported by expand().
+            return;
+        }
+        Files.walkFileTree(root, EnumSet.of(FileVisitOption.FOLLOW_LINKS), depth, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+                directories.add(dir.toString());
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                // Directories at the depth limit are visited as files; they can't be layers.
+                if (!attrs.isDirectory()) {
+                    files.add(file.toString());
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException e) {
+                // A dangling link, a link cycle, or something we may not read; none of them are layers.
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    /**
+     * The walk already planned which {@code root} lies inside, if that walk can go {@code depth} levels below {@code root}
+     * without exceeding the depth bound.
+     */
+    private Path enclosingWalk(Map<Path, Integer> walks, Path root, int depth) {
+        for (Path walk : walks.keySet()) {
+            if (root.startsWith(walk) && walk.relativize(root).getNameCount() + depth <= maxDepth) {
+                return walk;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Whether {@code path} names something on the file system, as opposed to a url, which is neither globbed nor watched, or a
+     * classpath resource.
+     */
+    private static boolean isFilePath(String path) {
+        return !HttpConfigurationReader.isHttp(path) && !ClasspathLayers.isClasspath(path);
+    }
+
+    static boolean isGlobChar(char c) {
+        return globChars.contains(c);
+    }
+
+    /**
+     * Matchers for a glob pattern. The platform's {@code **} followed by a separator needs at least one directory, so there is
+     * also a matcher for the pattern with each such {@code **} and its separator left out.
+     *
+     * @param pattern
+     * @param separator
+     *            - the separator between the directories in {@code pattern}
+     */
+    static List<PathMatcher> matchers(String pattern, String separator) {
+        String doubleStarDir = "**" + separator;
+        List<String> variants = new ArrayList<>();
+        variants.add(pattern);
+        for (int i = 0; i < variants.size(); ++i) {
+            String variant = variants.get(i);
+            for (int at = variant.indexOf(doubleStarDir); at >= 0; at = variant.indexOf(doubleStarDir, at + 1)) {
+                String shorter = variant.substring(0, at) + variant.substring(at + doubleStarDir.length());
+                if (!variants.contains(shorter)) {
+                    variants.add(shorter);
+                }
+            }
+        }
+        List<PathMatcher> matchers = new ArrayList<>();
+        for (String variant : variants) {
+            matchers.add(FileSystems.getDefault().getPathMatcher("glob:" + variant));
+        }
+        return matchers;
+    }
+
+    static boolean matches(List<PathMatcher> matchers, Path relative) {
+        for (PathMatcher matcher : matchers) {
+            if (matcher.matches(relative)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static String expandHome(String path) {
+        return path.replaceFirst("^~" + File.separator, System.getProperty("user.home") + File.separator);
+    }
+
+    static void addFileWatchTarget(Map<Path, List<PathMatcher>> watchTargets, String path) {
+        final Path file;
+        try {
+            file = Paths.get(path);
+        } catch (InvalidPathException e) {
+            // Not something the file system can watch.
+            return;
+        }
+        if (file.getFileName() != null) {
+            addWatchTarget(watchTargets, file.toAbsolutePath().getParent(), new PathMatcher() {
+                @Override
+                public boolean matches(Path name) {
+                    return name.equals(file.getFileName());
+                }
+            });
+        }
+    }
+
+    static void addWatchTarget(Map<Path, List<PathMatcher>> watchTargets, Path dir, PathMatcher matcher) {
+        Path key = dir.toAbsolutePath().normalize();
+        List<PathMatcher> matchers = watchTargets.get(key);
+        if (matchers == null) {
+            matchers = new ArrayList<>();
+            watchTargets.put(key, matchers);
+        }
+        matchers.add(matcher);
+    }
+
+    /**
+     * A glob pattern split into the directory before its first glob character, and the pattern below that directory.
+     */
+    private static class Glob {
+        final Path base;
+        final String pattern;
+        final int depth;
+        final List<PathMatcher> matchers;
+
+        private Glob(Path base, String pattern, int depth, List<PathMatcher> matchers) {
+            this.base = base;
+            this.pattern = pattern;
+            this.depth = depth;
+            this.matchers = matchers;
+        }
+
+        /**
+         * @return null if {@code path} has no glob pattern characters.
+         */
+        static Glob parse(String path, int maxDepth) {
+            int lastSeparator = lastNonGlobPath(path);
+            if (lastSeparator < 0) {
+                return null;
+            }
+            Path base = Paths.get(path.substring(0, lastSeparator)).toAbsolutePath().normalize();
+            String pattern = path.substring(lastSeparator);
+
+            int depth = pattern.contains("**") ? maxDepth : Math.min(maxDepth, pattern.split(separatorRegex(), -1).length);
+            return new Glob(base, pattern, depth, matchers(pattern, File.separator));
+        }
+
+        boolean matches(Path relative) {
+            return GlobExpander.matches(matchers, relative);
+        }
+
+        /**
+         * Finds the last occurrence of File.separatorChar prior to the first occurrence of glob pattern characters. If there are
+         * no glob pattern characters, returns -1.
+         *
+         * @param path
+         */
+        private static int lastNonGlobPath(String path) {
+            int last = 0;
+            for (int i = 0; i != path.length(); ++i) {
+                if (globChars.contains(path.charAt(i))) {
+                    return last;
+                }
+                if (path.charAt(i) == File.separatorChar) {
+                    last = i + 1;
+                }
+            }
+            return -1; // no glob found.
+        }
+
+        private static String separatorRegex() {
+            return File.separatorChar == '\\' ? "\\\\" : File.separator;
+        }
+    }
+}
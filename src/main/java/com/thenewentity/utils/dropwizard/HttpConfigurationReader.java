@@ -0,0 +1,375 @@
+package com.thenewentity.utils.dropwizard;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.http.Header;
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpStatus;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.util.EntityUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * <p>
+ * A {@link ConfigurationReader} for layers served over {@code http://} and {@code https://}; every other path is handed to a
+ * fallback reader, by default a {@link DefaultConfigurationReader}.
+ * </p>
+ *
+ * <p>
+ * Every response is kept in an on-disk cache along with its {@code ETag}. Once a layer is cached it is revalidated with
+ * {@code If-None-Match}, so an unchanged layer costs a {@code 304} rather than a download; if the server can't be reached, or
+ * answers with an error, the cached copy is used instead. A layer that was fetched or revalidated less than
+ * {@link Builder#setMaxAgeMillis max age} ago is served from the cache without asking the server at all, so that reading the
+ * same layer several times during one merge costs one request. Since a cached copy can become configuration without the
+ * server's say-so, the cache directory must be private to the user the JVM runs as, and entries are checked before use; see
+ * {@link PrivateCacheDirectory}.
+ * </p>
+ *
+ * <p>
+ * Connections are pooled, and {@link #prefetch} fetches several layers concurrently; {@link MultipleConfigurationMerger} calls
+ * it with the whole layer stack before merging. Close the reader to release its connections and threads.
+ * </p>
+ */
+public class HttpConfigurationReader implements StreamingConfigurationReader, Closeable {
+
+    private static Logger log = LoggerFactory.getLogger(HttpConfigurationReader.class);
+
+    private ConfigurationReader fallback;
+    private Path cacheDirectory;
+    private PrivateCacheDirectory privateCacheDirectory;
+    private long maxAgeMillis = 5000;
+    private int maxConnections = 16;
+    private int timeoutMillis = 10000;
+
+    private PoolingHttpClientConnectionManager connectionManager;
+    private CloseableHttpClient client;
+    private ExecutorService executor;
+
+    // When each url was last fetched or revalidated.
+    private final ConcurrentMap<String, Long> validated = new ConcurrentHashMap<>();
+    // One lock per url, so that concurrent reads of one layer share a request.
+    private final ConcurrentMap<String, Object> locks = new ConcurrentHashMap<>();
+
+    HttpConfigurationReader() {
+
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    public static class Builder {
+
+        HttpConfigurationReader result;
+
+        Builder() {
+            result = new HttpConfigurationReader();
+        }
+
+        public HttpConfigurationReader build() {
+            if (result.fallback == null) {
+                result.fallback = new DefaultConfigurationReader();
+            }
+            if (result.cacheDirectory == null) {
+                result.cacheDirectory = PrivateCacheDirectory.defaultPath("dropwizard-multi-config-http");
+            }
+            result.privateCacheDirectory = new PrivateCacheDirectory(result.cacheDirectory);
+            result.connectionManager = new PoolingHttpClientConnectionManager();
+            result.connectionManager.setMaxTotal(result.maxConnections);
+            result.connectionManager.setDefaultMaxPerRoute(result.maxConnections);
+            //@formatter:off
+            RequestConfig requestConfig = RequestConfig.custom()
+                    .setConnectTimeout(result.timeoutMillis)
+                    .setConnectionRequestTimeout(result.timeoutMillis)
+                    .setSocketTimeout(result.timeoutMillis)
+                    .build();
+            result.client = HttpClients.custom()
+                    .setConnectionManager(result.connectionManager)
+                    .setDefaultRequestConfig(requestConfig)
+                    .build();
+            //@formatter:on
+            result.executor = MultipleConfigurationMerger.newLayerExecutor();
+            return result;
+        }
+
+        /**
+         * @param value
+         *            - reads everything that isn't an http(s) url. Defaults to a {@link DefaultConfigurationReader}.
+         */
+        public Builder setFallback(ConfigurationReader value) {
+            result.fallback = value;
+            return this;
+        }
+
+        /**
+         * @param value
+         *            - where downloaded layers are kept. Created on first use, readable only by its owner; an existing
+         *            directory must belong to the user the JVM runs as, and must not be writable by anyone else, or nothing is
+         *            cached. Defaults to {@code ${java.io.tmpdir}/dropwizard-multi-config-http-${user.name}}.
+         */
+        public Builder setCacheDirectory(Path value) {
+            result.cacheDirectory = value;
+            return this;
+        }
+
+        /**
+         * @param value
+         *            - how long after a layer was fetched or revalidated it is used without asking the server again. Defaults
+         *            to 5 seconds; 0 revalidates on every read.
+         */
+        public Builder setMaxAgeMillis(long value) {
+            result.maxAgeMillis = value;
+            return this;
+        }
+
+        /**
+         * @param value
+         *            - the most connections kept open, in total and to any one server. Defaults to 16.
+         */
+        public Builder setMaxConnections(int value) {
+            result.maxConnections = value;
+            return this;
+        }
+
+        /**
+         * @param value
+         *            - the connect, read and connection pool timeout. Defaults to 10 seconds.
+         */
+        public Builder setTimeoutMillis(int value) {
+            result.timeoutMillis = value;
+            return this;
+        }
+    }
+
+    public Path getCacheDirectory() {
+        return cacheDirectory;
+    }
+
+    static boolean isHttp(String path) {
+        return path.startsWith("http://") || path.startsWith("https://");
+    }
+
+    @Override
+    public String readConfiguration(String path) {
+        if (!isHttp(path)) {
+            return fallback.readConfiguration(path);
+        }
+        return new String(fetch(path), StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public InputStream openConfiguration(String path) {
+        if (!isHttp(path)) {
+            if (fallback instanceof StreamingConfigurationReader) {
+                return ((StreamingConfigurationReader) fallback).openConfiguration(path);
+            }
+            return new ByteArrayInputStream(fallback.readConfiguration(path).getBytes(StandardCharsets.UTF_8));
+        }
+        return new ByteArrayInputStream(fetch(path));
+    }
+
+    /**
+     * Fetch or revalidate every http(s) layer among {@code paths} concurrently, so that reading them afterwards is served from
+     * the cache. Returns once all of them are done; failures are left for the reads to report.
+     *
+     * @param paths
+     */
+    public void prefetch(Collection<String> paths) {
+        List<Future<byte[]>> fetches = new ArrayList<>();
+        for (final String path : paths) {
+            if (isHttp(path)) {
+                fetches.add(executor.submit(new Callable<byte[]>() {
+                    @Override
+                    public byte[] call() {
+                        return fetch(path);
+                    }
+                }));
+            }
+        }
+        for (Future<byte[]> fetch : fetches) {
+            try {
+                fetch.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (ExecutionException e) {
+                log.debug("Prefetch failed", e.getCause());
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        executor.shutdownNow();
+        client.close();
+    }
+
+    /**
+     * The body of the layer at {@code url}: from the cache while it's fresh or the server says it hasn't changed, downloaded
+     * otherwise, and from the cache again if the server can't be reached. Empty if there is nothing to serve.
+     */
+    private byte[] fetch(String url) {
+        Object lock = locks.get(url);
+        if (lock == null) {
+            Object newLock = new Object();
+            lock = locks.putIfAbsent(url, newLock);
+            if (lock == null) {
+                lock = newLock;
+            }
+        }
+
+        synchronized (lock) {
+            CachedLayer cached = readCache(url);
+            Long lastValidated = validated.get(url);
+            if (cached != null && lastValidated != null && System.currentTimeMillis() - lastValidated < maxAgeMillis) {
+                return cached.body;
+            }
+
+            HttpGet get = new HttpGet(url);
+            if (cached != null && cached.etag != null) {
+                get.setHeader(HttpHeaders.IF_NONE_MATCH, cached.etag);
+            }
+            try (CloseableHttpResponse response = client.execute(get)) {
+                int status = response.getStatusLine().getStatusCode();
+                if (status == HttpStatus.SC_NOT_MODIFIED && cached != null) {
+                    EntityUtils.consume(response.getEntity());
+                    validated.put(url, System.currentTimeMillis());
+                    return cached.body;
+                }
+                if (status == HttpStatus.SC_OK) {
+                    byte[] body = response.getEntity() == null ? new byte[0] : EntityUtils.toByteArray(response.getEntity());
+                    Header etag = response.getFirstHeader(HttpHeaders.ETAG);
+                    writeCache(url, new CachedLayer(etag == null ? null : etag.getValue(), body));
+                    validated.put(url, System.currentTimeMillis());
+                    return body;
+                }
+                EntityUtils.consume(response.getEntity());
+                log.warn("Fetching " + url + " returned " + response.getStatusLine()
+                        + (cached != null ? "; using the cached copy" : ""));
+            } catch (IOException e) {
+                log.warn("Could not fetch " + url + (cached != null ? "; using the cached copy" : ""), e);
+            }
+            return cached != null ? cached.body : new byte[0];
+        }
+    }
+
+    private static class CachedLayer {
+        final String etag;
+        final byte[] body;
+
+        CachedLayer(String etag, byte[] body) {
+            this.etag = etag;
+            this.body = body;
+        }
+    }
+
+    /**
+     * Each url's entry is a single file holding the url and the ETag (or an empty string), each as a length and that many
+     * bytes of UTF-8, and then the body, so that it is always replaced as a whole. The whole is
+     * {@link PrivateCacheDirectory#seal sealed} under the url.
+     */
+    private Path cacheFile(String url) {
+        return cacheDirectory.resolve(DigestUtils.sha256Hex(url.getBytes(StandardCharsets.UTF_8)) + ".layer");
+    }
+
+    private CachedLayer readCache(String url) {
+        Path file = cacheFile(url);
+        if (!privateCacheDirectory.isUsable() || !Files.isRegularFile(file, LinkOption.NOFOLLOW_LINKS)) {
+            return null;
+        }
+        try {
+            byte[] contents = PrivateCacheDirectory.unseal(url, Files.readAllBytes(file));
+            if (contents == null) {
+                log.debug("Ignoring cache entry " + file + "; it does not match its seal");
+                return null;
+            }
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(contents));
+            if (!url.equals(readString(in))) {
+                return null;
+            }
+            String etag = readString(in);
+            return new CachedLayer(etag.isEmpty() ? null : etag, IOUtils.toByteArray(in));
+        } catch (IOException e) {
+            log.debug("Ignoring unreadable cache entry " + file, e);
+            return null;
+        }
+    }
+
+    private void writeCache(String url, CachedLayer layer) {
+        if (!privateCacheDirectory.isUsable()) {
+            return;
+        }
+        Path file = cacheFile(url);
+        try {
+            Files.createDirectories(file.getParent());
+            Path temporary = Files.createTempFile(file.getParent(), file.getFileName().toString(), ".tmp");
+            try {
+                ByteArrayOutputStream buffer = new ByteArrayOutputStream(layer.body.length + url.length() + 256);
+                DataOutputStream out = new DataOutputStream(buffer);
+                writeString(out, url);
+                writeString(out, layer.etag == null ? "" : layer.etag);
+                out.write(layer.body);
+                out.flush();
+                Files.write(temporary, PrivateCacheDirectory.seal(url, buffer.toByteArray()));
+                try {
+                    Files.move(temporary, file, StandardCopyOption.ATOMIC_MOVE);
+                } catch (AtomicMoveNotSupportedException e) {
+                    Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING);
+                }
+            } finally {
+                Files.deleteIfExists(temporary);
+            }
+        } catch (IOException e) {
+            // The cache is a fallback; failing to populate it must not fail the read.
+            log.debug("Could not write cache entry " + file, e);
+        }
+    }
+
+    /**
+     * Unlike {@link DataOutputStream#writeUTF}, not limited to 64KB.
+     */
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0 || length > in.available()) {
+            throw new IOException("Malformed cache entry");
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,56 @@
+package com.thenewentity.utils.dropwizard;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.RandomAccess;
+
+/**
+ * An immutable list node in a merged configuration tree. See {@link ImmutableConfigMap} for how nodes are shared between
+ * versions of a configuration.
+ */
+public final class ImmutableConfigList extends AbstractList<Object> implements RandomAccess {
+
+    private final Object[] entries;
+    private int hash;
+
+    /**
+     * Takes ownership of {@code entries}, which must already be immutable nodes or scalars. The caller must not touch
+     * {@code entries} afterwards.
+     */
+    ImmutableConfigList(Object[] entries) {
+        this.entries = entries;
+    }
+
+    @Override
+    public Object get(int index) {
+        return entries[index];
+    }
+
+    @Override
+    public int size() {
+        return entries.length;
+    }
+
+    @Override
+    public int hashCode() {
+        // Racy but benign: every thread computes the same value.
+        int h = hash;
+        if (h == 0) {
+            h = super.hashCode();
+            hash = h;
+        }
+        return h;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (o == this) {
+            return true;
+        }
+        if (o instanceof ImmutableConfigList) {
+            ImmutableConfigList other = (ImmutableConfigList) o;
+            return other.hashCode() == hashCode() && Arrays.equals(other.entries, entries);
+        }
+        return super.equals(o);
+    }
+}
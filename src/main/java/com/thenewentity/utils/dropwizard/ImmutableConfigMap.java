@@ -0,0 +1,93 @@
+package com.thenewentity.utils.dropwizard;
+
+import java.util.AbstractMap;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * <p>
+ * An immutable, insertion-ordered map node in a merged configuration tree.
+ * </p>
+ * 
+ * <p>
+ * {@link MultipleConfigurationMerger} never modifies a node once it is built: a merge creates new nodes only along the paths
+ * it changes, and shares every other subtree with its inputs. Keeping many versions of a configuration (a base and its
+ * variants, or the state before and after a reload) therefore costs little more than keeping one, and two versions can be
+ * compared cheaply where they share structure.
+ * </p>
+ */
+public final class ImmutableConfigMap extends AbstractMap<Object, Object> {
+
+    static final ImmutableConfigMap EMPTY = new ImmutableConfigMap(new LinkedHashMap<Object, Object>());
+
+    private final Map<Object, Object> entries;
+    private int hash;
+
+    /**
+     * Takes ownership of {@code entries}, whose values must already be immutable nodes or scalars. The caller must not touch
+     * {@code entries} afterwards.
+     */
+    ImmutableConfigMap(LinkedHashMap<Object, Object> entries) {
+        this.entries = Collections.unmodifiableMap(entries);
+    }
+
+    @Override
+    public int size() {
+        return entries.size();
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return entries.isEmpty();
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return entries.containsKey(key);
+    }
+
+    @Override
+    public Object get(Object key) {
+        return entries.get(key);
+    }
+
+    @Override
+    public Set<Object> keySet() {
+        return entries.keySet();
+    }
+
+    @Override
+    public Collection<Object> values() {
+        return entries.values();
+    }
+
+    @Override
+    public Set<Map.Entry<Object, Object>> entrySet() {
+        return entries.entrySet();
+    }
+
+    @Override
+    public int hashCode() {
+        // Racy but benign: every thread computes the same value.
+        int h = hash;
+        if (h == 0) {
+            h = entries.hashCode();
+            hash = h;
+        }
+        return h;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (o == this) {
+            return true;
+        }
+        if (o instanceof ImmutableConfigMap && o.hashCode() != hashCode()) {
+            return false;
+        }
+        return super.equals(o);
+    }
+}
@@ -0,0 +1,215 @@
+package com.thenewentity.utils.dropwizard;
+
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * <p>
+ * A merge of a layer stack which keeps a snapshot of the merged result after each layer. Merging the stack again only parses
+ * and merges from the first layer whose path or contents changed; everything before it is taken from the snapshot. Unchanged
+ * layers after that point are replayed from their previously parsed trees rather than parsed again.
+ * </p>
+ *
+ * <p>
+ * A layer which is a file whose size and modification time are the ones it had when it was last read is taken to be unchanged
+ * without being read again, as in {@link ConfigurationSnapshot}; only the others are read and digested to find out. So merging
+ * again after one file changed costs one file's worth of reading, not the whole stack's.
+ * </p>
+ *
+ * <p>
+ * Obtain one from {@link MultipleConfigurationMerger#incrementalMerge()}. Calls to {@link #merge} are serialized.
+ * </p>
+ */
+public class IncrementalMerge {
+
+    /** As in {@link ParsedLayerCache}: a file modified this close to being read may change again without its time changing. */
+    private static final long RACY_WINDOW_MILLIS = 2000;
+
+    private final MultipleConfigurationMerger merger;
+
+    // Guarded by this.
+    private List<Layer> layers = Collections.emptyList();
+
+    IncrementalMerge(MultipleConfigurationMerger merger) {
+        this.merger = merger;
+    }
+
+    /**
+     * The outcome of one {@link IncrementalMerge#merge}.
+     */
+    public static class Result {
+
+        private final Map<Object, Object> config;
+        private final int firstReplayedLayer;
+        private final List<String> reparsedLayers;
+
+        Result(Map<Object, Object> config, int firstReplayedLayer, List<String> reparsedLayers) {
+            this.config = config;
+            this.firstReplayedLayer = firstReplayedLayer;
+            this.reparsedLayers = Collections.unmodifiableList(reparsedLayers);
+        }
+
+        /**
+         * The merged configuration, as {@link MultipleConfigurationMerger#mergeConfigs} would have returned it.
+         */
+        public Map<Object, Object> getConfig() {
+            return config;
+        }
+
+        /**
+         * The index of the first layer that had to be merged again; equal to the number of layers if nothing changed.
+         */
+        public int getFirstReplayedLayer() {
+            return firstReplayedLayer;
+        }
+
+        /**
+         * The paths of the layers which were parsed during this merge, in merge order.
+         */
+        public List<String> getReparsedLayers() {
+            return reparsedLayers;
+        }
+    }
+
+    private static class Layer {
+        final String path;
+        final Version version;
+        final Object parsed;
+        final Map<Object, Object> snapshot;
+
+        Layer(String path, Version version, Object parsed, Map<Object, Object> snapshot) {
+            this.path = path;
+            this.version = version;
+            this.parsed = parsed;
+            this.snapshot = snapshot;
+        }
+    }
+
+    /**
+     * The digest of a layer, along with its file's size and modification time before it was read, if it is a file.
+     */
+    private static class Version {
+        final String digest;
+        final BasicFileAttributes attributes;
+        final long read;
+
+        Version(String digest, BasicFileAttributes attributes, long read) {
+            this.digest = digest;
+            this.attributes = attributes;
+            this.read = read;
+        }
+
+        /**
+         * Whether a file which now has {@code current} attributes can't have changed since this version was read.
+         */
+        boolean isUnchanged(BasicFileAttributes current) {
+            if (attributes == null || current == null) {
+                return false;
+            }
+            long modified = attributes.lastModifiedTime().toMillis();
+            //@formatter:off
+            return modified < read - RACY_WINDOW_MILLIS
+                    && current.lastModifiedTime().toMillis() == modified
+                    && current.size() == attributes.size();
+            //@formatter:on
+        }
+    }
+
+    /**
+     * Merge {@code paths}, reusing whatever the previous call left behind.
+     *
+     * @param paths
+     * @return the merged configuration, and what it took to produce it.
+     */
+    public Result merge(Collection<String> paths) {
+        return merge(paths, Collections.<String, ConfigurationReaders.DigestedLayer> emptyMap());
+    }
+
+    /**
+     * Merge {@code paths}, taking the layers in {@code verified} as {@link MultipleConfigurationMerger#verifyDigests} parsed
+     * them rather than reading them again.
+     */
+    synchronized Result merge(Collection<String> paths, Map<String, ConfigurationReaders.DigestedLayer> verified) {
+        List<String> pathList = paths == null ? Collections.<String> emptyList() : new ArrayList<>(paths);
+        merger.prefetchLayers(pathList);
+
+        Map<String, Object> parsedByDigest = new HashMap<>();
+        Map<String, Version> versionsByPath = new HashMap<>();
+        for (Layer layer : layers) {
+            parsedByDigest.put(layer.version.digest, layer.parsed);
+            versionsByPath.put(layer.path, layer.version);
+        }
+
+        List<Layer> next = new ArrayList<>(pathList.size());
+        List<String> reparsed = new ArrayList<>();
+        int firstReplayed = -1;
+        Map<Object, Object> config = null;
+
+        for (int i = 0; i < pathList.size(); ++i) {
+            String path = pathList.get(i);
+            ConfigurationReaders.DigestedLayer verifiedLayer = verified.get(path);
+            // A verified layer has just been read, so its file's attributes say nothing about what was read.
+            Version version = verifiedLayer != null ? new Version(verifiedLayer.digest, null, 0)
+                    : versionOf(path, versionsByPath.get(path));
+            String digest = version.digest;
+
+            if (firstReplayed < 0) {
+                Layer previous = i < layers.size() ? layers.get(i) : null;
+                if (previous != null && previous.path.equals(path) && previous.version.digest.equals(digest)) {
+                    next.add(previous);
+                    continue;
+                }
+                firstReplayed = i;
+                config = i == 0 ? ImmutableConfigMap.EMPTY : next.get(i - 1).snapshot;
+            }
+
+            Object parsed;
+            if (parsedByDigest.containsKey(digest)) {
+                parsed = parsedByDigest.get(digest);
+            } else if (verifiedLayer != null) {
+                parsed = verifiedLayer.tree;
+                parsedByDigest.put(digest, parsed);
+                reparsed.add(path);
+            } else {
+                ConfigurationReaders.DigestedLayer layer = merger.parseLayerWithDigest(path);
+                parsed = layer.tree;
+                // Remember what was actually parsed, in case the layer changed since it was digested.
+                if (!layer.digest.equals(digest)) {
+                    version = new Version(layer.digest, null, 0);
+                }
+                parsedByDigest.put(version.digest, parsed);
+                reparsed.add(path);
+            }
+
+            // Merging never modifies its inputs, so parsed layers and snapshots can be kept and shared as they are.
+            config = merger.mergeLayer(config, path, parsed);
+            next.add(new Layer(path, version, parsed, config));
+        }
+
+        if (firstReplayed < 0) {
+            firstReplayed = pathList.size();
+            config = next.isEmpty() ? ImmutableConfigMap.EMPTY : next.get(next.size() - 1).snapshot;
+        }
+
+        layers = next;
+        return new Result(merger.substitute(config), firstReplayed, reparsed);
+    }
+
+    /**
+     * The current version of the layer at {@code path}: {@code previous} if its file can't have changed since, otherwise read
+     * and digested afresh.
+     */
+    private Version versionOf(String path, Version previous) {
+        BasicFileAttributes attributes = ConfigurationReaders.fileAttributes(path);
+        if (previous != null && previous.isUnchanged(attributes)) {
+            return previous;
+        }
+        long read = System.currentTimeMillis();
+        return new Version(merger.digestLayer(path), attributes, read);
+    }
+}
@@ -0,0 +1,129 @@
+package com.thenewentity.utils.dropwizard;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Decorates a {@link ConfigurationReader}, reporting the time spent reading each layer and the bytes read to
+ * {@link ConfigurationMetrics}. A streamed layer is timed only while the parser is actually waiting on a read, and reported
+ * when the stream is closed.
+ */
+class InstrumentedConfigurationReader implements ConfigurationReader {
+
+    private final ConfigurationReader delegate;
+    final ConfigurationMetrics metrics;
+
+    private InstrumentedConfigurationReader(ConfigurationReader delegate, ConfigurationMetrics metrics) {
+        this.delegate = delegate;
+        this.metrics = metrics;
+    }
+
+    /**
+     * @return {@code reader} itself if {@code metrics} is disabled; otherwise a decorator which streams exactly when
+     *         {@code reader} does.
+     */
+    static ConfigurationReader wrap(ConfigurationReader reader, ConfigurationMetrics metrics) {
+        if (!metrics.isEnabled()) {
+            return reader;
+        }
+        if (reader instanceof StreamingConfigurationReader) {
+            return new Streaming((StreamingConfigurationReader) reader, metrics);
+        }
+        return new InstrumentedConfigurationReader(reader, metrics);
+    }
+
+    @Override
+    public String readConfiguration(String path) {
+        ConfigurationMetrics.Stopwatch read = metrics.start(ConfigurationMetrics.READ, path);
+        String result;
+        try {
+            result = delegate.readConfiguration(path);
+        } finally {
+            read.stop();
+        }
+        metrics.update(ConfigurationMetrics.BYTES, path, ConfigurationReaders.utf8Length(result));
+        return result;
+    }
+
+    private static class Streaming extends InstrumentedConfigurationReader implements StreamingConfigurationReader {
+
+        private final StreamingConfigurationReader delegate;
+
+        Streaming(StreamingConfigurationReader delegate, ConfigurationMetrics metrics) {
+            super(delegate, metrics);
+            this.delegate = delegate;
+        }
+
+        @Override
+        public InputStream openConfiguration(String path) {
+            long start = System.nanoTime();
+            InputStream stream = delegate.openConfiguration(path);
+            return new MeteredInputStream(stream, path, System.nanoTime() - start);
+        }
+
+        private class MeteredInputStream extends FilterInputStream {
+
+            private final String path;
+            private long nanos;
+            private long bytes;
+            private boolean closed;
+
+            MeteredInputStream(InputStream in, String path, long openNanos) {
+                super(in);
+                this.path = path;
+                this.nanos = openNanos;
+            }
+
+            @Override
+            public int read() throws IOException {
+                long start = System.nanoTime();
+                try {
+                    int result = super.read();
+                    if (result >= 0) {
+                        ++bytes;
+                    }
+                    return result;
+                } finally {
+                    nanos += System.nanoTime() - start;
+                }
+            }
+
+            @Override
+            public int read(byte[] buffer, int offset, int length) throws IOException {
+                long start = System.nanoTime();
+                try {
+                    int result = super.read(buffer, offset, length);
+                    if (result > 0) {
+                        bytes += result;
+                    }
+                    return result;
+                } finally {
+                    nanos += System.nanoTime() - start;
+                }
+            }
+
+            @Override
+            public long skip(long count) throws IOException {
+                long start = System.nanoTime();
+                try {
+                    long result = super.skip(count);
+                    bytes += result;
+                    return result;
+                } finally {
+                    nanos += System.nanoTime() - start;
+                }
+            }
+
+            @Override
+            public void close() throws IOException {
+                if (!closed) {
+                    closed = true;
+                    metrics.time(ConfigurationMetrics.READ, path, nanos);
+                    metrics.update(ConfigurationMetrics.BYTES, path, bytes);
+                }
+                super.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,243 @@
+package com.thenewentity.utils.dropwizard;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.RandomAccess;
+
+import org.yaml.snakeyaml.error.YAMLException;
+
+/**
+ * <p>
+ * Marks the lists of a layer which are to be merged by key rather than by position. A list is keyed when a rule given to
+ * {@link MultipleConfigurationMerger.Builder#setListKey} names its path, or, if inline keys are enabled, when its first entry
+ * is a marker naming the key field:
+ * </p>
+ *
+ * <pre>
+ * upstreams:
+ *   - $key: name
+ *   - name: billing
+ *     port: 8443
+ *   - name: legacy
+ *     $op: delete
+ * </pre>
+ *
+ * <p>
+ * Each entry of a keyed list is matched against the entry of the list below it with the same value of the key field, and by
+ * default merged with it. {@code $op: replace} replaces the matching entry instead, and {@code $op: delete} removes it. Entries
+ * which match nothing are appended, in order. The {@code $key} marker and {@code $op} fields never reach the merged
+ * configuration.
+ * </p>
+ *
+ * <p>
+ * Lists are marked when a layer is parsed, so the merge itself doesn't need to know where it is in the tree. Rule paths name
+ * map keys only; the entries of any list along the way are searched as well, so {@code clusters.hosts} applies to the
+ * {@code hosts} of every cluster.
+ * </p>
+ */
+final class KeyedLists {
+
+    static final String KEY_MARKER = "$key";
+    static final String OPERATION = "$op";
+
+    enum Operation {
+        MERGE, REPLACE, DELETE
+    }
+
+    private final Rule rules;
+    private final boolean inline;
+    private final String fingerprint;
+
+    /**
+     * @param rules
+     *            - key fields, by the path of the lists they apply to
+     * @param inline
+     *            - whether {@code $key} markers are honored
+     * @throws IllegalArgumentException
+     *             if one of the paths is malformed or addresses a list entry.
+     */
+    KeyedLists(Map<String, String> rules, boolean inline) {
+        this.inline = inline;
+        this.fingerprint = rules + ",inline=" + inline;
+        if (rules.isEmpty()) {
+            this.rules = null;
+            return;
+        }
+        this.rules = new Rule();
+        for (Map.Entry<String, String> rule : rules.entrySet()) {
+            List<Object> segments;
+            try {
+                segments = PathKeys.parse(rule.getKey(), "a list key rule");
+            } catch (YAMLException e) {
+                throw new IllegalArgumentException(e.getMessage(), e);
+            }
+            Rule node = this.rules;
+            for (Object segment : segments) {
+                if (!(segment instanceof String)) {
+                    throw new IllegalArgumentException("List key rule '" + rule.getKey() + "' may only name map keys");
+                }
+                Rule child = node.children.get(segment);
+                if (child == null) {
+                    child = new Rule();
+                    node.children.put((String) segment, child);
+                }
+                node = child;
+            }
+            node.key = rule.getValue();
+        }
+    }
+
+    boolean isEnabled() {
+        return rules != null || inline;
+    }
+
+    /**
+     * Describes the rules, for {@link MultipleConfigurationMerger#getOptionsFingerprint()}.
+     */
+    @Override
+    public String toString() {
+        return fingerprint;
+    }
+
+    /**
+     * @param layer
+     *            - a parsed, frozen layer
+     * @param path
+     *            - where the layer came from, for error messages
+     * @return {@code layer} with its keyed lists marked; {@code layer} itself if it has none.
+     */
+    Object mark(Object layer, String path) {
+        return isEnabled() ? mark(layer, rules, path) : layer;
+    }
+
+    private Object mark(Object node, Rule rule, String path) {
+        if (rule == null && !inline) {
+            return node;
+        }
+        if (node instanceof Map<?, ?>) {
+            Map<?, ?> map = (Map<?, ?>) node;
+            LinkedHashMap<Object, Object> marked = null;
+            for (Map.Entry<?, ?> entry : map.entrySet()) {
+                Rule child = rule == null ? null : rule.children.get(entry.getKey());
+                Object value = mark(entry.getValue(), child, path);
+                if (value != entry.getValue()) {
+                    if (marked == null) {
+                        marked = new LinkedHashMap<Object, Object>(map);
+                    }
+                    marked.put(entry.getKey(), value);
+                }
+            }
+            return marked == null ? node : new ImmutableConfigMap(marked);
+        } else if (node instanceof List<?>) {
+            List<?> list = (List<?>) node;
+            String key = rule == null ? null : rule.key;
+            int first = 0;
+            if (inline && !list.isEmpty() && isMarker(list.get(0))) {
+                Object marker = ((Map<?, ?>) list.get(0)).get(KEY_MARKER);
+                if (!(marker instanceof String)) {
+                    throw new YAMLException("The " + KEY_MARKER + " marker in " + path + " must name a field");
+                }
+                key = (String) marker;
+                first = 1;
+            }
+            // The entries of a list are searched with the rule of the list itself.
+            Object[] entries = new Object[list.size() - first];
+            boolean changed = first > 0;
+            for (int i = 0; i < entries.length; ++i) {
+                entries[i] = mark(list.get(i + first), rule, path);
+                changed |= entries[i] != list.get(i + first);
+            }
+            if (key != null) {
+                return new KeyedList(key, entries, path);
+            }
+            return changed ? new ImmutableConfigList(entries) : node;
+        } else {
+            return node;
+        }
+    }
+
+    private static boolean isMarker(Object entry) {
+        return entry instanceof Map<?, ?> && ((Map<?, ?>) entry).size() == 1 && ((Map<?, ?>) entry).containsKey(KEY_MARKER);
+    }
+
+    private static class Rule {
+        private final Map<Object, Rule> children = new HashMap<>();
+        private String key;
+    }
+
+    /**
+     * A list of a layer to be merged by {@link #getKey()}. As a list, it holds the entries that survive when there is nothing
+     * below it to merge with, so it is a faithful node wherever it ends up; the merge uses {@link #getOperations()} instead.
+     */
+    static final class KeyedList extends AbstractList<Object> implements RandomAccess {
+
+        private final String key;
+        private final Object[] operations;
+        private final Operation[] kinds;
+        private final ImmutableConfigList entries;
+
+        private KeyedList(String key, Object[] operations, String path) {
+            this.key = key;
+            this.operations = operations;
+            this.kinds = new Operation[operations.length];
+            List<Object> surviving = new ArrayList<>(operations.length);
+            for (int i = 0; i < operations.length; ++i) {
+                kinds[i] = Operation.MERGE;
+                if (operations[i] instanceof Map<?, ?> && ((Map<?, ?>) operations[i]).containsKey(OPERATION)) {
+                    LinkedHashMap<Object, Object> entry = new LinkedHashMap<Object, Object>((Map<?, ?>) operations[i]);
+                    Object kind = entry.remove(OPERATION);
+                    try {
+                        kinds[i] = Operation.valueOf(String.valueOf(kind).toUpperCase());
+                    } catch (IllegalArgumentException e) {
+                        throw new YAMLException("Unknown " + OPERATION + " '" + kind + "' in " + path
+                                + "; expected merge, replace or delete");
+                    }
+                    operations[i] = new ImmutableConfigMap(entry);
+                }
+                if (kinds[i] != Operation.DELETE) {
+                    surviving.add(operations[i]);
+                }
+            }
+            this.entries = new ImmutableConfigList(surviving.toArray());
+        }
+
+        String getKey() {
+            return key;
+        }
+
+        /**
+         * The entries of the layer's list, including the deleted ones, with their {@code $op} fields removed.
+         */
+        Object[] getOperations() {
+            return operations;
+        }
+
+        Operation getOperation(int index) {
+            return kinds[index];
+        }
+
+        @Override
+        public Object get(int index) {
+            return entries.get(index);
+        }
+
+        @Override
+        public int size() {
+            return entries.size();
+        }
+
+        @Override
+        public int hashCode() {
+            return entries.hashCode();
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o == this || entries.equals(o);
+        }
+    }
+}
@@ -0,0 +1,176 @@
+package com.thenewentity.utils.dropwizard;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * <p>
+ * Expands manifest layers: an entry such as {@code @layers.manifest} among the layers stands for the layers the manifest
+ * lists, in order, so that a stack of dozens of layers needn't be spelled out on the command line. Each line of a manifest
+ * names one layer, optionally followed by the SHA-256 of its contents:
+ * </p>
+ *
+ * <pre>
+ * # Generated by the orchestrator
+ * base.yaml         sha256:9f86d081884c7d659a2feaa0c55ad015a3bf4f1b2b0b822cd15d6c15b0f00a08
+ * region/us-east.yaml
+ * conf.d/*.yaml
+ * </pre>
+ *
+ * <p>
+ * Relative paths are relative to the manifest, and may be glob patterns, {@code classpath:} resources or urls, just as on the
+ * command line. A glob pattern can't have a digest, since it stands for any number of layers. Blank lines and lines starting
+ * with {@code #} are skipped. Manifests can't list other manifests.
+ * </p>
+ *
+ * <p>
+ * The digests are collected for {@link MultipleConfigurationMerger#verifyDigests}, which checks them all concurrently before
+ * the merge; with a {@link ParsedLayerCache}, a layer whose digest the cache already vouches for is neither read nor parsed.
+ * </p>
+ */
+final class LayerManifest {
+
+    static final String PREFIX = "@";
+
+    private static final Pattern DIGESTED = Pattern.compile("(.*?)\\s+(?:sha256:)?([0-9a-fA-F]{64})");
+
+    private LayerManifest() {
+
+    }
+
+    static boolean isManifest(String path) {
+        return path.startsWith(PREFIX);
+    }
+
+    /**
+     * Replace every manifest among {@code patterns} with the layers it lists.
+     *
+     * @param patterns
+     * @param reader
+     *            - what to read the manifests with
+     * @param watchTargets
+     *            - manifests which are files are added here, so that editing one is noticed
+     * @param digests
+     *            - filled in with the digest of each layer the manifests give one for, by path
+     * @throws IOException
+     *             if a manifest is missing or malformed.
+     */
+    static List<String> expand(List<String> patterns, ConfigurationReader reader, Map<Path, List<PathMatcher>> watchTargets,
+            Map<String, String> digests) throws IOException {
+        List<String> expanded = null;
+        for (int i = 0; i < patterns.size(); ++i) {
+            String pattern = patterns.get(i);
+            if (!isManifest(pattern)) {
+                if (expanded != null) {
+                    expanded.add(pattern);
+                }
+                continue;
+            }
+            if (expanded == null) {
+                expanded = new ArrayList<>(patterns.subList(0, i));
+            }
+            read(pattern.substring(PREFIX.length()), reader, watchTargets, expanded, digests);
+        }
+        return expanded == null ? patterns : expanded;
+    }
+
+    private static void read(String manifest, ConfigurationReader reader, Map<Path, List<PathMatcher>> watchTargets,
+            List<String> layers, Map<String, String> digests) throws IOException {
+        boolean isFile = isFilePath(manifest);
+        if (isFile) {
+            manifest = expandHome(manifest);
+            GlobExpander.addFileWatchTarget(watchTargets, manifest);
+        }
+        String content = reader.readConfiguration(manifest);
+        if (content.isEmpty() && isFile && !Files.exists(Paths.get(manifest))) {
+            throw new NoSuchFileException(manifest);
+        }
+
+        int lineNumber = 0;
+        for (String line : content.split("\r?\n")) {
+            ++lineNumber;
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+            String digest = null;
+            Matcher digested = DIGESTED.matcher(line);
+            if (digested.matches()) {
+                line = digested.group(1);
+                digest = digested.group(2).toLowerCase();
+            }
+            if (isManifest(line)) {
+                throw new IOException("Manifest " + manifest + " line " + lineNumber + ": manifests can't list other manifests");
+            }
+            if (digest != null && isGlob(line)) {
+                throw new IOException("Manifest " + manifest + " line " + lineNumber + ": a glob pattern can't have a digest");
+            }
+            String layer = resolve(manifest, line);
+            if (digest != null) {
+                String previous = digests.put(layer, digest);
+                if (previous != null && !previous.equals(digest)) {
+                    throw new IOException("Manifest " + manifest + " line " + lineNumber + ": " + layer
+                            + " was already listed with a different digest");
+                }
+            }
+            layers.add(layer);
+        }
+    }
+
+    /**
+     * Resolve {@code entry} against the location of {@code manifest}, unless it stands on its own. A {@code ~} is expanded
+     * here, as {@link GlobExpander} would, so a digest is recorded under the path the layer is later read from.
+     */
+    private static String resolve(String manifest, String entry) {
+        if (entry.startsWith("~" + File.separator)) {
+            return expandHome(entry);
+        }
+        if (HttpConfigurationReader.isHttp(entry) || ClasspathLayers.isClasspath(entry) || new File(entry).isAbsolute()) {
+            return entry;
+        }
+        if (HttpConfigurationReader.isHttp(manifest)) {
+            return URI.create(manifest).resolve(entry).toString();
+        }
+        if (ClasspathLayers.isClasspath(manifest)) {
+            int slash = manifest.lastIndexOf('/');
+            return (slash >= 0 ? manifest.substring(0, slash + 1) : ClasspathLayers.PREFIX) + entry;
+        }
+        // Entries may be glob patterns, which not every platform accepts as a Path.
+        File parent = new File(manifest).getParentFile();
+        return parent == null ? entry : new File(parent, entry).getPath();
+    }
+
+    /**
+     * Whether {@code entry} is a pattern which {@link GlobExpander} expands, rather than the path of one layer.
+     */
+    private static boolean isGlob(String entry) {
+        if (HttpConfigurationReader.isHttp(entry)) {
+            return false;
+        }
+        for (int i = 0; i < entry.length(); ++i) {
+            if (GlobExpander.isGlobChar(entry.charAt(i))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean isFilePath(String path) {
+        return !HttpConfigurationReader.isHttp(path) && !ClasspathLayers.isClasspath(path);
+    }
+
+    private static String expandHome(String path) {
+        return path.replaceFirst("^~" + File.separator, System.getProperty("user.home") + File.separator);
+    }
+}
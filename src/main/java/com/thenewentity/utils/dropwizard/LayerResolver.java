@@ -0,0 +1,23 @@
+package com.thenewentity.utils.dropwizard;
+
+import java.util.regex.Pattern;
+
+import org.yaml.snakeyaml.nodes.Tag;
+import org.yaml.snakeyaml.resolver.Resolver;
+
+/**
+ * <p>
+ * Resolves plain scalars as SnakeYAML does, except that timestamps such as {@code 2017-01-01} stay strings. That is how
+ * DropWizard's own yaml parsing (and {@link StreamingMerge}) reads them; a {@link java.util.Date} in the merged tree would
+ * instead be bound as epoch milliseconds. An explicit {@code !!timestamp} tag is still honoured.
+ * </p>
+ */
+final class LayerResolver extends Resolver {
+
+    @Override
+    public void addImplicitResolver(Tag tag, Pattern regexp, String first) {
+        if (!Tag.TIMESTAMP.equals(tag)) {
+            super.addImplicitResolver(tag, regexp, first);
+        }
+    }
+}
@@ -4,6 +4,7 @@ import io.dropwizard.Application;
 import io.dropwizard.Configuration;
 import io.dropwizard.setup.Bootstrap;
 
+import com.codahale.metrics.MetricRegistry;
 import com.fasterxml.jackson.databind.ObjectMapper;
 
 abstract public class MultipleConfigurationApplication<T extends Configuration> extends Application<T> {
@@ -12,6 +13,28 @@ abstract public class MultipleConfigurationApplication<T extends Configuration>
     private final MultipleConfigurationProvider multipleConfigurationProvider;
 
     public MultipleConfigurationApplication(String[] arguments, String[] defaultArguments, ObjectMapper mapper) {
+        this(arguments, defaultArguments, MultipleConfigurationMerger.builder().setObjectMapper(mapper).build());
+    }
+
+    /**
+     * Use this constructor to configure the merger yourself, for example to give it a {@link ParsedLayerCache} or an executor.
+     * If the merger has a {@link MultipleConfigurationMerger.Builder#setMetricRegistry metric registry}, its metrics are
+     * registered with DropWizard's, and show up on the admin port; the other constructors don't give it one.
+     */
+    public MultipleConfigurationApplication(String[] arguments, String[] defaultArguments, MultipleConfigurationMerger merger) {
+        this(arguments, defaultArguments, merger, false);
+    }
+
+    /**
+     * @param loadInBackground
+     *            - if true, and the command line names the configuration after a '--', start loading it straight away on a
+     *            background thread, so that reading and merging the layers overlaps with {@link #initialize} and the
+     *            bundles' setup; see {@link MultipleConfigurationProvider#preload}. Setting a
+     *            {@link MultipleConfigurationProvider#setSnapshot snapshot} afterwards discards what was preloaded, so the
+     *            two don't combine.
+     */
+    public MultipleConfigurationApplication(String[] arguments, String[] defaultArguments, MultipleConfigurationMerger merger,
+            boolean loadInBackground) {
         //@formatter:off
         mungedCommandLine = MungedCommandLine.builder()
                 .setOriginalArguments(arguments)
@@ -22,9 +45,13 @@ abstract public class MultipleConfigurationApplication<T extends Configuration>
         //@formatter:off
         multipleConfigurationProvider = MultipleConfigurationProvider.builder()
                 .setOverrideFiles(mungedCommandLine.getExtraArguments())
-                .setMultipleConfigurationMerger(MultipleConfigurationMerger.builder().setObjectMapper(mapper).build())
+                .setMultipleConfigurationMerger(merger)
                 .build();
         //@formatter:on
+
+        if (loadInBackground && mungedCommandLine.getConfigurationPath() != null) {
+            multipleConfigurationProvider.preload(mungedCommandLine.getConfigurationPath());
+        }
     }
 
     public MungedCommandLine getMungedCommandLine() {
@@ -41,5 +68,14 @@ abstract public class MultipleConfigurationApplication<T extends Configuration>
 
     public void initialize(Bootstrap<T> bootstrap) {
         bootstrap.setConfigurationSourceProvider(getMultipleConfigurationProvider());
+        // Binds the merged tree as it is, without writing it out as yaml and parsing it back in.
+        bootstrap.setConfigurationFactoryFactory(new MultipleConfigurationFactoryFactory<T>());
+        bootstrap.addCommand(new SnapshotCommand(getMultipleConfigurationProvider()));
+
+        MetricRegistry metrics = multipleConfigurationProvider.getMetricRegistry();
+        if (metrics != null) {
+            // The configuration is loaded after initialize(), so every metric it reports is forwarded as it appears.
+            ConfigurationMetrics.forward(metrics, bootstrap.getMetricRegistry());
+        }
     }
 }
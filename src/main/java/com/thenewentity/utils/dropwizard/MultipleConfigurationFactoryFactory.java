@@ -0,0 +1,54 @@
+package com.thenewentity.utils.dropwizard;
+
+import io.dropwizard.configuration.ConfigurationException;
+import io.dropwizard.configuration.ConfigurationFactory;
+import io.dropwizard.configuration.ConfigurationSourceProvider;
+import io.dropwizard.configuration.DefaultConfigurationFactoryFactory;
+import io.dropwizard.configuration.YamlConfigurationFactory;
+
+import java.io.IOException;
+
+import javax.validation.Validator;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * <p>
+ * Creates configuration factories which, given a {@link MultipleConfigurationProvider}, bind the merged tree it holds in
+ * memory, rather than having the provider write the tree out as yaml for DropWizard to parse back in. Everything else is as
+ * DropWizard's own factories do it: {@code dw.}-prefixed system properties still override the configuration, and the result
+ * is still validated. Any other provider is read as yaml, as usual.
+ * </p>
+ *
+ * <p>
+ * {@link MultipleConfigurationApplication} installs one in {@code initialize}; an application which sets up its own
+ * {@code Bootstrap} can install one with {@code bootstrap.setConfigurationFactoryFactory}.
+ * </p>
+ */
+public class MultipleConfigurationFactoryFactory<T> extends DefaultConfigurationFactoryFactory<T> {
+
+    @Override
+    public ConfigurationFactory<T> create(Class<T> klass, Validator validator, ObjectMapper objectMapper, String propertyPrefix) {
+        return new Factory<>(klass, validator, configureObjectMapper(objectMapper.copy()), propertyPrefix);
+    }
+
+    static class Factory<T> extends YamlConfigurationFactory<T> {
+
+        private final ObjectMapper mapper;
+
+        Factory(Class<T> klass, Validator validator, ObjectMapper mapper, String propertyPrefix) {
+            super(klass, validator, mapper, propertyPrefix);
+            this.mapper = mapper;
+        }
+
+        @Override
+        public T build(ConfigurationSourceProvider provider, String path) throws IOException, ConfigurationException {
+            if (!(provider instanceof MultipleConfigurationProvider)) {
+                return super.build(provider, path);
+            }
+            JsonNode node = mapper.valueToTree(((MultipleConfigurationProvider) provider).openTree(path));
+            return build(node, path);
+        }
+    }
+}
@@ -1,25 +1,75 @@
 package com.thenewentity.utils.dropwizard;
 
 import java.io.IOException;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.codahale.metrics.MetricRegistry;
 import com.fasterxml.jackson.databind.ObjectMapper;
-import com.fasterxml.jackson.dataformat.yaml.YAMLFactory;
 import org.yaml.snakeyaml.Yaml;
 
+/**
+ * <p>
+ * Merges layers of yaml configuration into one effective configuration.
+ * </p>
+ *
+ * <p>
+ * A merger is safe to share between threads once built: it keeps no state between merges other than thread-safe caches, each
+ * thread parses with its own {@link Yaml}, and what it returns is immutable, so any number of configurations (for several
+ * tenants, say) can be merged at once in the same JVM.
+ * </p>
+ */
 public class MultipleConfigurationMerger {
 
     private static Logger log = LoggerFactory.getLogger(MultipleConfigurationMerger.class);
 
     private ConfigurationReader configurationReader;
     private ObjectMapper mapper;
-    private static final Yaml yaml = new Yaml();
+    private ExecutorService executor;
+    private ForkJoinPool forkJoinPool;
+    private ParsedLayerCache parsedLayerCache;
+    private boolean expandPathKeys;
+    private final Map<String, String> listKeys = new LinkedHashMap<>();
+    private boolean inlineListKeys;
+    private KeyedLists keyedLists;
+    private VariableSubstitution substitution;
+    private boolean streamingMerge;
+    private long maxLayerBytes;
+    private long maxNodes;
+    private long maxDepth;
+    private long maxAliasExpansions;
+    private ParserLimits parserLimits;
+    private ConfigurationMetrics metrics = ConfigurationMetrics.NONE;
+    private boolean countLayerNodes;
+    // The configurationReader, instrumented if there are metrics.
+    private ConfigurationReader layerReader;
+    // Yaml instances are neither thread-safe nor cheap to create, so each thread keeps its own.
+    private final ThreadLocal<Yaml> yaml = new ThreadLocal<Yaml>() {
+        @Override
+        protected Yaml initialValue() {
+            return parserLimits.newYaml();
+        }
+    };
 
     public static Builder builder() {
         return new Builder();
@@ -40,6 +90,10 @@ public class MultipleConfigurationMerger {
             if (result.configurationReader == null) {
                 result.configurationReader = new DefaultConfigurationReader();
             }
+            result.layerReader = InstrumentedConfigurationReader.wrap(result.configurationReader, result.metrics);
+            result.keyedLists = new KeyedLists(result.listKeys, result.inlineListKeys);
+            result.parserLimits = new ParserLimits(result.maxLayerBytes, result.maxNodes, result.maxDepth,
+                    result.maxAliasExpansions);
             return result;
         }
 
@@ -52,6 +106,198 @@ public class MultipleConfigurationMerger {
             result.mapper = value;
             return this;
         }
+
+        /**
+         * @param value
+         *            - if non-null, every layer passed to {@link MultipleConfigurationMerger#mergeConfigs} is read and parsed
+         *            concurrently on this executor. Layers are still merged in the order given. The merger never shuts the
+         *            executor down; see {@link MultipleConfigurationMerger#newLayerExecutor()} for a suitable default.
+         */
+        public Builder setExecutor(ExecutorService value) {
+            result.executor = value;
+            return this;
+        }
+
+        /**
+         * @param value
+         *            - the pool {@link MultipleConfigurationMerger#mergeTenants} merges overlays on. If null, each call creates a
+         *            pool of its own and shuts it down afterwards.
+         */
+        public Builder setForkJoinPool(ForkJoinPool value) {
+            result.forkJoinPool = value;
+            return this;
+        }
+
+        /**
+         * @param value
+         *            - if non-null, layers are looked up in this cache before being parsed, and stored in it afterwards.
+         */
+        public Builder setParsedLayerCache(ParsedLayerCache value) {
+            result.parsedLayerCache = value;
+            return this;
+        }
+
+        /**
+         * @param value
+         *            - if true, top-level keys such as {@code server.applicationConnectors[0].port} or
+         *            {@code logging.loggers."org.foo"} are treated as paths into the configuration rather than as plain keys;
+         *            see {@link PathKeys} for the syntax. Defaults to false.
+         */
+        public Builder setExpandPathKeys(boolean value) {
+            result.expandPathKeys = value;
+            return this;
+        }
+
+        /**
+         * Merge the lists at {@code path} by the value of their entries' {@code keyField}, rather than by position; see
+         * {@link KeyedLists}.
+         * 
+         * @param path
+         *            - map keys separated by {@code .}, such as {@code upstreams} or {@code logging.appenders}. The entries of
+         *            lists along the way are searched too.
+         * @param keyField
+         *            - such as {@code name}, {@code type} or {@code id}
+         */
+        public Builder setListKey(String path, String keyField) {
+            result.listKeys.put(path, keyField);
+            return this;
+        }
+
+        /**
+         * @param value
+         *            - if true, a list whose first entry is {@code {$key: field}} is merged by {@code field}, just as if it had
+         *            been named with {@link #setListKey}. Defaults to false.
+         */
+        public Builder setInlineListKeys(boolean value) {
+            result.inlineListKeys = value;
+            return this;
+        }
+
+        /**
+         * @param value
+         *            - if true, {@link MultipleConfigurationMerger#mergeConfigs} merges layers straight from the yaml token
+         *            stream, skipping whatever later layers replace, instead of loading each layer into a tree first; see
+         *            {@link StreamingMerge}. It allocates far less for large layers, but is only used when there is no
+         *            executor, parsed layer cache, path key expansion or list key; otherwise, and for layers the token stream
+         *            can't handle, the usual merge is used. Defaults to false.
+         */
+        public Builder setStreamingMerge(boolean value) {
+            result.streamingMerge = value;
+            return this;
+        }
+
+        /**
+         * @param value
+         *            - if true, {@code ${env:VAR}}, {@code ${sys:prop}} and {@code ${path.to.key}} in the merged configuration
+         *            are replaced by their values; see {@link VariableSubstitution}. Defaults to false.
+         */
+        public Builder setSubstituteVariables(boolean value) {
+            result.substitution = value ? new VariableSubstitution() : null;
+            return this;
+        }
+
+        /**
+         * @param value
+         *            - the most bytes any one layer may have; a larger layer fails with an exception naming it as soon as
+         *            that many have been read. Zero, the default, means no limit. See {@link ParserLimits} for
+         *            this and the other limits on layers.
+         */
+        public Builder setMaxLayerBytes(long value) {
+            result.maxLayerBytes = value;
+            return this;
+        }
+
+        /**
+         * @param value
+         *            - the most maps, lists and scalars any one layer may have once its aliases are expanded. Zero, the
+         *            default, means no limit.
+         */
+        public Builder setMaxNodes(long value) {
+            result.maxNodes = value;
+            return this;
+        }
+
+        /**
+         * @param value
+         *            - how deeply the maps and lists of any one layer may nest once its aliases are expanded. Zero, the
+         *            default, means no limit.
+         */
+        public Builder setMaxDepth(long value) {
+            result.maxDepth = value;
+            return this;
+        }
+
+        /**
+         * @param value
+         *            - how many aliases any one layer may expand, counting the aliases within an alias each time it is
+         *            expanded. Zero, the default, means no limit.
+         */
+        public Builder setMaxAliasExpansions(long value) {
+            result.maxAliasExpansions = value;
+            return this;
+        }
+
+        /**
+         * @param value
+         *            - if non-null, the time spent reading, parsing, merging and binding, and the bytes in each layer, are
+         *            reported here; see {@link MultipleConfigurationApplication} for how they reach DropWizard's registry.
+         *            Null, the default, means no metrics, and no cost for them.
+         */
+        public Builder setMetricRegistry(MetricRegistry value) {
+            result.metrics = value == null ? ConfigurationMetrics.NONE : new ConfigurationMetrics(value);
+            return this;
+        }
+
+        /**
+         * @param value
+         *            - if true, and there is a {@link #setMetricRegistry metric registry}, also report the maps, lists and
+         *            scalars in each layer. Counting them walks every parsed layer once more, so it is off by default.
+         */
+        public Builder setCountLayerNodes(boolean value) {
+            result.countLayerNodes = value;
+            return this;
+        }
+    }
+
+    /**
+     * The registry given to {@link Builder#setMetricRegistry}, or null.
+     */
+    public MetricRegistry getMetricRegistry() {
+        return metrics.getRegistry();
+    }
+
+    ConfigurationMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Describes the settings which change what a merge produces, so that a {@link ConfigurationSnapshot} compiled by a merger
+     * configured differently is not mistaken for a current one.
+     */
+    String getOptionsFingerprint() {
+        return "expandPathKeys=" + expandPathKeys + ",listKeys=" + keyedLists;
+    }
+
+    /**
+     * Create an executor suited to reading and parsing layers in parallel: one virtual thread per task when the JVM supports
+     * them, otherwise a cached pool of daemon threads. The caller owns the executor and should shut it down when done.
+     */
+    public static ExecutorService newLayerExecutor() {
+        try {
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) factory.invoke(null);
+        } catch (ReflectiveOperationException e) {
+            // Pre-Loom JVM; fall back to platform threads.
+        }
+        final AtomicInteger threadCount = new AtomicInteger();
+        return Executors.newCachedThreadPool(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "multi-config-layer-" + threadCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
     }
 
     /**
@@ -59,33 +305,161 @@ public class MultipleConfigurationMerger {
      * configs.
      * 
      * @param paths
-     * @return Map<Object, Object> representing the merged .yaml files.
+     * @return Map<Object, Object> representing the merged .yaml files. The result is an immutable {@link ImmutableConfigMap},
+     *         and may share structure with the results of other merges.
+     * @throws IllegalArgumentException
+     *             if variables are substituted and one of them can't be.
+     * @throws org.yaml.snakeyaml.error.YAMLException
+     *             if a layer can't be parsed. A layer which is missing or can't be read is read as empty, as
+     *             {@link ConfigurationReader#readConfiguration} says, and so changes nothing. Layers are treated the same way
+     *             whether or not they are read in parallel.
      */
     public Map<Object, Object> mergeConfigs(Collection<String> paths) {
-        Map<Object, Object> config = new LinkedHashMap<>();
+        return substitute(mergeLayers(paths));
+    }
 
-        if (paths != null) {
+    /**
+     * Merge {@code paths} as {@link #mergeConfigs} does, taking the layers in {@code verified} as they were parsed when
+     * {@link #verifyDigests} checked them rather than reading them again.
+     */
+    Map<Object, Object> mergeConfigs(Collection<String> paths, Map<String, ConfigurationReaders.DigestedLayer> verified) {
+        return substitute(mergeLayers(paths, verified));
+    }
+
+    /**
+     * Merge {@code paths} as {@link #mergeConfigs} does, without substituting variables.
+     */
+    Map<Object, Object> mergeLayers(Collection<String> paths) {
+        return mergeLayers(paths, Collections.<String, ConfigurationReaders.DigestedLayer> emptyMap());
+    }
+
+    private Map<Object, Object> mergeLayers(Collection<String> paths, Map<String, ConfigurationReaders.DigestedLayer> verified) {
+        Map<Object, Object> config = ImmutableConfigMap.EMPTY;
+
+        if (paths != null && canStream() && verified.isEmpty()) {
+            prefetchLayers(paths);
+            Map<Object, Object> streamed = new StreamingMerge(layerReader, metrics, parserLimits).merge(new ArrayList<>(paths));
+            if (streamed != null) {
+                return streamed;
+            }
+            log.debug("Could not stream the configuration layers; merging them as trees");
+        }
+
+        if (paths != null && executor != null) {
+            config = mergeConfigsInParallel(config, paths, verified);
+        } else if (paths != null) {
+            prefetchLayers(paths);
             for (String overridePath : paths) {
-                try {
-                    mergeConfig(config, overridePath);
-                } catch (IOException e) {
-                    // Just log it - we couldn't find a yaml file. It's not the end of the world.
-                    log.debug("Could not merge .yaml at:" + overridePath);
-                }
+                ConfigurationReaders.DigestedLayer layer = verified.get(overridePath);
+                config = layer != null ? mergeLayer(config, overridePath, layer.tree) : mergeConfig(config, overridePath);
             }
         }
 
         return config;
     }
 
+    private boolean canStream() {
+        return streamingMerge && executor == null && parsedLayerCache == null && !expandPathKeys && !keyedLists.isEnabled();
+    }
+
+    /**
+     * Substitute variables into a merged configuration, if the merger was asked to.
+     */
+    Map<Object, Object> substitute(Map<Object, Object> config) {
+        return substitution == null ? config : substitution.substitute(config);
+    }
+
     /**
      * <p>
-     * Merge configuration files specified by {@code paths}, and parse them into the specified {@code configurationType}
+     * Merge each of {@code overlays} over the same base, as if {@link #mergeConfigs} had been called with {@code basePaths}
+     * followed by the overlay's paths, but with the base read and merged only once. Every result shares the subtrees its
+     * overlay leaves alone with the base, and so with all the other results, which makes thousands of tenants that differ from
+     * a common base by a few keys cost little more than the base itself. Overlays are merged concurrently on the
+     * {@link Builder#setForkJoinPool pool}.
+     * </p>
+     * 
+     * @param basePaths
+     * @param overlays
+     *            - the overlay paths for each tenant (or job, or whatever the keys identify)
+     * @return the merged configuration for each key of {@code overlays}, in the same order.
+     */
+    public <K> Map<K, Map<Object, Object>> mergeTenants(Collection<String> basePaths,
+            Map<K, ? extends Collection<String>> overlays) {
+        if (forkJoinPool != null) {
+            return BulkMerge.merge(this, basePaths, overlays, forkJoinPool);
+        }
+        ForkJoinPool pool = new ForkJoinPool();
+        try {
+            return BulkMerge.merge(this, basePaths, overlays, pool);
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * Start an {@link IncrementalMerge}: a merge of a layer stack which remembers its intermediate results, so that merging
+     * the stack again after only its tail has changed is cheap.
+     */
+    public IncrementalMerge incrementalMerge() {
+        return new IncrementalMerge(this);
+    }
+
+    /**
+     * Read and parse every layer on {@link #executor}, merging each one into {@code config} as soon as it and every layer
+     * before it are ready. The wall clock cost is roughly that of the slowest layer rather than the sum of all of them.
+     * 
+     * @param config
+     * @param paths
+     * @param verified
+     *            - layers which have already been parsed, by path
+     * @return the merged configuration
+     */
+    private Map<Object, Object> mergeConfigsInParallel(Map<Object, Object> config, Collection<String> paths,
+            Map<String, ConfigurationReaders.DigestedLayer> verified) {
+        List<Future<Object>> layers = new ArrayList<>(paths.size());
+        for (final String path : paths) {
+            if (verified.containsKey(path)) {
+                layers.add(null);
+                continue;
+            }
+            layers.add(executor.submit(new Callable<Object>() {
+                @Override
+                public Object call() {
+                    return parseLayer(yaml.get(), path);
+                }
+            }));
+        }
+
+        try {
+            Iterator<String> path = paths.iterator();
+            for (Future<Object> layer : layers) {
+                String layerPath = path.next();
+                config = mergeLayer(config, layerPath, layer == null ? verified.get(layerPath).tree : layer.get());
+            }
+            return config;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while reading configuration layers", e);
+        } catch (ExecutionException e) {
+            throw rethrow(e.getCause(), "Could not read configuration layers");
+        } finally {
+            for (Future<Object> layer : layers) {
+                if (layer != null) {
+                    layer.cancel(true);
+                }
+            }
+        }
+    }
+
+    /**
+     * <p>
+     * Merge configuration files specified by {@code paths}, and bind them into the specified {@code configurationType}
      * </p>
      * 
      * <p>
-     * <b>Note</b> the merging process does not know about {@code configurationType}; it produces a merged yaml in memory, and
-     * <b>then reparses</b> the merged yaml into the target type.
+     * <b>Note</b> the merging process does not know about {@code configurationType}; it produces a merged tree in memory, and
+     * <b>then binds</b> that tree to the target type with {@link ObjectMapper#convertValue}. The merged tree is never written
+     * back out as yaml text.
      * </p>
      * 
      * @param paths
@@ -94,60 +468,363 @@ public class MultipleConfigurationMerger {
      */
     public <T> T loadConfigs(Collection<String> paths, Class<T> configurationType) {
         Map<Object, Object> configMap = mergeConfigs(paths);
-        YAMLFactory yamlFactory = new YAMLFactory();
-        String configStr = yaml.dump(configMap);
+        ConfigurationMetrics.Stopwatch bind = metrics.start(ConfigurationMetrics.BIND, null);
         try {
-            return mapper.readValue(yamlFactory.createParser(configStr), configurationType);
-        } catch (IOException e) {
+            return mapper.convertValue(configMap, configurationType);
+        } catch (IllegalArgumentException e) {
             log.error("failed to loadConfigs", e);
             return null;
+        } finally {
+            bind.stop();
+        }
+    }
+
+    /**
+     * Return a view of the subtree of {@code config} at {@code path}, which binds the subtree to {@code type} the first time it
+     * is used. For example, {@code view(config, "database.shards", ShardConfig[].class)}.
+     * 
+     * @param config
+     *            - a configuration returned by {@link #mergeConfigs}
+     * @param path
+     *            - dot-separated keys, with {@code [n]} for list entries; quote keys containing dots, as in
+     *            {@code logging.loggers."org.foo"}
+     * @param type
+     * @throws IllegalArgumentException
+     *             if {@code path} is malformed.
+     */
+    public <T> ConfigurationView<T> view(final Map<Object, Object> config, String path, Class<T> type) {
+        return new ConfigurationView<>(new ConfigurationView.Source() {
+            @Override
+            public Map<Object, Object> getTree() {
+                return config;
+            }
+        }, this, path, type);
+    }
+
+    /**
+     * Bind one subtree to {@code type}. Used by {@link ConfigurationView}.
+     * 
+     * @param path
+     *            - where the subtree is, for error messages
+     */
+    <T> T bind(Object node, Class<T> type, String path) {
+        if (node == null) {
+            return null;
+        }
+        ConfigurationMetrics.Stopwatch bind = metrics.start(ConfigurationMetrics.BIND, null);
+        try {
+            return mapper.convertValue(node, type);
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Could not bind " + path + " to " + type.getName(), e);
+        } finally {
+            bind.stop();
         }
     }
 
     /**
      * Given an existing {@code config} object and a {@code path} to an override file, read the override file and merge its
-     * contents into {@code config}.
+     * contents over {@code config}.
      * 
      * @param config
      * @param path
+     * @return the merged configuration
+     */
+    private Map<Object, Object> mergeConfig(Map<Object, Object> config, String path) {
+        return mergeLayer(config, path, parseLayer(yaml.get(), path));
+    }
+
+    /**
+     * Read and parse the layer at {@code path}, going through {@link #parsedLayerCache} if there is one.
+     * 
+     * @param parser
+     * @param path
+     * @return the parsed layer as immutable nodes, or null if it was empty.
+     */
+    private Object parseLayer(Yaml parser, String path) {
+        ConfigurationMetrics.Stopwatch parse = metrics.start(ConfigurationMetrics.PARSE, path);
+        Object tree;
+        try {
+            if (parsedLayerCache != null) {
+                tree = parsedLayerCache.load(path, layerReader, parser);
+            } else {
+                tree = ConfigurationReaders.load(layerReader, parser, path);
+            }
+        } finally {
+            parse.stop();
+        }
+        return countNodes(path, prepareLayer(path, ConfigNodes.freeze(tree)));
+    }
+
+    /**
+     * Expand the path keys of a parsed layer and mark its keyed lists, as configured.
+     */
+    private Object prepareLayer(String path, Object tree) {
+        if (expandPathKeys) {
+            tree = PathKeys.expand(tree, this, path);
+        }
+        return keyedLists.mark(tree, path);
+    }
+
+    private Object countNodes(String path, Object tree) {
+        if (countLayerNodes && metrics.isEnabled()) {
+            metrics.update(ConfigurationMetrics.NODES, path, ConfigNodes.count(tree));
+        }
+        return tree;
+    }
+
+    /**
+     * Read and parse the layer at {@code path} on the calling thread. Used by {@link BulkMerge}.
+     */
+    Object parseLayer(String path) {
+        return parseLayer(yaml.get(), path);
+    }
+
+    /**
+     * Let a reader which fetches layers from elsewhere fetch them all at once, before they are read one by one.
+     */
+    void prefetchLayers(Collection<String> paths) {
+        if (configurationReader instanceof HttpConfigurationReader) {
+            ((HttpConfigurationReader) configurationReader).prefetch(paths);
+        }
+    }
+
+    /**
+     * Check that each layer has the digest given for it, reading the layers concurrently on {@link #executor}, or on a
+     * temporary executor if there is none. With a {@link ParsedLayerCache}, a layer the cache has already seen with that digest
+     * isn't read at all, and the merge then takes its parsed tree from the cache. Without one, each layer is parsed from the
+     * same read that is digested, if {@code parse}, and the result is what should be merged: reading the layer again could find
+     * something else. Used for {@link LayerManifest}s.
+     * 
+     * @param digests
+     *            - SHA-256 digests as hex, by layer path
+     * @param parse
+     *            - whether the caller is going to merge the layers, and so wants them parsed; otherwise they are only digested
+     * @return the layers as they were parsed and verified, by path, for {@link #mergeConfigs(Collection, Map)}; empty with a
+     *         {@link ParsedLayerCache}, or unless {@code parse}.
      * @throws IOException
-     *             if the file couldn't be read for any reason.
+     *             naming a layer whose contents don't match.
+     */
+    Map<String, ConfigurationReaders.DigestedLayer> verifyDigests(Map<String, String> digests, final boolean parse)
+            throws IOException {
+        Map<String, ConfigurationReaders.DigestedLayer> verified = new HashMap<>();
+        if (digests.isEmpty()) {
+            return verified;
+        }
+        ExecutorService verifier = executor != null ? executor : newLayerExecutor();
+        Map<String, Future<ConfigurationReaders.DigestedLayer>> checks = new LinkedHashMap<>();
+        try {
+            for (final Map.Entry<String, String> digest : digests.entrySet()) {
+                checks.put(digest.getKey(), verifier.submit(new Callable<ConfigurationReaders.DigestedLayer>() {
+                    @Override
+                    public ConfigurationReaders.DigestedLayer call() {
+                        if (parsedLayerCache != null) {
+                            boolean matches = parsedLayerCache.hasDigest(digest.getKey(), layerReader, digest.getValue());
+                            return new ConfigurationReaders.DigestedLayer(null, matches ? digest.getValue() : null);
+                        }
+                        if (!parse) {
+                            return new ConfigurationReaders.DigestedLayer(null,
+                                    ConfigurationReaders.digest(layerReader, digest.getKey()));
+                        }
+                        return parseLayerWithDigest(digest.getKey());
+                    }
+                }));
+            }
+            for (Map.Entry<String, Future<ConfigurationReaders.DigestedLayer>> check : checks.entrySet()) {
+                ConfigurationReaders.DigestedLayer layer = check.getValue().get();
+                String expected = digests.get(check.getKey());
+                if (!expected.equals(layer.digest)) {
+                    throw new IOException("Layer " + check.getKey() + " does not match its digest " + expected);
+                }
+                if (parse && parsedLayerCache == null) {
+                    verified.put(check.getKey(), layer);
+                }
+            }
+            return verified;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while verifying configuration layers", e);
+        } catch (ExecutionException e) {
+            throw rethrow(e.getCause(), "Could not verify configuration layers");
+        } finally {
+            for (Future<ConfigurationReaders.DigestedLayer> check : checks.values()) {
+                check.cancel(true);
+            }
+            if (verifier != executor) {
+                verifier.shutdown();
+            }
+        }
+    }
+
+    /**
+     * Rethrow the cause of an {@link ExecutionException} as it was thrown, if it was unchecked.
+     */
+    private static RuntimeException rethrow(Throwable cause, String message) {
+        if (cause instanceof RuntimeException) {
+            throw (RuntimeException) cause;
+        }
+        if (cause instanceof Error) {
+            throw (Error) cause;
+        }
+        return new IllegalStateException(message, cause);
+    }
+
+    /**
+     * The reader given to {@link Builder#setConfigurationReader}, or the default one.
+     */
+    ConfigurationReader getConfigurationReader() {
+        return configurationReader;
+    }
+
+    /**
+     * Digest the layer at {@code path} without parsing it. Used by {@link IncrementalMerge}.
+     */
+    String digestLayer(String path) {
+        return ConfigurationReaders.digest(layerReader, path);
+    }
+
+    /**
+     * Parse the layer at {@code path} into immutable nodes, along with the digest of what was parsed. Used by
+     * {@link IncrementalMerge}.
+     */
+    ConfigurationReaders.DigestedLayer parseLayerWithDigest(String path) {
+        ConfigurationMetrics.Stopwatch parse = metrics.start(ConfigurationMetrics.PARSE, path);
+        ConfigurationReaders.DigestedLayer layer;
+        try {
+            layer = ConfigurationReaders.loadWithDigest(layerReader, yaml.get(), path);
+        } finally {
+            parse.stop();
+        }
+        Object tree = countNodes(path, prepareLayer(path, ConfigNodes.freeze(layer.tree)));
+        return new ConfigurationReaders.DigestedLayer(tree, layer.digest);
+    }
+
+    /**
+     * Merge a parsed layer over {@code config}. A layer whose top level isn't a map is ignored.
+     * 
+     * @param config
+     * @param path
+     *            - where {@code overrides} came from, for metrics
+     * @param overrides
+     * @return the merged configuration; {@code config} itself if the layer changed nothing.
      */
-    private void mergeConfig(Map<Object, Object> config, String path) throws IOException {
-        String configuration = this.configurationReader.readConfiguration(path);
-        Object overrides = yaml.load(configuration);
-        if (overrides == null) {
-            return;
+    @SuppressWarnings("unchecked")
+    Map<Object, Object> mergeLayer(Map<Object, Object> config, String path, Object overrides) {
+        if (overrides instanceof Map<?, ?>) {
+            ConfigurationMetrics.Stopwatch merge = metrics.start(ConfigurationMetrics.MERGE, path);
+            try {
+                return (Map<Object, Object>) mergeNode(config, overrides);
+            } finally {
+                merge.stop();
+            }
         }
-        mergeNode(config, overrides);
+        return config;
     }
 
     /**
-     * Merge corresponding nodes in a configuration tree.
+     * Merge corresponding nodes in a configuration tree. Neither node is modified: the result is built from new nodes along
+     * the paths where {@code sourceNode} changes something, and shares every other subtree with the inputs.
      * 
      * @param targetNode
      * @param sourceNode
-     * @return - true: caller should replace targetNode with sourceNode in a collection.
+     * @return - the merged node; {@code targetNode} itself if {@code sourceNode} changes nothing.
+     * @throws org.yaml.snakeyaml.error.YAMLException
+     *             if {@code sourceNode} has a {@link PathKeys} list index past the end of the list it is merged into.
      */
-    @SuppressWarnings("unchecked")
-    private boolean mergeNode(Object targetNode, Object sourceNode) {
+    Object mergeNode(Object targetNode, Object sourceNode) {
+        return mergeNode(targetNode, sourceNode, false);
+    }
+
+    /**
+     * Merge two nodes of the same layer, as {@link PathKeys} puts the layer together. Unlike {@link #mergeNode}, this keeps
+     * any {@link PathKeys.IndexedList}, for the merge with the layers below to apply.
+     */
+    Object mergeWithinLayer(Object targetNode, Object sourceNode) {
+        return mergeNode(targetNode, sourceNode, true);
+    }
+
+    private Object mergeNode(Object targetNode, Object sourceNode, boolean withinLayer) {
 
         if (sourceNode == null) {
-            return false;
+            return targetNode;
+        } else if (sourceNode instanceof PathKeys.IndexedList) {
+            return mergeIndexedList(targetNode, (PathKeys.IndexedList) sourceNode, withinLayer);
+        } else if (targetNode instanceof PathKeys.IndexedList && sourceNode instanceof List<?>) {
+            return mergeIntoIndexedList((PathKeys.IndexedList) targetNode, (List<?>) sourceNode);
         } else if (targetNode == null) {
-            return true;
+            return unmerged(sourceNode, withinLayer);
         } else if (targetNode instanceof Map<?, ?> && sourceNode instanceof Map<?, ?>) {
-            mergeNodeMaps((Map<Object, Object>) targetNode, (Map<Object, Object>) sourceNode);
-            return false;
+            return mergeNodeMaps((Map<?, ?>) targetNode, (Map<?, ?>) sourceNode, withinLayer);
+        } else if (targetNode instanceof List<?> && sourceNode instanceof KeyedLists.KeyedList) {
+            return mergeKeyedLists((List<?>) targetNode, (KeyedLists.KeyedList) sourceNode, withinLayer);
         } else if (targetNode instanceof List<?> && sourceNode instanceof List<?>) {
-            mergeNodeLists((List<Object>) targetNode, (List<Object>) sourceNode);
-            return false;
+            return mergeNodeLists((List<?>) targetNode, (List<?>) sourceNode, withinLayer);
         } else {
-            // Otherwise, just replace the target with the source. Can't do this directly; only the caller really knows how.
-            return true;
+            // Otherwise, just replace the target with the source.
+            return unmerged(sourceNode, withinLayer);
         }
     }
 
+    /**
+     * A node of a layer which goes into the result as it is, with nothing below it to merge with.
+     */
+    private Object unmerged(Object sourceNode, boolean withinLayer) {
+        if (expandPathKeys && !withinLayer) {
+            PathKeys.checkUnmerged(sourceNode);
+        }
+        return sourceNode;
+    }
+
+    /**
+     * Merge the entries of a {@link PathKeys.IndexedList} into the list {@code targetNode}, each at its index. An index may
+     * be at most the length of the list so far, which appends to it. Within a layer, {@code targetNode} may be another
+     * {@link PathKeys.IndexedList}, which the two are combined into; anything but a list is replaced.
+     * 
+     * @param targetNode
+     * @param sourceNode
+     * @param withinLayer
+     * @return the merged list; {@code targetNode} itself if {@code sourceNode} changes nothing.
+     */
+    private Object mergeIndexedList(Object targetNode, PathKeys.IndexedList sourceNode, boolean withinLayer) {
+        if (targetNode instanceof PathKeys.IndexedList) {
+            TreeMap<Integer, Object> merged = new TreeMap<>(((PathKeys.IndexedList) targetNode).getEntries());
+            for (Map.Entry<Integer, Object> entry : sourceNode.getEntries().entrySet()) {
+                merged.put(entry.getKey(), mergeNode(merged.get(entry.getKey()), entry.getValue(), true));
+            }
+            return PathKeys.list(merged, sourceNode.getPath());
+        } else if (!(targetNode instanceof List<?>)) {
+            return unmerged(sourceNode, withinLayer);
+        }
+
+        List<?> targetList = (List<?>) targetNode;
+        Object[] merged = Arrays.copyOf(targetList.toArray(), targetList.size() + sourceNode.getEntries().size());
+        int size = targetList.size();
+        boolean changed = false;
+        for (Map.Entry<Integer, Object> entry : sourceNode.getEntries().entrySet()) {
+            int index = entry.getKey();
+            if (index > size) {
+                throw sourceNode.pastEnd(index, size);
+            }
+            Object targetEntry = merged[index];
+            merged[index] = mergeNode(targetEntry, entry.getValue(), withinLayer);
+            changed |= merged[index] != targetEntry;
+            if (index == size) {
+                ++size;
+            }
+        }
+        return changed ? new ImmutableConfigList(Arrays.copyOf(merged, size)) : targetNode;
+    }
+
+    /**
+     * Merge a list over a {@link PathKeys.IndexedList} of the same layer, entry by entry.
+     */
+    private Object mergeIntoIndexedList(PathKeys.IndexedList targetNode, List<?> sourceNode) {
+        TreeMap<Integer, Object> merged = new TreeMap<>(targetNode.getEntries());
+        for (int i = 0; i < sourceNode.size(); ++i) {
+            merged.put(i, mergeNode(merged.get(i), sourceNode.get(i), true));
+        }
+        return PathKeys.list(merged, targetNode.getPath());
+    }
+
     /**
      * Merge lists in a configuration tree. In the initial range of {@code targetNode} where {@code sourceNode} has entries, the
      * children objects in the list are merged, unless {@code mergeNode} says to replace the entry outright. Any nodes in
@@ -155,41 +832,122 @@ public class MultipleConfigurationMerger {
      * 
      * @param targetNode
      * @param sourceNode
+     * @return the merged list; {@code targetNode} itself if {@code sourceNode} changes nothing.
      */
-    private void mergeNodeLists(List<Object> targetNode, List<Object> sourceNode) {
-        for (int i = 0; i < targetNode.size() && i < sourceNode.size(); ++i) {
+    private List<?> mergeNodeLists(List<?> targetNode, List<?> sourceNode, boolean withinLayer) {
+        Object[] merged = new Object[Math.max(targetNode.size(), sourceNode.size())];
+        boolean changed = sourceNode.size() > targetNode.size();
+        for (int i = 0; i < targetNode.size(); ++i) {
             final Object targetEntry = targetNode.get(i);
-            final Object sourceEntry = sourceNode.get(i);
-            if (mergeNode(targetEntry, sourceEntry)) {
-            targetNode.set(i, sourceEntry);
-            }
+            merged[i] = i < sourceNode.size() ? mergeNode(targetEntry, sourceNode.get(i), withinLayer) : targetEntry;
+            changed |= merged[i] != targetEntry;
         }
         for (int i = targetNode.size(); i < sourceNode.size(); ++i) {
-            targetNode.add(sourceNode.get(i));
+            merged[i] = unmerged(sourceNode.get(i), withinLayer);
         }
+        return changed ? new ImmutableConfigList(merged) : targetNode;
     }
 
     /**
-     * Merge maps in a configuration tree. If {@code targetNode} does not contain an entry from {@code sourceNode}, the entry is
-     * copied into {@code targetNode}. If an entry exists in both {@code targetNode} and {@code sourceNode}, the two entries will
-     * be merged.
+     * Merge a keyed list over {@code targetNode}. The entries of {@code targetNode} are indexed by key once, so each entry of
+     * {@code sourceNode} finds its match in constant time. Matched entries keep their place; unmatched ones are appended.
+     * Entries of {@code targetNode} without the key field are kept as they are, and never matched.
      * 
      * @param targetNode
      * @param sourceNode
+     * @return the merged list; {@code targetNode} itself if {@code sourceNode} changes nothing.
      */
-    private void mergeNodeMaps(Map<Object, Object> targetNode, Map<Object, Object> sourceNode) {
-        for (Map.Entry<Object, Object> entry : sourceNode.entrySet()) {
-            // TODO: check if entry.getKey() contains a path, and expand the node if so.
+    private List<?> mergeKeyedLists(List<?> targetNode, KeyedLists.KeyedList sourceNode, boolean withinLayer) {
+        String key = sourceNode.getKey();
+        Object[] operations = sourceNode.getOperations();
+        List<Object> merged = new ArrayList<Object>(targetNode.size() + operations.length);
+        Map<Object, Integer> index = new HashMap<>(Math.max(16, (targetNode.size() + operations.length) * 4 / 3));
+        for (Object entry : targetNode) {
+            Object id = keyOf(entry, key);
+            if (id != null && !index.containsKey(id)) {
+                index.put(id, merged.size());
+            }
+            merged.add(entry);
+        }
 
+        boolean changed = false;
+        int deleted = 0;
+        for (int i = 0; i < operations.length; ++i) {
+            Object entry = operations[i];
+            Object id = keyOf(entry, key);
+            Integer at = id == null ? null : index.get(id);
+            KeyedLists.Operation operation = sourceNode.getOperation(i);
+            if (at == null) {
+                // Nothing to merge with or replace: append it, unless it was to be deleted anyway.
+                if (operation != KeyedLists.Operation.DELETE) {
+                    if (id != null) {
+                        index.put(id, merged.size());
+                    }
+                    merged.add(unmerged(entry, withinLayer));
+                    changed = true;
+                }
+            } else if (operation == KeyedLists.Operation.DELETE) {
+                merged.set(at, DELETED);
+                index.remove(id);
+                ++deleted;
+                changed = true;
+            } else if (operation == KeyedLists.Operation.REPLACE) {
+                changed |= merged.set(at, unmerged(entry, withinLayer)) != entry;
+            } else {
+                Object targetEntry = merged.get(at);
+                Object mergedEntry = mergeNode(targetEntry, entry, withinLayer);
+                merged.set(at, mergedEntry);
+                changed |= mergedEntry != targetEntry;
+            }
+        }
+        if (!changed) {
+            return targetNode;
+        }
+
+        Object[] entries = new Object[merged.size() - deleted];
+        int i = 0;
+        for (Object entry : merged) {
+            if (entry != DELETED) {
+                entries[i++] = entry;
+            }
+        }
+        return new ImmutableConfigList(entries);
+    }
+
+    private static final Object DELETED = new Object();
+
+    private static Object keyOf(Object entry, String key) {
+        return entry instanceof Map<?, ?> ? ((Map<?, ?>) entry).get(key) : null;
+    }
+
+    /**
+     * Merge maps in a configuration tree. If {@code targetNode} does not contain an entry from {@code sourceNode}, the entry is
+     * copied into the result. If an entry exists in both {@code targetNode} and {@code sourceNode}, the two entries will be
+     * merged.
+     * 
+     * @param targetNode
+     * @param sourceNode
+     * @return the merged map; {@code targetNode} itself if {@code sourceNode} changes nothing.
+     */
+    private Map<?, ?> mergeNodeMaps(Map<?, ?> targetNode, Map<?, ?> sourceNode, boolean withinLayer) {
+        LinkedHashMap<Object, Object> merged = null;
+        for (Map.Entry<?, ?> entry : sourceNode.entrySet()) {
+            // Keys which are paths have already been expanded by PathKeys, if the merger was asked to.
+            Object mergedEntry;
             if (!targetNode.containsKey(entry.getKey())) {
-                targetNode.put(entry.getKey(), entry.getValue());
+                mergedEntry = unmerged(entry.getValue(), withinLayer);
             } else {
                 Object targetEntry = targetNode.get(entry.getKey());
-                Object sourceEntry = entry.getValue();
-                if (mergeNode(targetEntry, sourceEntry)) {
-                    targetNode.put(entry.getKey(), sourceEntry);
+                mergedEntry = mergeNode(targetEntry, entry.getValue(), withinLayer);
+                if (mergedEntry == targetEntry) {
+                    continue;
                 }
             }
+            if (merged == null) {
+                merged = new LinkedHashMap<Object, Object>(targetNode);
+            }
+            merged.put(entry.getKey(), mergedEntry);
         }
+        return merged == null ? targetNode : new ImmutableConfigMap(merged);
     }
 }
@@ -3,26 +3,36 @@ package com.thenewentity.utils.dropwizard;
 import io.dropwizard.configuration.ConfigurationSourceProvider;
 
 import java.io.ByteArrayInputStream;
-import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.nio.charset.StandardCharsets;
-import java.nio.file.DirectoryStream;
-import java.nio.file.FileSystem;
-import java.nio.file.Files;
 import java.nio.file.Path;
-import java.nio.file.Paths;
+import java.nio.file.PathMatcher;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.Collection;
-import java.util.HashSet;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
 import java.util.Set;
-import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.yaml.snakeyaml.Yaml;
 
+import com.codahale.metrics.MetricRegistry;
+
 /**
  * <p>
  * An implementation of ConfigurationSourceProvider which knows how to merge multiple .yaml files so that you can have one
@@ -38,14 +48,47 @@ import org.yaml.snakeyaml.Yaml;
  * MultipleConfigurationProvider relies on {@link MultipleConfigurationMerger} to actually parse and merge the yaml files.
  * </p>
  * 
+ * <p>
+ * Once DropWizard has opened the configuration, {@link #startWatching} keeps an eye on every file that went into it (and on
+ * the directories behind any glob patterns), re-merges in the background when they change, and tells any registered
+ * {@link ConfigurationChangeListener}s about the new effective configuration.
+ * </p>
+ * 
  */
 public class MultipleConfigurationProvider implements ConfigurationSourceProvider {
 
+    private static Logger log = LoggerFactory.getLogger(MultipleConfigurationProvider.class);
+
     private Collection<String> overrideFiles;
     private MultipleConfigurationMerger multipleConfigurationMerger;
-    private String effectiveConfig;
-    private static final Yaml yaml = new Yaml();
-    private static Set<Character> globChars = buildGlobChars();
+    private final List<ConfigurationChangeListener> listeners = new CopyOnWriteArrayList<>();
+    private final ConcurrentMap<String, ConfigurationView<?>> views = new ConcurrentHashMap<>();
+
+    // Guarded by this; only needed for reloading.
+    private String openedPath;
+    private Map<Path, List<PathMatcher>> openedWatchTargets;
+    private Map<Object, Object> effectiveTree;
+    // The latest tree rendered as yaml, and the result.
+    private Map<Object, Object> renderedTree;
+    private String renderedConfig;
+    private ConfigurationWatcher watcher;
+    private IncrementalMerge incrementalMerge;
+
+    private int maxGlobDepth = GlobExpander.DEFAULT_MAX_DEPTH;
+    private volatile Path snapshot;
+
+    // Guarded by this; what preload() started, and for which path and snapshot.
+    private Future<Loaded> preloaded;
+    private String preloadedPath;
+    private Path preloadedSnapshot;
+
+    // Shared by every provider, and so by whichever threads open them; Yaml instances are not thread-safe.
+    private static final ThreadLocal<Yaml> yaml = new ThreadLocal<Yaml>() {
+        @Override
+        protected Yaml initialValue() {
+            return new Yaml();
+        }
+    };
 
     MultipleConfigurationProvider() {
 
@@ -82,6 +125,18 @@ public class MultipleConfigurationProvider implements ConfigurationSourceProvide
             result.multipleConfigurationMerger = value;
             return this;
         }
+
+        /**
+         * @param value
+         *            - how many directory levels below the fixed part of a glob pattern are searched for matches; bounds how far
+         *            {@code **} reaches. Defaults to 16.
+         */
+        public Builder setMaxGlobDepth(int value) {
+            if (value < 1)
+                throw new IllegalArgumentException("maxGlobDepth must be at least 1");
+            result.maxGlobDepth = value;
+            return this;
+        }
     }
 
     /**
@@ -91,13 +146,12 @@ public class MultipleConfigurationProvider implements ConfigurationSourceProvide
      * 
      * <p>
      * Read the specified yaml, then merge any {@link #overrideFiles} specified in the
-     * {@link #overrideFiles} on top of it. Then, dump that out as yaml into
-     * {@link #effectiveConfig}, and return an InputStream to DropWizard.
+     * {@link #overrideFiles} on top of it. Then, dump that out as yaml, and return an InputStream to DropWizard.
      * </p>
      * 
      * <p>
      * <b>Side Effects</b>
-     * <dd>As discussed in the description, changes {@link #effectiveConfig}.</dd>
+     * <dd>Changes the effective configuration.</dd>
      * </p>
      * 
      * @param path
@@ -106,79 +160,457 @@ public class MultipleConfigurationProvider implements ConfigurationSourceProvide
      */
     @Override
     public InputStream open(String path) throws IOException {
-        List<String> paths = new ArrayList<String>();
-        paths.addAll(globPath(path));
-        if (overrideFiles != null) {
-            for (String entry : overrideFiles) {
-                paths.addAll(globPath(entry));
+        String config = render(openTree(path));
+        return new ByteArrayInputStream(config.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Merge the configuration as {@link #open(String)} does, but return the merged tree rather than yaml text. Used by
+     * {@link MultipleConfigurationFactoryFactory}, which binds the tree as it is.
+     */
+    Map<Object, Object> openTree(String path) throws IOException {
+        ConfigurationMetrics.Stopwatch open = multipleConfigurationMerger.getMetrics().start(MultipleConfigurationProvider.class,
+                "open");
+        try {
+            Loaded loaded = takePreloaded(path);
+            if (loaded == null) {
+                loaded = load(path, snapshot);
+            }
+
+            synchronized (this) {
+                openedPath = path;
+                openedWatchTargets = loaded.watchTargets;
+                effectiveTree = loaded.tree;
+                if (watcher != null) {
+                    watcher.setTargets(loaded.watchTargets);
+                }
             }
+            return loaded.tree;
+        } finally {
+            open.stop();
         }
-        Map<Object, Object> merged = multipleConfigurationMerger.mergeConfigs(paths);
+    }
 
-        effectiveConfig = yaml.dump(merged);
-        InputStream result = new ByteArrayInputStream(effectiveConfig.getBytes(StandardCharsets.UTF_8));
-        return result;
+    /**
+     * Start loading the configuration {@link #open(String)} will be asked for on a background thread, so that globbing,
+     * reading, parsing and merging overlap with whatever the application does before DropWizard opens it. {@code open} then
+     * waits for the result rather than starting over, provided it is asked for the same {@code path} and the
+     * {@link #setSnapshot snapshot} hasn't changed in the meantime; otherwise the result is discarded. Any failure is thrown
+     * by {@code open}.
+     * 
+     * @param path
+     *            - the path DropWizard will open, such as {@link MungedCommandLine#getConfigurationPath()}
+     */
+    public void preload(final String path) {
+        final Path preloadSnapshot = snapshot;
+        FutureTask<Loaded> task = new FutureTask<>(new Callable<Loaded>() {
+            @Override
+            public Loaded call() throws IOException {
+                return load(path, preloadSnapshot);
+            }
+        });
+        synchronized (this) {
+            if (preloaded != null) {
+                preloaded.cancel(true);
+            }
+            preloaded = task;
+            preloadedPath = path;
+            preloadedSnapshot = preloadSnapshot;
+        }
+        Thread thread = new Thread(task, "multi-config-preload");
+        thread.setDaemon(true);
+        thread.start();
     }
 
     /**
-     * Getter; provides a String containing the effective configuration, in .yaml format.
+     * Wait for the configuration {@link #preload} started, if it is the one {@code path} calls for.
+     * 
+     * @return the preloaded configuration, or null if it has to be loaded afresh.
+     */
+    private Loaded takePreloaded(String path) throws IOException {
+        Future<Loaded> task;
+        synchronized (this) {
+            task = preloaded;
+            preloaded = null;
+            if (task == null || !path.equals(preloadedPath) || !Objects.equals(snapshot, preloadedSnapshot) || watcher != null) {
+                if (task != null) {
+                    task.cancel(true);
+                }
+                return null;
+            }
+        }
+        try {
+            return task.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the configuration to load");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IOException("Could not load the configuration", cause);
+        }
+    }
+
+    /**
+     * Merge the configuration for {@code path}, from {@code snapshot} if that is current.
+     */
+    private Loaded load(String path, Path snapshot) throws IOException {
+        if (snapshot != null && !isWatching()) {
+            Map<Object, Object> merged = loadSnapshot(path, snapshot);
+            if (merged != null) {
+                return new Loaded(merged, null);
+            }
+        }
+        Map<Path, List<PathMatcher>> watchTargets = new LinkedHashMap<>();
+        Map<String, ConfigurationReaders.DigestedLayer> verified = new HashMap<>();
+        List<String> layers = expandPaths(path, watchTargets, null, verified);
+        return new Loaded(multipleConfigurationMerger.mergeConfigs(layers, verified), watchTargets);
+    }
+
+    /**
+     * A merged configuration, as {@link #open(String)} publishes it, and what to watch for changes to it; null if it came from
+     * a snapshot, which doesn't record that.
+     */
+    private static final class Loaded {
+        final Map<Object, Object> tree;
+        final Map<Path, List<PathMatcher>> watchTargets;
+
+        Loaded(Map<Object, Object> tree, Map<Path, List<PathMatcher>> watchTargets) {
+            this.tree = tree;
+            this.watchTargets = watchTargets;
+        }
+    }
+
+    /**
+     * Getter; provides a String containing the effective configuration, in .yaml format. The text is only produced when it is
+     * first asked for after each change, so it costs nothing if nobody asks.
      */
     public String getEffectiveConfig() {
-        return effectiveConfig;
+        Map<Object, Object> tree;
+        synchronized (this) {
+            tree = effectiveTree;
+        }
+        return tree == null ? null : render(tree);
     }
 
     /**
-     * Build a set of characters containing all of the glob characters recognized by {@link FileSystem#getPathMatcher}
-     * 
-     * @return the set of glob pattern characters
+     * {@code tree} as yaml text, remembered for as long as it is the latest tree rendered.
      */
-    private static Set<Character> buildGlobChars() {
-        Set<Character> result = new HashSet<>();
-        result.addAll(Arrays.asList('[', ']', '{', '}', '*', '?', '\\'));
-        return result;
+    private synchronized String render(Map<Object, Object> tree) {
+        if (tree != renderedTree) {
+            renderedConfig = yaml.get().dump(tree);
+            renderedTree = tree;
+        }
+        return renderedConfig;
     }
 
     /**
-     * Finds the last occurrence of File.separatorChar prior to the first occurrence of glob pattern characters. If there are no
-     * glob pattern characters, returns -1.
+     * <p>
+     * Return a typed view of one subtree of the effective configuration, for example
+     * {@code view("database.shards", ShardConfig[].class)}. The subtree is bound the first time the view is used, and the
+     * result kept until a reload changes that subtree; asking for the same view again returns the same object.
+     * </p>
+     * 
+     * <p>
+     * Must be called after {@link #open(String)}.
+     * </p>
      * 
      * @param path
+     *            - dot-separated keys, with {@code [n]} for list entries; quote keys containing dots, as in
+     *            {@code logging.loggers."org.foo"}
+     * @param type
+     * @throws IllegalArgumentException
+     *             if {@code path} is malformed.
+     */
+    @SuppressWarnings("unchecked")
+    public <T> ConfigurationView<T> view(String path, Class<T> type) {
+        String key = type.getName() + " " + path;
+        ConfigurationView<?> view = views.get(key);
+        if (view == null) {
+            ConfigurationView<T> newView = new ConfigurationView<>(new ConfigurationView.Source() {
+                @Override
+                public Map<Object, Object> getTree() {
+                    return getEffectiveTree();
+                }
+            }, multipleConfigurationMerger, path, type);
+            view = views.putIfAbsent(key, newView);
+            if (view == null) {
+                view = newView;
+            }
+        }
+        return (ConfigurationView<T>) view;
+    }
+
+    private synchronized Map<Object, Object> getEffectiveTree() {
+        if (effectiveTree == null) {
+            throw new IllegalStateException("open() must be called before the configuration can be viewed");
+        }
+        return effectiveTree;
+    }
+
+    /**
+     * The registry that loading the configuration reports its timings to, if the merger was given one.
+     */
+    public MetricRegistry getMetricRegistry() {
+        return multipleConfigurationMerger.getMetricRegistry();
+    }
+
+    public void addConfigurationChangeListener(ConfigurationChangeListener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeConfigurationChangeListener(ConfigurationChangeListener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * <p>
+     * Start watching every file that went into the effective configuration, plus the directories behind any glob patterns so
+     * that new matching files are noticed. When something changes, wait until things have been quiet for {@code debounce},
+     * re-merge on a background thread, and notify the {@link ConfigurationChangeListener}s if the effective configuration
+     * actually changed. A layer that fails to parse mid-edit is logged, and the previous configuration is kept.
+     * </p>
+     * 
+     * <p>
+     * The first reload merges every layer; later ones replay only from the first layer that changed (see
+     * {@link IncrementalMerge}). Reloading doesn't hold up {@link #getEffectiveConfig()} or the views, which see the previous
+     * configuration until the new one is ready.
+     * </p>
+     * 
+     * <p>
+     * Must be called after {@link #open(String)}; calling it again while already watching does nothing.
+     * </p>
+     * 
+     * @param debounce
+     * @param unit
+     * @throws IOException
+     *             if the platform's WatchService could not be created.
      */
-    private int lastNonGlobPath(String path) {
-        int last = 0;
-        for (int i = 0; i != path.length(); ++i) {
-            if (globChars.contains(path.charAt(i))) {
-                return last;
+    public synchronized void startWatching(long debounce, TimeUnit unit) throws IOException {
+        if (openedPath == null) {
+            throw new IllegalStateException("open() must be called before startWatching()");
+        }
+        if (watcher != null) {
+            return;
+        }
+        watcher = new ConfigurationWatcher(new Runnable() {
+            @Override
+            public void run() {
+                reload();
             }
-            if (path.charAt(i) == File.separatorChar) {
-                last = i + 1;
+        }, unit.toMillis(debounce));
+
+        Map<Path, List<PathMatcher>> watchTargets = openedWatchTargets;
+        if (watchTargets == null) {
+            // Opened from a snapshot, so the layers have yet to be expanded.
+            watchTargets = new LinkedHashMap<>();
+            expandPaths(openedPath, watchTargets, null, null);
+        }
+        watcher.setTargets(watchTargets);
+    }
+
+    private synchronized boolean isWatching() {
+        return watcher != null;
+    }
+
+    /**
+     * Stop watching for changes. The current effective configuration stays as it is.
+     */
+    public synchronized void stopWatching() throws IOException {
+        if (watcher != null) {
+            watcher.close();
+            watcher = null;
+            incrementalMerge = null;
+        }
+    }
+
+    /**
+     * Re-expand and re-merge the configuration that was last opened, and publish it if it changed.
+     */
+    private void reload() {
+        String path;
+        IncrementalMerge incremental;
+        synchronized (this) {
+            if (watcher == null) {
+                return;
             }
+            // Reloads usually touch one file at the end of a long stack, so they replay from a memoized prefix.
+            if (incrementalMerge == null) {
+                incrementalMerge = multipleConfigurationMerger.incrementalMerge();
+            }
+            path = openedPath;
+            incremental = incrementalMerge;
+        }
+
+        // Expanding, reading and merging happen outside the lock, so that readers of the configuration aren't kept waiting.
+        Map<Path, List<PathMatcher>> watchTargets = new LinkedHashMap<>();
+        Map<Object, Object> merged;
+        try {
+            Map<String, ConfigurationReaders.DigestedLayer> verified = new HashMap<>();
+            IncrementalMerge.Result result = incremental.merge(expandPaths(path, watchTargets, null, verified), verified);
+            log.debug("Reloaded configuration from layer " + result.getFirstReplayedLayer() + "; reparsed "
+                    + result.getReparsedLayers());
+            merged = result.getConfig();
+        } catch (IOException | RuntimeException e) {
+            log.warn("Could not reload configuration; keeping the previous one", e);
+            return;
         }
-        return -1; // no glob found.
+
+        Map<Object, Object> previous;
+        synchronized (this) {
+            if (incremental != incrementalMerge || !path.equals(openedPath)) {
+                // Watching stopped, or something else was opened, in the meantime.
+                return;
+            }
+            watcher.setTargets(watchTargets);
+            // Cheap: the two trees share every subtree the reload didn't touch.
+            if (merged.equals(effectiveTree)) {
+                return;
+            }
+            previous = effectiveTree;
+            effectiveTree = merged;
+        }
+
+        log.info("Configuration changed; notifying " + listeners.size() + " listener(s)");
+        for (ConfigurationChangeListener listener : listeners) {
+            try {
+                listener.configurationChanged(previous, merged);
+            } catch (RuntimeException e) {
+                log.error("Configuration change listener failed", e);
+            }
+        }
+    }
+
+    /**
+     * Use the snapshot in {@code value}, if there is a current one, instead of merging the layers in {@link #open}. Call before
+     * DropWizard opens the configuration; null turns snapshots off again.
+     * 
+     * @param value
+     *            - a file written by {@link #writeSnapshot}, e.g. through {@link SnapshotCommand}
+     */
+    public void setSnapshot(Path value) {
+        snapshot = value;
     }
 
     /**
-     * Expands {@code path} with glob patterns to return a sorted collection of absolute paths.
+     * Merge the configuration {@link #open(String)} would produce for {@code path}, and write it to {@code file} along with
+     * what's needed to tell later whether it is still current.
      * 
      * @param path
+     *            - the path DropWizard would open
+     * @param file
      */
-    private Collection<String> globPath(String path) throws IOException {
-        path = path.replaceFirst("^~" + File.separator, System.getProperty("user.home") + File.separator);
-
-        int lastSeparator = lastNonGlobPath(path);
-        if (lastSeparator >= 0) {
-            Set<String> absPaths = new TreeSet<>();
-            String dir = path.substring(0, lastSeparator);
-            path = path.substring(lastSeparator);
-            try (DirectoryStream<Path> dirStream = Files.newDirectoryStream(Paths.get(dir), path)) {
-                for (Path additionalPath : dirStream) {
-                    String absPath = additionalPath.toAbsolutePath().toString();
-                    absPaths.add(absPath);
-                }
+    public void writeSnapshot(String path, Path file) throws IOException {
+        List<String> patterns = patterns(path);
+        List<String> layers = null;
+        Map<String, Long> directories = null;
+
+        // A listing that changes between reading the directories' times and expanding the globs could hide a layer, so only
+        // record the times once a second expansion agrees with the first.
+        for (int attempt = 0; attempt < 3 && directories == null; ++attempt) {
+            Set<Path> searched = new LinkedHashSet<>();
+            layers = expandPaths(path, new LinkedHashMap<Path, List<PathMatcher>>(), searched, null);
+            Map<String, Long> times = ConfigurationSnapshot.modifiedTimes(searched);
+            Set<Path> searchedAgain = new LinkedHashSet<>();
+            if (layers.equals(expandPaths(path, new LinkedHashMap<Path, List<PathMatcher>>(), searchedAgain, null))
+                    && searched.equals(searchedAgain)) {
+                directories = times;
+            }
+        }
+
+        ConfigurationSnapshot.compile(patterns, directories, layers, multipleConfigurationMerger).write(file);
+    }
+
+    /**
+     * @return the configuration in {@code snapshot}, or null if it isn't there or is out of date.
+     */
+    private Map<Object, Object> loadSnapshot(String path, Path snapshot) throws IOException {
+        ConfigurationSnapshot current = ConfigurationSnapshot.read(snapshot);
+        if (current == null || !current.isFor(patterns(path), multipleConfigurationMerger)) {
+            log.info("No configuration snapshot for these layers in " + snapshot + "; merging them");
+            return null;
+        }
+        // A manifest can be edited without touching any directory, so only its contents say which layers it lists.
+        boolean layersUnchanged = current.directoriesUnchanged() && !hasManifest(patterns(path));
+        List<String> layers = layersUnchanged ? current.getLayers() : expandPaths(path,
+                new LinkedHashMap<Path, List<PathMatcher>>(), null, null);
+        if (!current.isCurrent(layers, multipleConfigurationMerger)) {
+            log.info("Configuration snapshot " + snapshot + " is out of date; merging the layers");
+            return null;
+        }
+        log.debug("Using configuration snapshot " + snapshot);
+        return multipleConfigurationMerger.substitute(current.getConfig());
+    }
+
+    /**
+     * {@code path} followed by every entry in {@link #overrideFiles}: what {@link #expandPaths} expands.
+     */
+    private List<String> patterns(String path) {
+        List<String> patterns = new ArrayList<String>();
+        patterns.add(path);
+        if (overrideFiles != null) {
+            patterns.addAll(overrideFiles);
+        }
+        return patterns;
+    }
+
+    /**
+     * Expand {@code path} and every entry in {@link #overrideFiles}, in order, into the list of layers to merge. Manifests are
+     * replaced by the layers they list, and the directories behind all of the glob patterns are listed in one pass, shared
+     * between the patterns. Layers a manifest gives a digest for are checked against it.
+     * 
+     * @param path
+     * @param watchTargets
+     *            - filled in with the directories and file name patterns that the result depends on
+     * @param searchedDirectories
+     *            - if non-null, filled in with the directories whose listings the result depends on
+     * @param verified
+     *            - if non-null, filled in with the layers parsed while checking their digests, for the merge to use rather
+     *            than reading them again
+     */
+    private List<String> expandPaths(String path, Map<Path, List<PathMatcher>> watchTargets, Set<Path> searchedDirectories,
+            Map<String, ConfigurationReaders.DigestedLayer> verified) throws IOException {
+        Map<String, String> digests = new LinkedHashMap<>();
+        List<String> paths = new ArrayList<String>();
+
+        ConfigurationMetrics.Stopwatch glob = multipleConfigurationMerger.getMetrics().start(MultipleConfigurationProvider.class,
+                "glob");
+        try {
+            List<String> patterns = LayerManifest.expand(patterns(path), multipleConfigurationMerger.getConfigurationReader(),
+                    watchTargets, digests);
+            GlobExpander expander = new GlobExpander(patterns, maxGlobDepth);
+            for (String pattern : patterns) {
+                paths.addAll(expander.expand(pattern, watchTargets));
+            }
+            if (searchedDirectories != null) {
+                searchedDirectories.addAll(expander.getSearchedDirectories());
+            }
+        } finally {
+            glob.stop();
+        }
+
+        Map<String, ConfigurationReaders.DigestedLayer> layers = multipleConfigurationMerger.verifyDigests(digests,
+                verified != null);
+        if (verified != null) {
+            verified.putAll(layers);
+        }
+        return paths;
+    }
+
+    private boolean hasManifest(List<String> patterns) {
+        for (String pattern : patterns) {
+            if (LayerManifest.isManifest(pattern)) {
+                return true;
             }
-            return absPaths;
-        } else {
-            return Arrays.asList(path);
         }
+        return false;
     }
 }
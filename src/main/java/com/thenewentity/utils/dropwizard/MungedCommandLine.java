@@ -15,6 +15,7 @@ public class MungedCommandLine {
     private Collection<String> extraArguments;
     private String[] originalArguments;
     private String[] defaultArguments;
+    private String configurationPath;
 
     /**
      * Provides an array of strings representing the command line without {@code extraArguments}.
@@ -44,6 +45,14 @@ public class MungedCommandLine {
         return defaultArguments;
     }
 
+    /**
+     * The configuration file DropWizard will open: the argument right after the '--', or null if there is no '--', or nothing
+     * after it.
+     */
+    public String getConfigurationPath() {
+        return configurationPath;
+    }
+
     /**
      * Return a {@link Builder} which knows how to generate a MungedCommandLine.
      */
@@ -82,6 +91,9 @@ public class MungedCommandLine {
             int overridesBegin = argv.lastIndexOf("--");
             if (overridesBegin >= 0) {
                 ++overridesBegin; // skip the "--".
+                if (overridesBegin < argv.size()) {
+                    result.configurationPath = argv.get(overridesBegin);
+                }
                 ++overridesBegin; // skip the main .yaml that dropwizard reads.
 
                 // Overrides only work if the '--' is far enough away from the end of the list.
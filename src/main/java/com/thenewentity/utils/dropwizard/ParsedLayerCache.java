@@ -0,0 +1,295 @@
+package com.thenewentity.utils.dropwizard;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.yaml.snakeyaml.Yaml;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+
+/**
+ * <p>
+ * A persistent, on-disk cache of parsed configuration layers, so that a layer which has not changed since the last start is
+ * loaded from a compact binary (Smile) form instead of being parsed as yaml again.
+ * </p>
+ *
+ * <p>
+ * Parsed trees are stored under the SHA-256 digest of the layer's contents, so identical layers that appear under different
+ * paths are parsed only once. For layers which are regular files, the cache also remembers the size, modification time and
+ * digest last seen at each path; if the size and modification time still match, the layer is loaded without even being read.
+ * </p>
+ *
+ * <p>
+ * Layers whose parsed tree would not survive the trip through Smile unchanged (non-string map keys, timestamps, binary
+ * scalars, sets) are never cached; they are simply parsed every time.
+ * </p>
+ *
+ * <p>
+ * The cache is safe to share between threads and between processes: entries are written to a temporary file and moved into
+ * place, and an unreadable entry is treated as a miss. Since whatever is in the cache becomes configuration, the directory
+ * must be private to the user the JVM runs as, and every entry is checked against a digest of its key and contents before it
+ * is used; see {@link PrivateCacheDirectory}.
+ * </p>
+ */
+public class ParsedLayerCache {
+
+    private static Logger log = LoggerFactory.getLogger(ParsedLayerCache.class);
+
+    private static final String EXTENSION = ".smile";
+
+    /**
+     * A file modified less than this long before we looked at it might be modified again within the same modification-time
+     * tick, so its size and modification time alone are not trusted to identify its contents.
+     */
+    private static final long RACY_WINDOW_MILLIS = 2000;
+
+    /** Marks a cache miss, since {@code null} is a legitimate parsed layer (an empty file). */
+    private static final Object MISSING = new Object();
+
+    private Path directory;
+    private PrivateCacheDirectory privateDirectory;
+    private ObjectMapper smileMapper;
+
+    ParsedLayerCache() {
+
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    public static class Builder {
+
+        ParsedLayerCache result;
+
+        Builder() {
+            result = new ParsedLayerCache();
+        }
+
+        public ParsedLayerCache build() {
+            if (result.directory == null) {
+                result.directory = PrivateCacheDirectory.defaultPath("dropwizard-multi-config-cache");
+            }
+            result.privateDirectory = new PrivateCacheDirectory(result.directory);
+            result.smileMapper = new ObjectMapper(new SmileFactory());
+            return result;
+        }
+
+        /**
+         * @param value
+         *            - the directory to keep cached layers in. Created on first use, readable only by its owner; an existing
+         *            directory must belong to the user the JVM runs as, and must not be writable by anyone else, or the cache
+         *            is not used. Defaults to {@code ${java.io.tmpdir}/dropwizard-multi-config-cache-${user.name}}.
+         */
+        public Builder setDirectory(Path value) {
+            result.directory = value;
+            return this;
+        }
+    }
+
+    public Path getDirectory() {
+        return directory;
+    }
+
+    /**
+     * Return the parsed contents of the layer at {@code path}, from the cache if possible. On a miss the layer is read with
+     * {@code reader}, parsed with {@code parser}, and stored for next time.
+     *
+     * @param path
+     *            - the layer's path, as given to {@link ConfigurationReader#readConfiguration(String)}
+     * @param reader
+     * @param parser
+     * @return the parsed layer, as {@link Yaml#load(String)} would return it.
+     */
+    public Object load(String path, ConfigurationReader reader, Yaml parser) {
+        Path file = resolveFile(path);
+        BasicFileAttributes attributes = readAttributes(file);
+
+        String absolutePath = attributes == null ? null : file.toAbsolutePath().normalize().toString();
+
+        if (attributes != null) {
+            String digest = readPathEntry(absolutePath, attributes);
+            if (digest != null) {
+                Object tree = readLayer(digest);
+                if (tree != MISSING) {
+                    return tree;
+                }
+            }
+        }
+
+        String digest = ConfigurationReaders.digest(reader, path);
+        Object tree = readLayer(digest);
+        if (tree == MISSING) {
+            ConfigurationReaders.DigestedLayer layer = ConfigurationReaders.loadWithDigest(reader, parser, path);
+            tree = layer.tree;
+            // Store what was actually parsed, in case the file changed since it was digested.
+            digest = layer.digest;
+            if (!ConfigNodes.isPortable(tree)) {
+                log.debug("Not caching layer " + path + "; it cannot be stored without changing its meaning");
+                return tree;
+            }
+            writeLayer(digest, tree);
+        }
+
+        if (attributes != null && System.currentTimeMillis() - attributes.lastModifiedTime().toMillis() >= RACY_WINDOW_MILLIS) {
+            writePathEntry(absolutePath, attributes, digest);
+        }
+        return tree;
+    }
+
+    /**
+     * Whether the layer at {@code path} has the SHA-256 {@code digest}. A file whose size and modification time are the ones
+     * recorded with that digest is taken to have it without being read; anything else is read and digested, and a match
+     * recorded, so that {@link #load} can then find the parsed layer without reading the file either.
+     *
+     * @param path
+     * @param reader
+     * @param digest
+     *            - as hex
+     */
+    boolean hasDigest(String path, ConfigurationReader reader, String digest) {
+        Path file = resolveFile(path);
+        BasicFileAttributes attributes = readAttributes(file);
+        String absolutePath = attributes == null ? null : file.toAbsolutePath().normalize().toString();
+        if (attributes != null && digest.equals(readPathEntry(absolutePath, attributes))) {
+            return true;
+        }
+        if (!digest.equals(ConfigurationReaders.digest(reader, path))) {
+            return false;
+        }
+        if (attributes != null && System.currentTimeMillis() - attributes.lastModifiedTime().toMillis() >= RACY_WINDOW_MILLIS) {
+            writePathEntry(absolutePath, attributes, digest);
+        }
+        return true;
+    }
+
+    /**
+     * Return the digest recorded for the file at {@code path}, provided the file's size and modification time are still the
+     * ones recorded alongside it.
+     */
+    private String readPathEntry(String path, BasicFileAttributes attributes) {
+        Object entry = read(pathEntryFile(path), path);
+        if (!(entry instanceof Map<?, ?>)) {
+            return null;
+        }
+        Map<?, ?> fields = (Map<?, ?>) entry;
+        if (!path.equals(fields.get("path")) || !(fields.get("digest") instanceof String)) {
+            return null;
+        }
+        if (!(fields.get("size") instanceof Number) || ((Number) fields.get("size")).longValue() != attributes.size()) {
+            return null;
+        }
+        if (!(fields.get("modified") instanceof Number)
+                || ((Number) fields.get("modified")).longValue() != attributes.lastModifiedTime().toMillis()) {
+            return null;
+        }
+        return (String) fields.get("digest");
+    }
+
+    private void writePathEntry(String path, BasicFileAttributes attributes, String digest) {
+        Map<String, Object> fields = new LinkedHashMap<>();
+        fields.put("path", path);
+        fields.put("size", attributes.size());
+        fields.put("modified", attributes.lastModifiedTime().toMillis());
+        fields.put("digest", digest);
+        write(pathEntryFile(path), path, fields);
+    }
+
+    private Object readLayer(String digest) {
+        return read(layerFile(digest), digest);
+    }
+
+    private void writeLayer(String digest, Object tree) {
+        write(layerFile(digest), digest, tree);
+    }
+
+    private Path pathEntryFile(String path) {
+        return directory.resolve("paths").resolve(DigestUtils.sha256Hex(path.getBytes(StandardCharsets.UTF_8)) + EXTENSION);
+    }
+
+    private Path layerFile(String digest) {
+        return directory.resolve("layers").resolve(digest + EXTENSION);
+    }
+
+    /**
+     * @param key
+     *            - what the entry was written for, which it must have been sealed with
+     */
+    private Object read(Path file, String key) {
+        if (!privateDirectory.isUsable() || !Files.isRegularFile(file, LinkOption.NOFOLLOW_LINKS)) {
+            return MISSING;
+        }
+        try {
+            byte[] contents = PrivateCacheDirectory.unseal(key, Files.readAllBytes(file));
+            if (contents == null) {
+                log.debug("Ignoring cache entry " + file + "; it does not match its seal");
+                return MISSING;
+            }
+            return smileMapper.readValue(contents, Object.class);
+        } catch (IOException e) {
+            log.debug("Ignoring unreadable cache entry " + file, e);
+            return MISSING;
+        }
+    }
+
+    private void write(Path file, String key, Object value) {
+        if (!privateDirectory.isUsable()) {
+            return;
+        }
+        try {
+            Files.createDirectories(file.getParent());
+            Path temporary = Files.createTempFile(file.getParent(), file.getFileName().toString(), ".tmp");
+            try {
+                Files.write(temporary, PrivateCacheDirectory.seal(key, smileMapper.writeValueAsBytes(value)));
+                try {
+                    Files.move(temporary, file, StandardCopyOption.ATOMIC_MOVE);
+                } catch (AtomicMoveNotSupportedException e) {
+                    Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING);
+                }
+            } finally {
+                Files.deleteIfExists(temporary);
+            }
+        } catch (IOException e) {
+            // The cache is an optimization; failing to populate it must not fail the load.
+            log.debug("Could not write cache entry " + file, e);
+        }
+    }
+
+    /**
+     * Expands {@code path} the same way {@link DefaultConfigurationReader} does, returning null if it does not name a file.
+     */
+    private static Path resolveFile(String path) {
+        try {
+            return Paths.get(path.replaceFirst("^~" + File.separator, System.getProperty("user.home") + File.separator));
+        } catch (InvalidPathException e) {
+            return null;
+        }
+    }
+
+    private static BasicFileAttributes readAttributes(Path file) {
+        if (file == null) {
+            return null;
+        }
+        try {
+            BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+            return attributes.isRegularFile() ? attributes : null;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+}
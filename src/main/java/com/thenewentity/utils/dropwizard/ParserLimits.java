@@ -0,0 +1,366 @@
+package com.thenewentity.utils.dropwizard;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.io.StringReader;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.yaml.snakeyaml.DumperOptions;
+import org.yaml.snakeyaml.Yaml;
+import org.yaml.snakeyaml.composer.Composer;
+import org.yaml.snakeyaml.constructor.Constructor;
+import org.yaml.snakeyaml.error.YAMLException;
+import org.yaml.snakeyaml.events.AliasEvent;
+import org.yaml.snakeyaml.events.CollectionEndEvent;
+import org.yaml.snakeyaml.events.CollectionStartEvent;
+import org.yaml.snakeyaml.events.Event;
+import org.yaml.snakeyaml.events.ScalarEvent;
+import org.yaml.snakeyaml.nodes.Node;
+import org.yaml.snakeyaml.parser.Parser;
+import org.yaml.snakeyaml.parser.ParserImpl;
+import org.yaml.snakeyaml.reader.StreamReader;
+import org.yaml.snakeyaml.reader.UnicodeReader;
+import org.yaml.snakeyaml.representer.Representer;
+
+/**
+ * <p>
+ * Limits on what one layer may hold, checked while the layer is parsed rather than afterwards:
+ * </p>
+ *
+ * <ul>
+ * <li>bytes - the size of the layer as read</li>
+ * <li>nodes - maps, lists and scalars, map keys included, with every alias expanded</li>
+ * <li>depth - how deeply maps and lists nest, again with aliases expanded</li>
+ * <li>aliases - how many aliases are expanded, counting those inside an alias each time it is</li>
+ * </ul>
+ *
+ * <p>
+ * SnakeYAML resolves an alias to the node it names without copying it, so a few kilobytes of aliases of aliases (a "billion
+ * laughs") parse quickly, and only explode when the tree is frozen, merged or bound. The limits count the tree as it will be
+ * once expanded, from the parser's events, so such a layer fails as soon as it crosses one, before anything is built from
+ * it. A limit of zero or less means no limit.
+ * </p>
+ */
+final class ParserLimits {
+
+    static final ParserLimits NONE = new ParserLimits(0, 0, 0, 0);
+
+    private final long maxBytes;
+    private final long maxNodes;
+    private final long maxDepth;
+    private final long maxAliases;
+
+    ParserLimits(long maxBytes, long maxNodes, long maxDepth, long maxAliases) {
+        this.maxBytes = maxBytes > 0 ? maxBytes : Long.MAX_VALUE;
+        this.maxNodes = maxNodes > 0 ? maxNodes : Long.MAX_VALUE;
+        this.maxDepth = maxDepth > 0 ? maxDepth : Long.MAX_VALUE;
+        this.maxAliases = maxAliases > 0 ? maxAliases : Long.MAX_VALUE;
+    }
+
+    boolean isEnabled() {
+        return maxBytes != Long.MAX_VALUE || maxNodes != Long.MAX_VALUE || maxDepth != Long.MAX_VALUE
+                || maxAliases != Long.MAX_VALUE;
+    }
+
+    /**
+     * A parser which loads as {@link Yaml#load} does, with a {@link LayerResolver}, but enforces these limits. Like any
+     * {@link Yaml}, it must not be shared between threads.
+     */
+    Yaml newYaml() {
+        return isEnabled() ? new LimitedYaml(this) : new Yaml(new Constructor(), new Representer(), new DumperOptions(),
+                new LayerResolver());
+    }
+
+    /**
+     * @return {@code stream}, failing any read which takes it past the byte limit.
+     */
+    InputStream limit(InputStream stream) {
+        return maxBytes == Long.MAX_VALUE ? stream : new LimitedInputStream(stream, maxBytes);
+    }
+
+    /**
+     * Check the size of a layer which has already been read, as the UTF-8 it was (most likely) read from.
+     */
+    void checkLength(String content) {
+        if (maxBytes == Long.MAX_VALUE || content.length() <= maxBytes / 3) {
+            return;
+        }
+        if (ConfigurationReaders.utf8Length(content) > maxBytes) {
+            throw tooManyBytes(maxBytes);
+        }
+    }
+
+    Counter newCounter() {
+        return new Counter();
+    }
+
+    private static LimitExceededException tooManyBytes(long maxBytes) {
+        return new LimitExceededException("is larger than the limit of " + maxBytes + " bytes");
+    }
+
+    /**
+     * Thrown when a layer crosses one of the limits.
+     */
+    static final class LimitExceededException extends YAMLException {
+        private static final long serialVersionUID = 1L;
+
+        private LimitExceededException(String message) {
+            super(message);
+        }
+
+        /**
+         * @return an exception naming the layer at {@code path}.
+         */
+        LimitExceededException in(String path) {
+            LimitExceededException named = new LimitExceededException("Configuration layer " + path + " " + getMessage());
+            named.setStackTrace(getStackTrace());
+            return named;
+        }
+    }
+
+    /**
+     * Counts the nodes, depth and aliases of one layer as its events are read.
+     */
+    final class Counter {
+
+        private long nodes;
+        private long depth;
+        private long aliases;
+        private final Deque<Open> open = new ArrayDeque<>();
+        // What each anchor expands to, for its aliases.
+        private final Map<String, Expansion> anchors = new HashMap<>();
+
+        /**
+         * A scalar, or a map key.
+         */
+        void scalar(String anchor) {
+            addNodes(1);
+            if (anchor != null) {
+                anchors.put(anchor, new Expansion(1, 0, 0));
+            }
+        }
+
+        /**
+         * The start of a map or list.
+         */
+        void start(String anchor) {
+            addNodes(1);
+            reachDepth(depth + 1);
+            depth++;
+            open.push(new Open(anchor, nodes - 1, aliases, depth));
+        }
+
+        /**
+         * The end of a map or list.
+         */
+        void end() {
+            Open collection = open.pop();
+            if (collection.anchor != null) {
+                anchors.put(collection.anchor, new Expansion(nodes - collection.nodes, aliases - collection.aliases,
+                        collection.deepest - collection.depth + 1));
+            }
+            depth--;
+            if (!open.isEmpty()) {
+                open.peek().deepest = Math.max(open.peek().deepest, collection.deepest);
+            }
+        }
+
+        void alias(String anchor) {
+            Expansion expansion = anchors.get(anchor);
+            if (expansion == null) {
+                // The anchor is still open: the node contains itself, and never stops expanding.
+                expansion = new Expansion(Long.MAX_VALUE, Long.MAX_VALUE, Long.MAX_VALUE);
+            }
+            aliases = saturatedAdd(aliases, saturatedAdd(1, expansion.aliases));
+            if (aliases > maxAliases) {
+                throw new LimitExceededException("expands more than the limit of " + maxAliases + " aliases");
+            }
+            addNodes(expansion.nodes);
+            reachDepth(saturatedAdd(depth, expansion.depth));
+        }
+
+        private void addNodes(long count) {
+            nodes = saturatedAdd(nodes, count);
+            if (nodes > maxNodes) {
+                throw new LimitExceededException("has more than the limit of " + maxNodes + " nodes");
+            }
+        }
+
+        private void reachDepth(long reached) {
+            if (reached > maxDepth) {
+                throw new LimitExceededException("nests maps and lists more than the limit of " + maxDepth + " deep");
+            }
+            if (!open.isEmpty()) {
+                open.peek().deepest = Math.max(open.peek().deepest, reached);
+            }
+        }
+    }
+
+    private static long saturatedAdd(long a, long b) {
+        long sum = a + b;
+        return sum < 0 ? Long.MAX_VALUE : sum;
+    }
+
+    /**
+     * A map or list which has started but not yet ended, with the counts as they were when it started.
+     */
+    private static final class Open {
+        private final String anchor;
+        private final long nodes;
+        private final long aliases;
+        private final long depth;
+        private long deepest;
+
+        Open(String anchor, long nodes, long aliases, long depth) {
+            this.anchor = anchor;
+            this.nodes = nodes;
+            this.aliases = aliases;
+            this.depth = depth;
+            this.deepest = depth;
+        }
+    }
+
+    /**
+     * What an alias of an anchored node adds: its nodes, the aliases within it, and its own depth.
+     */
+    private static final class Expansion {
+        private final long nodes;
+        private final long aliases;
+        private final long depth;
+
+        Expansion(long nodes, long aliases, long depth) {
+            this.nodes = nodes;
+            this.aliases = aliases;
+            this.depth = depth;
+        }
+    }
+
+    /**
+     * Hands the composer the parser's events, counting each one as it goes.
+     */
+    private static final class CountingParser implements Parser {
+        private final Parser parser;
+        private final Counter counter;
+
+        CountingParser(Parser parser, Counter counter) {
+            this.parser = parser;
+            this.counter = counter;
+        }
+
+        @Override
+        public boolean checkEvent(Event.ID choice) {
+            return parser.checkEvent(choice);
+        }
+
+        @Override
+        public Event peekEvent() {
+            return parser.peekEvent();
+        }
+
+        @Override
+        public Event getEvent() {
+            Event event = parser.getEvent();
+            if (event instanceof ScalarEvent) {
+                counter.scalar(((ScalarEvent) event).getAnchor());
+            } else if (event instanceof CollectionStartEvent) {
+                counter.start(((CollectionStartEvent) event).getAnchor());
+            } else if (event instanceof CollectionEndEvent) {
+                counter.end();
+            } else if (event instanceof AliasEvent) {
+                counter.alias(((AliasEvent) event).getAnchor());
+            }
+            return event;
+        }
+    }
+
+    private static final class LimitedInputStream extends FilterInputStream {
+        private final long maxBytes;
+        private long read;
+
+        LimitedInputStream(InputStream stream, long maxBytes) {
+            super(stream);
+            this.maxBytes = maxBytes;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) {
+                count(1);
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            int count = super.read(buffer, offset, length);
+            if (count > 0) {
+                count(count);
+            }
+            return count;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = super.skip(n);
+            count(skipped);
+            return skipped;
+        }
+
+        private void count(long bytes) {
+            read += bytes;
+            if (read > maxBytes) {
+                throw tooManyBytes(maxBytes);
+            }
+        }
+    }
+
+    /**
+     * Exposes the construction of a composed node, which {@link Yaml} only does straight after composing it.
+     */
+    private static final class NodeConstructor extends Constructor {
+        Object construct(Node node) {
+            return node == null ? null : constructDocument(node);
+        }
+    }
+
+    /**
+     * Composes a layer through a {@link CountingParser}, and only then constructs it.
+     */
+    private static final class LimitedYaml extends Yaml {
+        private final ParserLimits limits;
+        private final NodeConstructor nodeConstructor;
+
+        LimitedYaml(ParserLimits limits) {
+            this(limits, new NodeConstructor());
+        }
+
+        private LimitedYaml(ParserLimits limits, NodeConstructor constructor) {
+            super(constructor, new Representer(), new DumperOptions(), new LayerResolver());
+            this.limits = limits;
+            this.nodeConstructor = constructor;
+        }
+
+        @Override
+        public Object load(String yaml) {
+            limits.checkLength(yaml);
+            return load(new StringReader(yaml));
+        }
+
+        @Override
+        public Object load(InputStream io) {
+            return load(new UnicodeReader(limits.limit(io)));
+        }
+
+        @Override
+        public Object load(Reader io) {
+            Parser parser = new CountingParser(new ParserImpl(new StreamReader(io)), limits.newCounter());
+            return nodeConstructor.construct(new Composer(parser, resolver).getSingleNode());
+        }
+    }
+}
@@ -0,0 +1,325 @@
+package com.thenewentity.utils.dropwizard;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import org.yaml.snakeyaml.error.YAMLException;
+
+/**
+ * <p>
+ * Expands the top-level keys of a layer which are paths into the nested nodes they stand for, so that
+ *
+ * <pre>
+ * logging.loggers."org.foo": DEBUG
+ * server.applicationConnectors[0].port: 5309
+ * </pre>
+ *
+ * merges exactly as the equivalent nested yaml would. Path segments are separated by {@code .}; a segment in double quotes
+ * may contain dots and brackets, and a backslash escapes the character after it, in or out of quotes. {@code [n]} addresses
+ * the n-th entry of a list; entries of the list which no key mentions are left alone by the merge. An index may be at most
+ * the length of the list it is merged into, which appends to the list; one past that is an error, as is any index other than
+ * a run from {@code [0]} up when there is no list below.
+ * </p>
+ *
+ * <p>
+ * Only top-level keys are expanded, since keys further down (logger names, for instance) legitimately contain dots. All of a
+ * layer's keys go into one trie first, so each costs time proportional to its depth, and the nested nodes are built once,
+ * from the trie. Keys which overlap are merged in the order they appear, just as they would be from separate layers. Indexes
+ * which skip entries are kept as an {@link IndexedList}, which holds only the entries the keys mention.
+ * </p>
+ */
+final class PathKeys {
+
+    private PathKeys() {
+
+    }
+
+    /**
+     * @param layer
+     *            - a parsed, frozen layer
+     * @param merger
+     *            - merges a key's value with more specific keys under it
+     * @param path
+     *            - where the layer came from, for error messages
+     * @return {@code layer} with its path keys expanded; {@code layer} itself if it has none.
+     */
+    static Object expand(Object layer, MultipleConfigurationMerger merger, String path) {
+        if (!(layer instanceof Map<?, ?>)) {
+            return layer;
+        }
+        Map<?, ?> entries = (Map<?, ?>) layer;
+        boolean anyPaths = false;
+        for (Object key : entries.keySet()) {
+            if (isPath(key)) {
+                anyPaths = true;
+                break;
+            }
+        }
+        if (!anyPaths) {
+            return layer;
+        }
+
+        Node root = new Node();
+        for (Map.Entry<?, ?> entry : entries.entrySet()) {
+            Node node = root;
+            if (isPath(entry.getKey())) {
+                for (Object segment : parse((String) entry.getKey(), path)) {
+                    node = node.child(segment);
+                }
+            } else {
+                node = node.child(entry.getKey());
+            }
+            node.set(entry.getValue(), merger, path);
+        }
+        return root.build(merger, path);
+    }
+
+    /**
+     * @return an ordinary list if {@code entries} are {@code [0]} to {@code [n - 1]}, which merges entry by entry; otherwise
+     *         an {@link IndexedList}.
+     */
+    static Object list(TreeMap<Integer, Object> entries, String path) {
+        if (entries.lastKey() == entries.size() - 1) {
+            return new ImmutableConfigList(entries.values().toArray());
+        }
+        return new IndexedList(entries, path);
+    }
+
+    /**
+     * Check a node which is about to go into a merged configuration with nothing below it to merge with.
+     * 
+     * @throws YAMLException
+     *             if it holds an {@link IndexedList}, whose indexes are then past the end of the (empty) list.
+     */
+    static void checkUnmerged(Object node) {
+        if (node instanceof IndexedList) {
+            IndexedList list = (IndexedList) node;
+            int size = list.firstGap();
+            throw list.pastEnd(list.getEntries().tailMap(size).firstKey(), size);
+        } else if (node instanceof Map<?, ?>) {
+            for (Object value : ((Map<?, ?>) node).values()) {
+                checkUnmerged(value);
+            }
+        } else if (node instanceof List<?>) {
+            for (Object value : (List<?>) node) {
+                checkUnmerged(value);
+            }
+        }
+    }
+
+    private static boolean isPath(Object key) {
+        if (!(key instanceof String)) {
+            return false;
+        }
+        String text = (String) key;
+        for (int i = 0; i < text.length(); ++i) {
+            char c = text.charAt(i);
+            if (c == '.' || c == '[' || c == '"' || c == '\\') {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Split a path key into its segments: Strings for map keys, Integers for list indexes.
+     */
+    static List<Object> parse(String key, String path) {
+        List<Object> segments = new ArrayList<>();
+        int i = 0;
+        boolean expectName = true;
+        while (i < key.length()) {
+            char c = key.charAt(i);
+            if (c == '[') {
+                int close = key.indexOf(']', i);
+                if (close < 0 || expectName) {
+                    throw malformed(key, path);
+                }
+                int index;
+                try {
+                    index = Integer.parseInt(key.substring(i + 1, close));
+                } catch (NumberFormatException e) {
+                    throw malformed(key, path);
+                }
+                if (index < 0) {
+                    throw malformed(key, path);
+                }
+                segments.add(index);
+                i = close + 1;
+                expectName = false;
+            } else if (c == '.') {
+                if (expectName) {
+                    throw malformed(key, path);
+                }
+                ++i;
+                expectName = true;
+            } else {
+                if (!expectName) {
+                    throw malformed(key, path);
+                }
+                StringBuilder name = new StringBuilder();
+                if (c == '"') {
+                    for (++i;; ++i) {
+                        if (i >= key.length()) {
+                            throw malformed(key, path);
+                        }
+                        c = key.charAt(i);
+                        if (c == '"') {
+                            ++i;
+                            break;
+                        }
+                        if (c == '\\' && ++i < key.length()) {
+                            c = key.charAt(i);
+                        }
+                        name.append(c);
+                    }
+                } else {
+                    for (; i < key.length(); ++i) {
+                        c = key.charAt(i);
+                        if (c == '.' || c == '[' || c == '"') {
+                            break;
+                        }
+                        if (c == '\\') {
+                            if (++i >= key.length()) {
+                                throw malformed(key, path);
+                            }
+                            c = key.charAt(i);
+                        }
+                        name.append(c);
+                    }
+                }
+                segments.add(name.toString());
+                expectName = false;
+            }
+        }
+        if (expectName) {
+            throw malformed(key, path);
+        }
+        return segments;
+    }
+
+    private static YAMLException malformed(String key, String path) {
+        return new YAMLException("Malformed path key '" + key + "' in " + path);
+    }
+
+    /**
+     * A node of the trie: the value given for exactly this path, if any, and the more specific keys below it.
+     */
+    private static class Node {
+        private boolean hasValue;
+        private Object value;
+        private Map<Object, Node> fields;
+        private TreeMap<Integer, Node> indexes;
+
+        Node child(Object segment) {
+            Node child;
+            if (segment instanceof Integer) {
+                // A later list index replaces earlier map keys at the same path, and vice versa.
+                fields = null;
+                if (indexes == null) {
+                    indexes = new TreeMap<>();
+                }
+                child = indexes.get(segment);
+                if (child == null) {
+                    child = new Node();
+                    indexes.put((Integer) segment, child);
+                }
+            } else {
+                indexes = null;
+                if (fields == null) {
+                    fields = new LinkedHashMap<>();
+                }
+                child = fields.get(segment);
+                if (child == null) {
+                    child = new Node();
+                    fields.put(segment, child);
+                }
+            }
+            return child;
+        }
+
+        void set(Object value, MultipleConfigurationMerger merger, String path) {
+            if (hasValue || fields != null || indexes != null) {
+                // Something was already said about this path; the new value merges over it.
+                value = merger.mergeWithinLayer(build(merger, path), value);
+            }
+            this.hasValue = true;
+            this.value = value;
+            this.fields = null;
+            this.indexes = null;
+        }
+
+        Object build(MultipleConfigurationMerger merger, String path) {
+            Object children = null;
+            if (fields != null) {
+                LinkedHashMap<Object, Object> entries = new LinkedHashMap<>();
+                for (Map.Entry<Object, Node> field : fields.entrySet()) {
+                    entries.put(field.getKey(), field.getValue().build(merger, path));
+                }
+                children = new ImmutableConfigMap(entries);
+            } else if (indexes != null) {
+                TreeMap<Integer, Object> entries = new TreeMap<>();
+                for (Map.Entry<Integer, Node> index : indexes.entrySet()) {
+                    entries.put(index.getKey(), index.getValue().build(merger, path));
+                }
+                children = list(entries, path);
+            }
+            if (!hasValue) {
+                return children;
+            }
+            return children == null ? value : merger.mergeWithinLayer(value, children);
+        }
+    }
+
+    /**
+     * The entries of a list that a layer's path keys mention, by index, when they skip some. The merge applies each entry to
+     * the list below; until then, it is not a node of the configuration, and never ends up in a merged one.
+     */
+    static final class IndexedList {
+
+        private final SortedMap<Integer, Object> entries;
+        private final String path;
+
+        IndexedList(SortedMap<Integer, Object> entries, String path) {
+            this.entries = Collections.unmodifiableSortedMap(entries);
+            this.path = path;
+        }
+
+        SortedMap<Integer, Object> getEntries() {
+            return entries;
+        }
+
+        String getPath() {
+            return path;
+        }
+
+        /**
+         * The first index which an entry is missing for.
+         */
+        int firstGap() {
+            int expected = 0;
+            for (Integer index : entries.keySet()) {
+                if (index != expected) {
+                    break;
+                }
+                ++expected;
+            }
+            return expected;
+        }
+
+        YAMLException pastEnd(int index, int size) {
+            return new YAMLException("List index [" + index + "] in " + path + " is past the end of a list of " + size
+                    + " entries");
+        }
+
+        @Override
+        public String toString() {
+            return entries.toString();
+        }
+    }
+}
@@ -0,0 +1,156 @@
+package com.thenewentity.utils.dropwizard;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.nio.file.attribute.UserPrincipal;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Set;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * <p>
+ * A directory which caches entries that later become configuration, such as {@link ParsedLayerCache}'s parsed layers and
+ * {@link HttpConfigurationReader}'s downloads. Anyone who can write to such a directory can change the configuration, so the
+ * cache is only used if the directory belongs to the user the JVM runs as, is not a symbolic link, and (where the file system
+ * has POSIX permissions) can't be written by its group or by others. A directory which doesn't exist yet is created that way,
+ * readable only by its owner. Otherwise the cache logs a warning and stays unused: every read misses and nothing is written.
+ * </p>
+ *
+ * <p>
+ * Entries are {@link #seal sealed} with the SHA-256 of their key and contents, so one which was truncated, corrupted, or
+ * copied to another key's file is ignored rather than used.
+ * </p>
+ */
+final class PrivateCacheDirectory {
+
+    private static Logger log = LoggerFactory.getLogger(PrivateCacheDirectory.class);
+
+    private static final int SEAL_LENGTH = 32;
+
+    private static final Set<PosixFilePermission> OWNER_ONLY = PosixFilePermissions.fromString("rwx------");
+
+    private final Path directory;
+    // Null until the directory has been checked.
+    private Boolean usable;
+
+    PrivateCacheDirectory(Path directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * The default directory for the cache called {@code name}: one per user, under {@code java.io.tmpdir}.
+     */
+    static Path defaultPath(String name) {
+        String user = System.getProperty("user.name", "").replaceAll("[^A-Za-z0-9._-]", "_");
+        return Paths.get(System.getProperty("java.io.tmpdir"), name + "-" + user);
+    }
+
+    Path getPath() {
+        return directory;
+    }
+
+    /**
+     * Whether the directory may be used, creating it if need be. The directory is only checked the first time.
+     */
+    synchronized boolean isUsable() {
+        if (usable == null) {
+            usable = prepare();
+        }
+        return usable;
+    }
+
+    private boolean prepare() {
+        try {
+            boolean posix = directory.getFileSystem().supportedFileAttributeViews().contains("posix");
+            if (!Files.exists(directory, LinkOption.NOFOLLOW_LINKS)) {
+                Path parent = directory.toAbsolutePath().getParent();
+                if (parent != null) {
+                    Files.createDirectories(parent);
+                }
+                try {
+                    if (posix) {
+                        Files.createDirectory(directory, PosixFilePermissions.asFileAttribute(OWNER_ONLY));
+                    } else {
+                        Files.createDirectory(directory);
+                    }
+                } catch (FileAlreadyExistsException e) {
+                    // Created by someone else in the meantime; checked below like any other.
+                }
+            }
+
+            if (!Files.readAttributes(directory, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS).isDirectory()) {
+                return refuse("it is not a directory");
+            }
+            UserPrincipal owner = Files.getOwner(directory, LinkOption.NOFOLLOW_LINKS);
+            UserPrincipal user = directory.getFileSystem().getUserPrincipalLookupService()
+                    .lookupPrincipalByName(System.getProperty("user.name"));
+            if (!owner.equals(user)) {
+                return refuse("it belongs to " + owner.getName());
+            }
+            if (posix) {
+                Set<PosixFilePermission> permissions = Files
+                        .getFileAttributeView(directory, PosixFileAttributeView.class, LinkOption.NOFOLLOW_LINKS).readAttributes()
+                        .permissions();
+                if (permissions.contains(PosixFilePermission.GROUP_WRITE)
+                        || permissions.contains(PosixFilePermission.OTHERS_WRITE)) {
+                    return refuse("others can write to it");
+                }
+            }
+            return true;
+        } catch (IOException | UnsupportedOperationException e) {
+            log.warn("Not using cache directory " + directory + "; it could not be checked", e);
+            return false;
+        }
+    }
+
+    private boolean refuse(String reason) {
+        log.warn("Not using cache directory " + directory + "; " + reason);
+        return false;
+    }
+
+    /**
+     * Prefix {@code contents} with the SHA-256 of {@code key} and {@code contents}.
+     */
+    static byte[] seal(String key, byte[] contents) {
+        byte[] seal = digest(key, contents, 0, contents.length);
+        byte[] sealed = Arrays.copyOf(seal, SEAL_LENGTH + contents.length);
+        System.arraycopy(contents, 0, sealed, SEAL_LENGTH, contents.length);
+        return sealed;
+    }
+
+    /**
+     * @return the contents {@code sealed} was {@link #seal sealed} with under {@code key}, or null if it wasn't.
+     */
+    static byte[] unseal(String key, byte[] sealed) {
+        if (sealed.length < SEAL_LENGTH) {
+            return null;
+        }
+        byte[] seal = digest(key, sealed, SEAL_LENGTH, sealed.length - SEAL_LENGTH);
+        if (!MessageDigest.isEqual(seal, Arrays.copyOf(sealed, SEAL_LENGTH))) {
+            return null;
+        }
+        return Arrays.copyOfRange(sealed, SEAL_LENGTH, sealed.length);
+    }
+
+    private static byte[] digest(String key, byte[] contents, int offset, int length) {
+        MessageDigest sha256 = DigestUtils.getSha256Digest();
+        sha256.update(key.getBytes(StandardCharsets.UTF_8));
+        // Keys never contain NUL, so this keeps where the key ends from being moved into the contents.
+        sha256.update((byte) 0);
+        sha256.update(contents, offset, length);
+        return sha256.digest();
+    }
+}
@@ -0,0 +1,46 @@
+package com.thenewentity.utils.dropwizard;
+
+import io.dropwizard.cli.Command;
+import io.dropwizard.setup.Bootstrap;
+
+import java.nio.file.Paths;
+
+import net.sourceforge.argparse4j.inf.Namespace;
+import net.sourceforge.argparse4j.inf.Subparser;
+
+/**
+ * <p>
+ * Merges the layer stack ahead of time and writes the result as a snapshot, which
+ * {@link MultipleConfigurationProvider#setSnapshot} then loads at startup for as long as none of the layers change. Registered
+ * by {@link MultipleConfigurationApplication}, and run with the same layers the application is started with:
+ * </p>
+ *
+ * <pre>
+ * java -jar service.jar snapshot --output /app/config.snapshot -- service.yaml conf.d/*.yaml
+ * </pre>
+ */
+public class SnapshotCommand extends Command {
+
+    private final MultipleConfigurationProvider provider;
+
+    public SnapshotCommand(MultipleConfigurationProvider provider) {
+        super("snapshot", "Merges the configuration layers ahead of time into a snapshot that is loaded at startup");
+        this.provider = provider;
+    }
+
+    @Override
+    public void configure(Subparser subparser) {
+        //@formatter:off
+        subparser.addArgument("-o", "--output")
+                .required(true)
+                .help("the snapshot file to write");
+        subparser.addArgument("file")
+                .help("application configuration file");
+        //@formatter:on
+    }
+
+    @Override
+    public void run(Bootstrap<?> bootstrap, Namespace namespace) throws Exception {
+        provider.writeSnapshot(namespace.getString("file"), Paths.get(namespace.getString("output")));
+    }
+}
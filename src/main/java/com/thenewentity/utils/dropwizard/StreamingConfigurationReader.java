@@ -0,0 +1,17 @@
+package com.thenewentity.utils.dropwizard;
+
+import java.io.InputStream;
+
+/**
+ * A {@link ConfigurationReader} which can also hand out a configuration file as a stream, so that large files can be fed to
+ * the parser without first being copied into a {@code byte[]} and then into a {@code String}. When the configured reader
+ * implements this interface, {@link MultipleConfigurationMerger} always uses the stream.
+ */
+public interface StreamingConfigurationReader extends ConfigurationReader {
+
+    /**
+     * Open a configuration file for reading. The stream is expected to be UTF-8, or to begin with a byte order mark. If there
+     * are *any* errors opening the file, the method should return an empty stream. The caller closes the stream.
+     */
+    public InputStream openConfiguration(String path);
+}
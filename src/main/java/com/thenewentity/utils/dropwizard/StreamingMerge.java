@@ -0,0 +1,273 @@
+package com.thenewentity.utils.dropwizard;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.ListIterator;
+import java.util.Map;
+
+import org.apache.commons.io.IOUtils;
+import org.yaml.snakeyaml.constructor.Constructor;
+import org.yaml.snakeyaml.error.YAMLException;
+import org.yaml.snakeyaml.events.CollectionStartEvent;
+import org.yaml.snakeyaml.events.Event;
+import org.yaml.snakeyaml.events.MappingStartEvent;
+import org.yaml.snakeyaml.events.ScalarEvent;
+import org.yaml.snakeyaml.nodes.NodeId;
+import org.yaml.snakeyaml.nodes.ScalarNode;
+import org.yaml.snakeyaml.nodes.Tag;
+import org.yaml.snakeyaml.reader.UnicodeReader;
+
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.core.ObjectCodec;
+import com.fasterxml.jackson.core.io.IOContext;
+import com.fasterxml.jackson.core.util.BufferRecycler;
+import com.fasterxml.jackson.dataformat.yaml.YAMLFactory;
+import com.fasterxml.jackson.dataformat.yaml.YAMLParser;
+
+/**
+ * <p>
+ * Merges a stack of layers straight from Jackson's yaml token stream, without first loading each layer into a tree of its
+ * own. Layers are read last to first, each one merged <em>below</em> what the layers after it have already established, so a
+ * subtree which a later layer replaces outright (a scalar over a map, say, or a map over a list) is skipped token by token
+ * rather than built and thrown away. The result is the same as {@link MultipleConfigurationMerger#mergeConfigs}'s.
+ * </p>
+ *
+ * <p>
+ * Jackson only supplies the structure: each scalar is resolved from its yaml event by the tree merge's own rules (see
+ * {@link LayerResolver}) and constructed as SnakeYAML would, so {@code 0777} is still octal and {@code 1_000} still a number.
+ * Aliases, merge keys ({@code <<}), keys which aren't strings and tagged maps or lists can't be resolved from the token
+ * stream; a layer which uses them, or which doesn't parse, makes {@link #merge} return null, so the caller can fall back to
+ * the tree merge and its error reporting.
+ * A layer which crosses one of the {@link ParserLimits} fails outright; what is skipped counts towards its bytes, but not
+ * towards its nodes or depth, since it is never built.
+ * </p>
+ */
+final class StreamingMerge {
+
+    private static final EventParserFactory yamlFactory = new EventParserFactory();
+
+    private static final String MERGE_KEY = "<<";
+
+    private final ConfigurationReader reader;
+    private final ConfigurationMetrics metrics;
+    private final ParserLimits limits;
+    private final LayerResolver resolver = new LayerResolver();
+    private final ScalarConstructor constructor = new ScalarConstructor();
+    // Counts the layer being merged.
+    private ParserLimits.Counter counter;
+
+    StreamingMerge(ConfigurationReader reader, ConfigurationMetrics metrics, ParserLimits limits) {
+        this.reader = reader;
+        this.metrics = metrics;
+        this.limits = limits;
+    }
+
+    /**
+     * @param paths
+     * @return the merged configuration, or null if one of the layers couldn't be streamed.
+     */
+    Map<Object, Object> merge(List<String> paths) {
+        Object merged = null;
+        for (ListIterator<String> path = paths.listIterator(paths.size()); path.hasPrevious();) {
+            try {
+                merged = mergeLayerBelow(path.previous(), merged);
+            } catch (ParserLimits.LimitExceededException e) {
+                throw e;
+            } catch (IOException | YAMLException e) {
+                return null;
+            }
+        }
+        return merged == null ? ImmutableConfigMap.EMPTY : asConfigMap(ConfigNodes.freeze(merged));
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Map<Object, Object> asConfigMap(Object node) {
+        return (Map<Object, Object>) node;
+    }
+
+    private Object mergeLayerBelow(String path, Object upper) throws IOException {
+        // The layer is parsed and merged in the same pass, so the time is all reported as parsing.
+        ConfigurationMetrics.Stopwatch parse = metrics.start(ConfigurationMetrics.PARSE, path);
+        counter = limits.newCounter();
+        EventParser parser = null;
+        try {
+            parser = open(path);
+            // As with the tree merge, a layer whose top level isn't a map is ignored.
+            return parser.nextToken() == JsonToken.START_OBJECT ? mergeBelow(parser, upper) : upper;
+        } catch (ParserLimits.LimitExceededException e) {
+            throw e.in(path);
+        } finally {
+            IOUtils.closeQuietly(parser);
+            parse.stop();
+        }
+    }
+
+    private EventParser open(String path) throws IOException {
+        // Decoded as the tree merge decodes a layer, so both see the same characters.
+        if (reader instanceof StreamingConfigurationReader) {
+            return yamlFactory.createParser(
+                    new UnicodeReader(limits.limit(((StreamingConfigurationReader) reader).openConfiguration(path))));
+        }
+        String content = reader.readConfiguration(path);
+        limits.checkLength(content);
+        return yamlFactory.createParser(new StringReader(content));
+    }
+
+    /**
+     * Merge the value at the parser's current token below {@code upper}, the same node as merged from the later layers:
+     * {@code mergeNode(value, upper)}, in the terms of {@link MultipleConfigurationMerger#mergeNode}. Leaves the parser on
+     * the value's last token.
+     */
+    @SuppressWarnings("unchecked")
+    private Object mergeBelow(EventParser parser, Object upper) throws IOException {
+        if (upper == null) {
+            return read(parser);
+        }
+        checkStreamable(parser);
+        JsonToken token = parser.getCurrentToken();
+        if (token == JsonToken.START_OBJECT && upper instanceof Map<?, ?>) {
+            counter.start(null);
+            Map<Object, Object> later = (Map<Object, Object>) upper;
+            // The earlier layer's keys come first, as they would in the tree merge.
+            LinkedHashMap<Object, Object> merged = new LinkedHashMap<>();
+            while (parser.nextToken() != JsonToken.END_OBJECT) {
+                String key = key(parser);
+                parser.nextToken();
+                merged.put(key, later.containsKey(key) ? mergeBelow(parser, later.get(key)) : read(parser));
+            }
+            for (Map.Entry<Object, Object> entry : later.entrySet()) {
+                if (!merged.containsKey(entry.getKey())) {
+                    merged.put(entry.getKey(), entry.getValue());
+                }
+            }
+            counter.end();
+            return merged;
+        } else if (token == JsonToken.START_ARRAY && upper instanceof List<?>) {
+            counter.start(null);
+            List<Object> later = (List<Object>) upper;
+            List<Object> merged = new ArrayList<>(later.size());
+            while (parser.nextToken() != JsonToken.END_ARRAY) {
+                merged.add(merged.size() < later.size() ? mergeBelow(parser, later.get(merged.size())) : read(parser));
+            }
+            for (int i = merged.size(); i < later.size(); ++i) {
+                merged.add(later.get(i));
+            }
+            counter.end();
+            return merged;
+        } else {
+            // Replaced by the later layers: skip it without building anything.
+            parser.skipChildren();
+            return upper;
+        }
+    }
+
+    private String key(EventParser parser) throws IOException {
+        if (MERGE_KEY.equals(parser.getCurrentName())) {
+            throw new IOException("Merge keys can't be streamed");
+        }
+        counter.scalar(null);
+        Object key = scalar(parser);
+        if (!(key instanceof String)) {
+            throw new IOException("Key " + parser.getCurrentName() + " isn't a string, so can't be streamed");
+        }
+        return (String) key;
+    }
+
+    private static void checkStreamable(EventParser parser) throws IOException {
+        if (parser.isCurrentAlias()) {
+            throw new IOException("Aliases can't be streamed");
+        }
+        // Jackson ignores the tag of a map or list, where SnakeYAML would construct a set, an omap and so on.
+        Event event = parser.getCurrentEvent();
+        if (event instanceof CollectionStartEvent) {
+            String tag = ((CollectionStartEvent) event).getTag();
+            Tag expected = event instanceof MappingStartEvent ? Tag.MAP : Tag.SEQ;
+            if (tag != null && !"!".equals(tag) && !expected.getValue().equals(tag)) {
+                throw new IOException("Tag " + tag + " can't be streamed");
+            }
+        }
+    }
+
+    /**
+     * Resolve and construct the scalar at the parser's current token (or field name) as the tree merge would, rather than
+     * by Jackson's own rules, which read {@code 0777} as decimal and {@code 0x10} as a string.
+     */
+    private Object scalar(EventParser parser) {
+        ScalarEvent event = (ScalarEvent) parser.getCurrentEvent();
+        Tag tag = event.getTag() == null || "!".equals(event.getTag())
+                ? resolver.resolve(NodeId.scalar, event.getValue(), event.getImplicit().canOmitTagInPlainScalar())
+                : new Tag(event.getTag());
+        return constructor.construct(new ScalarNode(tag, event.getValue(), null, null, event.getStyle()));
+    }
+
+    private Object read(EventParser parser) throws IOException {
+        checkStreamable(parser);
+        JsonToken token = parser.getCurrentToken();
+        if (token != JsonToken.START_OBJECT && token != JsonToken.START_ARRAY) {
+            counter.scalar(null);
+        }
+        switch (token) {
+        case START_OBJECT:
+            counter.start(null);
+            LinkedHashMap<Object, Object> map = new LinkedHashMap<>();
+            while (parser.nextToken() != JsonToken.END_OBJECT) {
+                String key = key(parser);
+                parser.nextToken();
+                map.put(key, read(parser));
+            }
+            counter.end();
+            return map;
+        case START_ARRAY:
+            counter.start(null);
+            List<Object> list = new ArrayList<>();
+            while (parser.nextToken() != JsonToken.END_ARRAY) {
+                list.add(read(parser));
+            }
+            counter.end();
+            return list;
+        default:
+            return scalar(parser);
+        }
+    }
+
+    /**
+     * Exposes the yaml event behind the current token, which carries the scalar's value, tag and style as written.
+     */
+    private static final class EventParser extends YAMLParser {
+        EventParser(IOContext context, BufferRecycler recycler, int parserFeatures, int yamlFeatures, ObjectCodec codec,
+                Reader reader) {
+            super(context, recycler, parserFeatures, yamlFeatures, codec, reader);
+        }
+
+        Event getCurrentEvent() {
+            return _lastEvent;
+        }
+    }
+
+    private static final class EventParserFactory extends YAMLFactory {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        public EventParser createParser(Reader reader) throws IOException {
+            return (EventParser) super.createParser(reader);
+        }
+
+        @Override
+        protected EventParser _createParser(Reader reader, IOContext context) throws IOException {
+            return new EventParser(context, _getBufferRecycler(), _parserFeatures, _yamlParserFeatures, _objectCodec, reader);
+        }
+    }
+
+    /**
+     * Constructs a single scalar, as {@link org.yaml.snakeyaml.Yaml#load} would within a document.
+     */
+    private static final class ScalarConstructor extends Constructor {
+        Object construct(ScalarNode node) {
+            return getConstructor(node).construct(node);
+        }
+    }
+}
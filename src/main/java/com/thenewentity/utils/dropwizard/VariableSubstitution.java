@@ -0,0 +1,304 @@
+package com.thenewentity.utils.dropwizard;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.yaml.snakeyaml.error.YAMLException;
+
+/**
+ * <p>
+ * Substitutes variables into the strings of a merged configuration:
+ * </p>
+ *
+ * <ul>
+ * <li>{@code ${env:VAR}} - an environment variable</li>
+ * <li>{@code ${sys:prop}} - a system property</li>
+ * <li>{@code ${path.to.key}} - another value of the merged configuration, in the syntax of {@link PathKeys}</li>
+ * </ul>
+ *
+ * <p>
+ * Any of them may give a default after {@code :-}, as in {@code ${env:PORT:-8080}}, and <code>$${</code> stands for a
+ * literal <code>${</code>. A reference ends at the brace which balances its opening one, so a default may hold braces of its
+ * own, as in <code>${env:LABELS:-{a: b}}</code>. A string which is nothing but one reference to another key takes that key's value as it is, map,
+ * list or number; otherwise the referenced values are formatted into the string.
+ * </p>
+ *
+ * <p>
+ * The tree is substituted in a single pass. A referenced key is substituted when it is first needed, and its result is kept,
+ * so it is resolved once however often it is referenced; references which lead back to themselves are reported as a cycle.
+ * Strings are compiled into templates once and cached, and subtrees with nothing to substitute are shared with the input.
+ * </p>
+ */
+final class VariableSubstitution {
+
+    private static final int MAX_CACHED_TEMPLATES = 10000;
+
+    private final Map<String, Template> templates = new ConcurrentHashMap<>();
+
+    /**
+     * @param config
+     *            - a merged configuration
+     * @return {@code config} with its variables substituted; {@code config} itself if it has none.
+     * @throws IllegalArgumentException
+     *             if a variable is undefined and has no default, or references form a cycle.
+     */
+    @SuppressWarnings("unchecked")
+    Map<Object, Object> substitute(Map<Object, Object> config) {
+        return (Map<Object, Object>) new Pass(config).substitute(config);
+    }
+
+    private Template compile(String text) {
+        Template template = templates.get(text);
+        if (template == null) {
+            template = Template.parse(text);
+            if (templates.size() < MAX_CACHED_TEMPLATES) {
+                templates.put(text, template);
+            }
+        }
+        return template;
+    }
+
+    /**
+     * The state of one substitution: what has been resolved so far, and what is being resolved right now.
+     */
+    private class Pass {
+        private final Map<Object, Object> root;
+        // Keyed by identity: a node substitutes the same way wherever it appears, since references are absolute.
+        private final Map<Object, Object> resolved = new IdentityHashMap<>();
+        private final Map<Object, Boolean> active = new IdentityHashMap<>();
+        private final Deque<String> references = new ArrayDeque<>();
+
+        Pass(Map<Object, Object> root) {
+            this.root = root;
+        }
+
+        Object substitute(Object node) {
+            if (node instanceof String && ((String) node).indexOf('$') < 0) {
+                return node;
+            }
+            if (!(node instanceof String || node instanceof Map<?, ?> || node instanceof List<?>)) {
+                return node;
+            }
+            Object result = resolved.get(node);
+            if (result != null) {
+                return result;
+            }
+            if (active.put(node, Boolean.TRUE) != null) {
+                throw new IllegalArgumentException("Cycle in configuration references: " + chain());
+            }
+            try {
+                if (node instanceof String) {
+                    result = substituteString((String) node);
+                } else if (node instanceof Map<?, ?>) {
+                    result = substituteMap((Map<?, ?>) node);
+                } else {
+                    result = substituteList((List<?>) node);
+                }
+            } finally {
+                active.remove(node);
+            }
+            resolved.put(node, result);
+            return result;
+        }
+
+        private Object substituteMap(Map<?, ?> map) {
+            LinkedHashMap<Object, Object> substituted = null;
+            for (Map.Entry<?, ?> entry : map.entrySet()) {
+                Object value = substitute(entry.getValue());
+                if (value != entry.getValue()) {
+                    if (substituted == null) {
+                        substituted = new LinkedHashMap<Object, Object>(map);
+                    }
+                    substituted.put(entry.getKey(), value);
+                }
+            }
+            return substituted == null ? map : new ImmutableConfigMap(substituted);
+        }
+
+        private Object substituteList(List<?> list) {
+            Object[] entries = null;
+            for (int i = 0; i < list.size(); ++i) {
+                Object value = substitute(list.get(i));
+                if (value != list.get(i) && entries == null) {
+                    entries = list.toArray();
+                }
+                if (entries != null) {
+                    entries[i] = value;
+                }
+            }
+            return entries == null ? list : new ImmutableConfigList(entries);
+        }
+
+        private Object substituteString(String text) {
+            Template template = compile(text);
+            if (template.parts.size() == 1 && template.parts.get(0) instanceof Reference) {
+                // Nothing but a reference: keep the referenced value's type.
+                return resolve((Reference) template.parts.get(0));
+            }
+            if (template.isLiteral(text)) {
+                return text;
+            }
+            StringBuilder result = new StringBuilder();
+            for (Object part : template.parts) {
+                if (part instanceof Reference) {
+                    Object value = resolve((Reference) part);
+                    if (value instanceof Map<?, ?> || value instanceof List<?>) {
+                        throw new IllegalArgumentException("Cannot format " + part + ", which is not a scalar, into '" + text
+                                + "'");
+                    }
+                    result.append(value);
+                } else {
+                    result.append(part);
+                }
+            }
+            return result.toString();
+        }
+
+        private Object resolve(Reference reference) {
+            references.addLast(reference.toString());
+            try {
+                Object value;
+                if (reference.kind == Reference.ENV) {
+                    value = System.getenv(reference.name);
+                } else if (reference.kind == Reference.SYS) {
+                    value = System.getProperty(reference.name);
+                } else {
+                    value = substitute(ConfigNodes.get(root, reference.segments));
+                }
+                if (value == null) {
+                    value = reference.defaultValue;
+                }
+                if (value == null) {
+                    throw new IllegalArgumentException("Undefined configuration reference " + chain());
+                }
+                return value;
+            } finally {
+                references.removeLast();
+            }
+        }
+
+        private String chain() {
+            StringBuilder chain = new StringBuilder();
+            for (String reference : references) {
+                if (chain.length() > 0) {
+                    chain.append(" -> ");
+                }
+                chain.append(reference);
+            }
+            return chain.toString();
+        }
+    }
+
+    /**
+     * A string split into literal text and {@link Reference}s.
+     */
+    private static final class Template {
+        private final List<Object> parts;
+
+        private Template(List<Object> parts) {
+            this.parts = parts;
+        }
+
+        /**
+         * Whether substituting the template gives back {@code text} unchanged.
+         */
+        boolean isLiteral(String text) {
+            return parts.size() == 1 && text.equals(parts.get(0));
+        }
+
+        static Template parse(String text) {
+            List<Object> parts = new ArrayList<>();
+            StringBuilder literal = new StringBuilder();
+            int i = 0;
+            while (i < text.length()) {
+                if (text.startsWith("$${", i)) {
+                    literal.append("${");
+                    i += 3;
+                } else if (text.startsWith("${", i) && closingBrace(text, i + 2) > 0) {
+                    int close = closingBrace(text, i + 2);
+                    if (literal.length() > 0) {
+                        parts.add(literal.toString());
+                        literal.setLength(0);
+                    }
+                    parts.add(Reference.parse(text.substring(i + 2, close)));
+                    i = close + 1;
+                } else {
+                    literal.append(text.charAt(i++));
+                }
+            }
+            if (literal.length() > 0 || parts.isEmpty()) {
+                parts.add(literal.toString());
+            }
+            return new Template(Collections.unmodifiableList(parts));
+        }
+
+        /**
+         * @return the index of the brace which closes a reference whose text starts at {@code from}, or -1 if there isn't
+         *         one.
+         */
+        private static int closingBrace(String text, int from) {
+            int depth = 1;
+            for (int i = from; i < text.length(); ++i) {
+                char c = text.charAt(i);
+                if (c == '{') {
+                    ++depth;
+                } else if (c == '}' && --depth == 0) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+    }
+
+    private static final class Reference {
+        static final String ENV = "env";
+        static final String SYS = "sys";
+
+        private final String text;
+        private final String kind;
+        private final String name;
+        private final List<Object> segments;
+        private final String defaultValue;
+
+        private Reference(String text, String kind, String name, List<Object> segments, String defaultValue) {
+            this.text = text;
+            this.kind = kind;
+            this.name = name;
+            this.segments = segments;
+            this.defaultValue = defaultValue;
+        }
+
+        static Reference parse(String text) {
+            String name = text;
+            String defaultValue = null;
+            int separator = name.indexOf(":-");
+            if (separator >= 0) {
+                defaultValue = name.substring(separator + 2);
+                name = name.substring(0, separator);
+            }
+            if (name.startsWith("env:")) {
+                return new Reference(text, ENV, name.substring(4), null, defaultValue);
+            }
+            if (name.startsWith("sys:")) {
+                return new Reference(text, SYS, name.substring(4), null, defaultValue);
+            }
+            try {
+                return new Reference(text, null, name, PathKeys.parse(name, "a configuration reference"), defaultValue);
+            } catch (YAMLException e) {
+                throw new IllegalArgumentException(e.getMessage(), e);
+            }
+        }
+
+        @Override
+        public String toString() {
+            return "${" + text + "}";
+        }
+    }
+}
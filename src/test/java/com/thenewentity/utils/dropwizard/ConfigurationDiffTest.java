@@ -0,0 +1,87 @@
+package com.thenewentity.utils.dropwizard;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.lang3.StringUtils;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ConfigurationDiffTest {
+
+    ConfigurationReader reader;
+    MultipleConfigurationMerger merger;
+    List<String> paths = Arrays.asList("main.yaml", "override.yaml");
+
+    @Before
+    public void beforeTest() {
+        reader = mock(ConfigurationReader.class);
+        when(reader.readConfiguration(eq("main.yaml"))).thenReturn(StringUtils.join(new String[] {// @formatter:off
+                "server:",
+                "  applicationConnectors:",
+                "    - {type: http, port: 5309}",
+                "database:",
+                "  pool: {min: 1, max: 8}",
+                "logging:",
+                "  loggers:",
+                "    org.foo: INFO",
+        }, "\n")); // @formatter:on
+        merger = MultipleConfigurationMerger.builder().setConfigurationReader(reader).build();
+    }
+
+    @Test
+    public void testReportsExactlyTheChangedPaths() {
+        when(reader.readConfiguration(eq("override.yaml"))).thenReturn("logging: {level: INFO}\n");
+        IncrementalMerge incremental = merger.incrementalMerge();
+        Map<Object, Object> before = incremental.merge(paths).getConfig();
+
+        when(reader.readConfiguration(eq("override.yaml"))).thenReturn(StringUtils.join(new String[] {// @formatter:off
+                "database: {pool: {max: 16}}",
+                "logging:",
+                "  loggers: {org.foo: DEBUG}",
+                "server:",
+                "  applicationConnectors:",
+                "    - ~",
+                "    - {type: https, port: 8443}",
+        }, "\n")); // @formatter:on
+        Map<Object, Object> after = incremental.merge(paths).getConfig();
+        ConfigurationDiff diff = ConfigurationDiff.compare(before, after);
+
+        List<String> changes = new ArrayList<>();
+        for (ConfigurationDiff.Change change : diff.getChanges()) {
+            changes.add(change.getKind() + " " + change.getPath() + " " + change.getOldValue() + " " + change.getNewValue());
+        }
+        //@formatter:off
+        assertEquals(Arrays.asList(
+                "ADDED server.applicationConnectors[1] null {type=https, port=8443}",
+                "CHANGED database.pool.max 8 16",
+                "CHANGED logging.loggers.\"org.foo\" INFO DEBUG",
+                "REMOVED logging.level INFO null"), changes);
+        //@formatter:on
+        assertTrue(diff.touches("database"));
+        assertTrue(diff.touches("database.pool.max"));
+        assertTrue(diff.touches("logging.loggers.\"org.foo\""));
+        assertFalse(diff.touches("database.pool.min"));
+        assertFalse(diff.touches("server.applicationConnectors[0]"));
+    }
+
+    @Test
+    public void testEqualButUnsharedTreesHaveNoChanges() {
+        when(reader.readConfiguration(eq("override.yaml"))).thenReturn("logging: {level: INFO}\n");
+
+        Map<Object, Object> first = merger.mergeConfigs(paths);
+        Map<Object, Object> second = merger.mergeConfigs(paths);
+
+        assertTrue(ConfigurationDiff.compare(first, second).isEmpty());
+        assertEquals(3, ConfigurationDiff.compare(null, first).getChanges().size());
+    }
+}
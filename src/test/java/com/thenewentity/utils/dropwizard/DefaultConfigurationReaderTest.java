@@ -0,0 +1,94 @@
+package com.thenewentity.utils.dropwizard;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.jar.JarOutputStream;
+import java.util.zip.ZipEntry;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class DefaultConfigurationReaderTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    String content = "template: test\nserver:\n  applicationConnectors:\n  - {type: http, port: 5309}\n";
+
+    String writeLayer() throws Exception {
+        File file = folder.newFile("service.yaml");
+        Files.write(file.toPath(), content.getBytes(StandardCharsets.UTF_8));
+        return file.getPath();
+    }
+
+    @Test
+    public void testLargeFilesAreMemoryMapped() throws Exception {
+        String path = writeLayer();
+        try (InputStream stream = new DefaultConfigurationReader(0).openConfiguration(path)) {
+            assertTrue(stream instanceof ByteBufferInputStream);
+            assertEquals(content, IOUtils.toString(stream, "UTF-8"));
+        }
+    }
+
+    @Test
+    public void testSmallFilesAreStreamed() throws Exception {
+        String path = writeLayer();
+        try (InputStream stream = new DefaultConfigurationReader().openConfiguration(path)) {
+            assertFalse(stream instanceof ByteBufferInputStream);
+            assertEquals(content, IOUtils.toString(stream, "UTF-8"));
+        }
+    }
+
+    @Test
+    public void testMissingFileIsEmpty() throws Exception {
+        DefaultConfigurationReader reader = new DefaultConfigurationReader();
+        String missing = new File(folder.getRoot(), "missing.yaml").getPath();
+        try (InputStream stream = reader.openConfiguration(missing)) {
+            assertEquals(-1, stream.read());
+        }
+        assertEquals("", reader.readConfiguration(missing));
+    }
+
+    @Test
+    public void testClasspathLayersAndGlobsInsideJars() throws Exception {
+        File jar = folder.newFile("service.jar");
+        try (JarOutputStream out = new JarOutputStream(new FileOutputStream(jar))) {
+            for (String name : Arrays.asList("conf.d/b.yaml", "conf.d/a.yaml", "conf.d/extra/c.yaml", "conf.d/notes.txt")) {
+                out.putNextEntry(new ZipEntry(name));
+                out.write(("name: " + name + "\n").getBytes(StandardCharsets.UTF_8));
+                out.closeEntry();
+            }
+        }
+
+        Thread thread = Thread.currentThread();
+        ClassLoader previous = thread.getContextClassLoader();
+        try (URLClassLoader loader = new URLClassLoader(new URL[] { jar.toURI().toURL() }, null)) {
+            thread.setContextClassLoader(loader);
+            assertEquals(Arrays.asList("classpath:conf.d/a.yaml", "classpath:conf.d/b.yaml"),
+                    ClasspathLayers.expand("classpath:conf.d/*.yaml"));
+            assertEquals(Arrays.asList("classpath:conf.d/a.yaml", "classpath:conf.d/b.yaml", "classpath:conf.d/extra/c.yaml"),
+                    ClasspathLayers.expand("classpath:/conf.d/**/*.yaml"));
+
+            DefaultConfigurationReader reader = new DefaultConfigurationReader();
+            assertEquals("name: conf.d/a.yaml\n", reader.readConfiguration("classpath:conf.d/a.yaml"));
+            try (InputStream stream = reader.openConfiguration("classpath:conf.d/extra/c.yaml")) {
+                assertEquals("name: conf.d/extra/c.yaml\n", IOUtils.toString(stream, "UTF-8"));
+            }
+            assertEquals("", reader.readConfiguration("classpath:conf.d/missing.yaml"));
+        } finally {
+            thread.setContextClassLoader(previous);
+        }
+    }
+}
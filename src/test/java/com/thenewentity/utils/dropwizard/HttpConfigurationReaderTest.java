@@ -0,0 +1,191 @@
+package com.thenewentity.utils.dropwizard;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.lang3.StringUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+public class HttpConfigurationReaderTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    HttpServer server;
+    ExecutorService serverExecutor;
+    String baseUrl;
+
+    // What the stub serves, by path.
+    final Map<String, String> layers = new ConcurrentHashMap<>();
+    final AtomicInteger downloads = new AtomicInteger();
+    final AtomicInteger notModified = new AtomicInteger();
+    final AtomicInteger inFlight = new AtomicInteger();
+    final AtomicInteger maxInFlight = new AtomicInteger();
+    volatile long delayMillis;
+
+    HttpConfigurationReader reader;
+
+    @Before
+    public void beforeTest() throws Exception {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                int current = inFlight.incrementAndGet();
+                while (true) {
+                    int max = maxInFlight.get();
+                    if (current <= max || maxInFlight.compareAndSet(max, current)) {
+                        break;
+                    }
+                }
+                try {
+                    Thread.sleep(delayMillis);
+                    String layer = layers.get(exchange.getRequestURI().getPath());
+                    if (layer == null) {
+                        exchange.sendResponseHeaders(404, -1);
+                        return;
+                    }
+                    String etag = "\"" + Integer.toHexString(layer.hashCode()) + "\"";
+                    exchange.getResponseHeaders().add("ETag", etag);
+                    if (etag.equals(exchange.getRequestHeaders().getFirst("If-None-Match"))) {
+                        notModified.incrementAndGet();
+                        exchange.sendResponseHeaders(304, -1);
+                        return;
+                    }
+                    downloads.incrementAndGet();
+                    byte[] body = layer.getBytes(StandardCharsets.UTF_8);
+                    exchange.sendResponseHeaders(200, body.length);
+                    try (OutputStream out = exchange.getResponseBody()) {
+                        out.write(body);
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } finally {
+                    inFlight.decrementAndGet();
+                    exchange.close();
+                }
+            }
+        });
+        serverExecutor = Executors.newCachedThreadPool();
+        server.setExecutor(serverExecutor);
+        server.start();
+        baseUrl = "http://127.0.0.1:" + server.getAddress().getPort();
+    }
+
+    @After
+    public void afterTest() throws Exception {
+        if (reader != null) {
+            reader.close();
+        }
+        server.stop(0);
+        serverExecutor.shutdownNow();
+    }
+
+    HttpConfigurationReader.Builder readerBuilder() {
+        return HttpConfigurationReader.builder().setCacheDirectory(folder.getRoot().toPath());
+    }
+
+    @Test
+    public void testRevalidatesWithETag() throws Exception {
+        layers.put("/shared.yaml", "template: shared\n");
+        reader = readerBuilder().setMaxAgeMillis(0).build();
+
+        assertEquals("template: shared\n", reader.readConfiguration(baseUrl + "/shared.yaml"));
+        assertEquals("template: shared\n", reader.readConfiguration(baseUrl + "/shared.yaml"));
+        assertEquals(1, downloads.get());
+        assertEquals(1, notModified.get());
+
+        layers.put("/shared.yaml", "template: changed\n");
+        assertEquals("template: changed\n", reader.readConfiguration(baseUrl + "/shared.yaml"));
+        assertEquals(2, downloads.get());
+    }
+
+    @Test
+    public void testServesCachedCopyWhenServerIsDown() throws Exception {
+        layers.put("/shared.yaml", "template: shared\n");
+        reader = readerBuilder().build();
+        assertEquals("template: shared\n", reader.readConfiguration(baseUrl + "/shared.yaml"));
+        reader.close();
+
+        server.stop(0);
+        reader = readerBuilder().setTimeoutMillis(1000).build();
+        assertEquals("template: shared\n", reader.readConfiguration(baseUrl + "/shared.yaml"));
+        assertEquals("", reader.readConfiguration(baseUrl + "/never-fetched.yaml"));
+    }
+
+    @Test
+    public void testCachesLayersWithLongUrls() throws Exception {
+        // Longer than DataOutputStream.writeUTF can write.
+        String path = "/" + StringUtils.repeat("x", 70000) + ".yaml";
+        layers.put(path, "template: long\n");
+        reader = readerBuilder().build();
+        assertEquals("template: long\n", reader.readConfiguration(baseUrl + path));
+        reader.close();
+
+        server.stop(0);
+        reader = readerBuilder().setTimeoutMillis(1000).build();
+        assertEquals("template: long\n", reader.readConfiguration(baseUrl + path));
+    }
+
+    @Test
+    public void testIgnoresTamperedCacheEntries() throws Exception {
+        layers.put("/shared.yaml", "template: shared\n");
+        reader = readerBuilder().build();
+        assertEquals("template: shared\n", reader.readConfiguration(baseUrl + "/shared.yaml"));
+        reader.close();
+
+        File[] entries = folder.getRoot().listFiles();
+        assertEquals(1, entries.length);
+        byte[] entry = Files.readAllBytes(entries[0].toPath());
+        String planted = new String(entry, StandardCharsets.ISO_8859_1).replace("shared", "hacked");
+        Files.write(entries[0].toPath(), planted.getBytes(StandardCharsets.ISO_8859_1));
+
+        server.stop(0);
+        reader = readerBuilder().setTimeoutMillis(1000).build();
+        assertEquals("", reader.readConfiguration(baseUrl + "/shared.yaml"));
+    }
+
+    @Test
+    public void testMergePrefetchesRemoteLayersConcurrently() throws Exception {
+        layers.put("/a.yaml", "template: a\nlogging:\n  level: INFO\n");
+        layers.put("/b.yaml", "logging:\n  level: WARN\n");
+        layers.put("/c.yaml", "template: c\n");
+        delayMillis = 200;
+
+        ConfigurationReader local = mock(ConfigurationReader.class);
+        when(local.readConfiguration("local.yaml")).thenReturn("logging:\n  level: DEBUG\n");
+        reader = readerBuilder().setFallback(local).build();
+
+        MultipleConfigurationMerger merger = MultipleConfigurationMerger.builder().setConfigurationReader(reader).build();
+        Map<Object, Object> merged = merger
+                .mergeConfigs(Arrays.asList(baseUrl + "/a.yaml", baseUrl + "/b.yaml", baseUrl + "/c.yaml", "local.yaml"));
+
+        assertEquals("c", merged.get("template"));
+        assertEquals("DEBUG", ((Map<?, ?>) merged.get("logging")).get("level"));
+        assertEquals(3, downloads.get());
+        assertTrue("layers were fetched concurrently", maxInFlight.get() > 1);
+    }
+}
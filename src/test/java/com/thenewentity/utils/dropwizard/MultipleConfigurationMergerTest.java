@@ -0,0 +1,614 @@
+package com.thenewentity.utils.dropwizard;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.reset;
+import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.lang3.StringUtils;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.yaml.snakeyaml.error.YAMLException;
+
+import com.codahale.metrics.MetricRegistry;
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import com.google.common.collect.ImmutableMap;
+import com.fasterxml.jackson.databind.JsonNode;
+
+public class MultipleConfigurationMergerTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    ConfigurationReader reader;
+    MultipleConfigurationMerger merger;
+
+    public static class Connector {
+        public String type;
+        public int port;
+    }
+
+    @JsonIgnoreProperties(ignoreUnknown = true)
+    public static class Server {
+        public List<Connector> applicationConnectors;
+    }
+
+    public static class SampleConfiguration {
+        public String template;
+        public Server server;
+    }
+
+    @Before
+    public void beforeTest() {
+        reader = mock(ConfigurationReader.class);
+
+        when(reader.readConfiguration(eq("main.yaml"))).thenReturn(StringUtils.join(new String[] {// @formatter:off
+                "template: test", 
+                "server:", 
+                "  applicationConnectors:", 
+                "    - type: http", 
+                "      port: 5309", 
+        }, "\n")); // @formatter:on
+        when(reader.readConfiguration(eq("override1.yaml"))).thenReturn("server:\n  applicationConnectors:\n  - {port: 5310}\n");
+
+        merger = MultipleConfigurationMerger.builder().setConfigurationReader(reader).build();
+    }
+
+    @Test
+    public void testLoadConfigsBindsMergedTree() {
+        SampleConfiguration config = merger.loadConfigs(Arrays.asList("main.yaml", "override1.yaml"), SampleConfiguration.class);
+
+        assertEquals("test", config.template);
+        assertEquals(1, config.server.applicationConnectors.size());
+        assertEquals("http", config.server.applicationConnectors.get(0).type);
+        assertEquals(5310, config.server.applicationConnectors.get(0).port);
+    }
+
+    @Test
+    public void testLoadConfigsAsTree() {
+        JsonNode config = merger.loadConfigs(Arrays.asList("main.yaml", "override1.yaml"), JsonNode.class);
+
+        assertEquals("test", config.get("template").asText());
+        assertEquals(5310, config.get("server").get("applicationConnectors").get(0).get("port").asInt());
+    }
+
+    @Test
+    public void testLoadConfigsKeepsTimestampsAsWritten() {
+        when(reader.readConfiguration(eq("override1.yaml"))).thenReturn("template: 2017-01-01\n");
+
+        SampleConfiguration config = merger.loadConfigs(Arrays.asList("main.yaml", "override1.yaml"), SampleConfiguration.class);
+        assertEquals("2017-01-01", config.template);
+        assertEquals("2017-01-01", merger.mergeConfigs(Arrays.asList("main.yaml", "override1.yaml")).get("template"));
+    }
+
+    @Test
+    public void testLoadConfigsReturnsNullWhenBindingFails() {
+        when(reader.readConfiguration(eq("override1.yaml"))).thenReturn("server:\n  applicationConnectors:\n  - {port: not-a-port}\n");
+
+        assertNull(merger.loadConfigs(Arrays.asList("main.yaml", "override1.yaml"), SampleConfiguration.class));
+    }
+
+    @Test
+    public void testParallelMergeKeepsCommandLineOrder() throws Exception {
+        // The first override is the slowest to read; the second must still win.
+        when(reader.readConfiguration(eq("slow.yaml"))).thenAnswer(new Answer<String>() {
+            @Override
+            public String answer(InvocationOnMock invocation) throws Throwable {
+                Thread.sleep(200);
+                return "template: slow\nserver:\n  applicationConnectors:\n  - {port: 1}\n";
+            }
+        });
+        when(reader.readConfiguration(eq("fast.yaml"))).thenReturn("template: fast\n");
+
+        List<String> paths = Arrays.asList("main.yaml", "slow.yaml", "fast.yaml");
+        ExecutorService executor = MultipleConfigurationMerger.newLayerExecutor();
+        try {
+            Map<Object, Object> parallel = MultipleConfigurationMerger.builder().setConfigurationReader(reader).setExecutor(executor).build()
+                    .mergeConfigs(paths);
+
+            assertEquals(merger.mergeConfigs(paths), parallel);
+            assertEquals("fast", parallel.get("template"));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testBadLayersAreHandledAlikeInParallel() throws Exception {
+        when(reader.readConfiguration(eq("missing.yaml"))).thenReturn("");
+        when(reader.readConfiguration(eq("broken.yaml"))).thenReturn("template: [unclosed\n");
+        ExecutorService executor = MultipleConfigurationMerger.newLayerExecutor();
+        try {
+            MultipleConfigurationMerger parallel = MultipleConfigurationMerger.builder().setConfigurationReader(reader)
+                    .setExecutor(executor).build();
+            for (MultipleConfigurationMerger each : Arrays.asList(merger, parallel)) {
+                // A layer which can't be read is empty, and skipped.
+                assertEquals(merger.mergeConfigs(Arrays.asList("main.yaml")),
+                        each.mergeConfigs(Arrays.asList("main.yaml", "missing.yaml")));
+                // One which can't be parsed fails the merge.
+                try {
+                    each.mergeConfigs(Arrays.asList("main.yaml", "broken.yaml"));
+                    fail("Expected broken.yaml to fail the merge");
+                } catch (YAMLException e) {
+                    // Expected.
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testIncrementalMergeReplaysOnlyFromTheChangedLayer() {
+        when(reader.readConfiguration(eq("override2.yaml"))).thenReturn("template: test2\n");
+        List<String> paths = Arrays.asList("main.yaml", "override1.yaml", "override2.yaml");
+        IncrementalMerge incremental = merger.incrementalMerge();
+
+        IncrementalMerge.Result first = incremental.merge(paths);
+        assertEquals(merger.mergeConfigs(paths), first.getConfig());
+        assertEquals(0, first.getFirstReplayedLayer());
+        assertEquals(paths, first.getReparsedLayers());
+
+        IncrementalMerge.Result unchanged = incremental.merge(paths);
+        assertEquals(first.getConfig(), unchanged.getConfig());
+        assertEquals(3, unchanged.getFirstReplayedLayer());
+        assertEquals(Arrays.<String> asList(), unchanged.getReparsedLayers());
+
+        when(reader.readConfiguration(eq("override2.yaml"))).thenReturn("template: test3\n");
+        IncrementalMerge.Result tail = incremental.merge(paths);
+        assertEquals(merger.mergeConfigs(paths), tail.getConfig());
+        assertEquals(2, tail.getFirstReplayedLayer());
+        assertEquals(Arrays.asList("override2.yaml"), tail.getReparsedLayers());
+
+        when(reader.readConfiguration(eq("override1.yaml"))).thenReturn("server:\n  applicationConnectors:\n  - {port: 5311}\n");
+        IncrementalMerge.Result middle = incremental.merge(paths);
+        assertEquals(merger.mergeConfigs(paths), middle.getConfig());
+        assertEquals(1, middle.getFirstReplayedLayer());
+        assertEquals(Arrays.asList("override1.yaml"), middle.getReparsedLayers());
+    }
+
+    @Test
+    public void testIncrementalMergeOnlyReadsFilesWhichChanged() throws Exception {
+        List<String> paths = new ArrayList<>();
+        for (String name : Arrays.asList("a.yaml", "b.yaml", "c.yaml")) {
+            File file = folder.newFile(name);
+            Files.write(file.toPath(), ("template: " + name + "\n").getBytes(StandardCharsets.UTF_8));
+            // Old enough that size and mtime are trusted.
+            Files.setLastModifiedTime(file.toPath(), FileTime.fromMillis(System.currentTimeMillis() - 60000));
+            paths.add(file.getPath());
+        }
+        DefaultConfigurationReader files = spy(new DefaultConfigurationReader());
+        IncrementalMerge incremental = MultipleConfigurationMerger.builder().setConfigurationReader(files).build()
+                .incrementalMerge();
+        incremental.merge(paths);
+
+        File b = new File(paths.get(1));
+        Files.write(b.toPath(), "template: changed\n".getBytes(StandardCharsets.UTF_8));
+        Files.setLastModifiedTime(b.toPath(), FileTime.fromMillis(System.currentTimeMillis() - 30000));
+        reset(files);
+
+        IncrementalMerge.Result result = incremental.merge(paths);
+        assertEquals("c.yaml", result.getConfig().get("template"));
+        assertEquals(Arrays.asList(paths.get(1)), result.getReparsedLayers());
+        verify(files, never()).openConfiguration(paths.get(0));
+        verify(files, never()).openConfiguration(paths.get(2));
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void testMergedConfigIsImmutable() {
+        merger.mergeConfigs(Arrays.asList("main.yaml", "override1.yaml")).put("template", "changed");
+    }
+
+    @Test
+    public void testVersionsShareUnchangedSubtrees() {
+        when(reader.readConfiguration(eq("override2.yaml"))).thenReturn("template: test2\n");
+        List<String> paths = Arrays.asList("main.yaml", "override1.yaml", "override2.yaml");
+        IncrementalMerge incremental = merger.incrementalMerge();
+        Map<Object, Object> before = incremental.merge(paths).getConfig();
+
+        when(reader.readConfiguration(eq("override2.yaml"))).thenReturn("template: test3\n");
+        Map<Object, Object> after = incremental.merge(paths).getConfig();
+
+        assertEquals("test2", before.get("template"));
+        assertEquals("test3", after.get("template"));
+        assertNotSame(before, after);
+        assertSame(before.get("server"), after.get("server"));
+    }
+
+    @Test
+    public void testViewBindsSubtreeOnceUntilItChanges() {
+        when(reader.readConfiguration(eq("override2.yaml"))).thenReturn("template: test2\n");
+        final List<String> paths = Arrays.asList("main.yaml", "override1.yaml", "override2.yaml");
+        final IncrementalMerge incremental = merger.incrementalMerge();
+        ConfigurationView<Connector[]> connectors = new ConfigurationView<>(new ConfigurationView.Source() {
+            @Override
+            public Map<Object, Object> getTree() {
+                return incremental.merge(paths).getConfig();
+            }
+        }, merger, "server.applicationConnectors", Connector[].class);
+
+        Connector[] first = connectors.get();
+        assertEquals(5310, first[0].port);
+
+        when(reader.readConfiguration(eq("override2.yaml"))).thenReturn("template: test3\n");
+        assertSame(first, connectors.get());
+
+        when(reader.readConfiguration(eq("override2.yaml"))).thenReturn("server.applicationConnectors[0].port: 5311\n");
+        merger = MultipleConfigurationMerger.builder().setConfigurationReader(reader).setExpandPathKeys(true).build();
+        Map<Object, Object> config = merger.mergeConfigs(paths);
+        assertEquals(5311, merger.view(config, "server.applicationConnectors[0]", Connector.class).get().port);
+        assertNull(merger.view(config, "server.missing", Connector.class).get());
+    }
+
+    @Test
+    public void testConcurrentMergesDontInterfere() throws Exception {
+        final int tenants = 8;
+        Files.write(folder.newFile("base.yaml").toPath(), StringUtils.join(new String[] {// @formatter:off
+                "template: base",
+                "server:",
+                "  applicationConnectors:",
+                "    - {type: http, port: 8000}",
+                "    - {type: https, port: 8443}",
+                "  url: http://localhost:${server.applicationConnectors[0].port}/",
+        }, "\n").getBytes(StandardCharsets.UTF_8)); // @formatter:on
+        final List<List<String>> stacks = new ArrayList<>();
+        for (int t = 0; t < tenants; ++t) {
+            File tenant = folder.newFile("tenant-" + t + ".yaml");
+            String overrides = "template: tenant-" + t + "\nserver:\n  applicationConnectors:\n  - {port: " + (9000 + t) + "}\n";
+            Files.write(tenant.toPath(), overrides.getBytes(StandardCharsets.UTF_8));
+            stacks.add(Arrays.asList(new File(folder.getRoot(), "base.yaml").getPath(), tenant.getPath()));
+        }
+
+        final MultipleConfigurationMerger shared = MultipleConfigurationMerger.builder().setSubstituteVariables(true).build();
+        final List<Map<Object, Object>> expected = new ArrayList<>();
+        for (List<String> stack : stacks) {
+            expected.add(shared.mergeConfigs(stack));
+        }
+
+        ExecutorService pool = Executors.newFixedThreadPool(tenants);
+        try {
+            final CountDownLatch start = new CountDownLatch(1);
+            List<Future<Integer>> results = new ArrayList<>();
+            for (int t = 0; t < tenants; ++t) {
+                final int first = t;
+                results.add(pool.submit(new Callable<Integer>() {
+                    @Override
+                    public Integer call() throws Exception {
+                        start.await();
+                        int mismatches = 0;
+                        for (int i = 0; i < 200; ++i) {
+                            int tenant = (first + i) % tenants;
+                            Map<Object, Object> config = shared.mergeConfigs(stacks.get(tenant));
+                            SampleConfiguration bound = shared.loadConfigs(stacks.get(tenant), SampleConfiguration.class);
+                            int port = bound.server.applicationConnectors.get(0).port;
+                            if (!expected.get(tenant).equals(config) || port != 9000 + tenant) {
+                                ++mismatches;
+                            }
+                        }
+                        return mismatches;
+                    }
+                }));
+            }
+            start.countDown();
+            for (Future<Integer> result : results) {
+                assertEquals(Integer.valueOf(0), result.get(60, TimeUnit.SECONDS));
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+        assertEquals("http://localhost:9003/", ((Map<?, ?>) expected.get(3).get("server")).get("url"));
+    }
+
+    @Test
+    public void testTenantsShareTheBase() {
+        when(reader.readConfiguration(eq("tenant-a.yaml"))).thenReturn("template: a\n");
+        when(reader.readConfiguration(eq("tenant-b.yaml"))).thenReturn("server:\n  applicationConnectors:\n  - {port: 1}\n");
+        when(reader.readConfiguration(eq("region.yaml"))).thenReturn("region: east\n");
+        Map<String, List<String>> overlays = new LinkedHashMap<>();
+        overlays.put("b", Arrays.asList("region.yaml", "tenant-b.yaml"));
+        overlays.put("a", Arrays.asList("region.yaml", "tenant-a.yaml"));
+        overlays.put("none", Arrays.<String> asList());
+        List<String> base = Arrays.asList("main.yaml", "override1.yaml");
+
+        Map<String, Map<Object, Object>> tenants = merger.mergeTenants(base, overlays);
+        verify(reader, times(1)).readConfiguration("main.yaml");
+        verify(reader, times(1)).readConfiguration("region.yaml");
+
+        assertEquals(Arrays.asList("b", "a", "none"), new ArrayList<>(tenants.keySet()));
+        List<String> stackB = Arrays.asList("main.yaml", "override1.yaml", "region.yaml", "tenant-b.yaml");
+        assertEquals(merger.mergeConfigs(stackB), tenants.get("b"));
+        assertEquals(merger.mergeConfigs(base), tenants.get("none"));
+        assertEquals("a", tenants.get("a").get("template"));
+        assertEquals("east", tenants.get("a").get("region"));
+        assertSame(tenants.get("none").get("server"), tenants.get("a").get("server"));
+    }
+
+    @Test
+    public void testMetricsBreakDownEachLayer() {
+        MetricRegistry metrics = new MetricRegistry();
+        merger = MultipleConfigurationMerger.builder().setConfigurationReader(reader).setMetricRegistry(metrics)
+                .setCountLayerNodes(true).build();
+
+        merger.loadConfigs(Arrays.asList("main.yaml", "override1.yaml"), SampleConfiguration.class);
+
+        String prefix = MultipleConfigurationMerger.class.getName();
+        for (String metric : Arrays.asList("read", "parse", "merge")) {
+            assertEquals(metric, 2, metrics.timer(prefix + "." + metric).getCount());
+            assertEquals(metric, 1, metrics.timer(prefix + ".layer.override1.yaml." + metric).getCount());
+        }
+        assertEquals(1, metrics.timer(prefix + ".bind").getCount());
+        assertEquals(reader.readConfiguration("override1.yaml").length(),
+                metrics.histogram(prefix + ".layer.override1.yaml.bytes").getSnapshot().getMax());
+        // {server: {applicationConnectors: [{port: 5310}]}}: four containers and one scalar
+        assertEquals(5, metrics.histogram(prefix + ".layer.override1.yaml.nodes").getSnapshot().getMax());
+    }
+
+    @Test
+    public void testMetricNamesAreBounded() {
+        MetricRegistry metrics = new MetricRegistry();
+        merger = MultipleConfigurationMerger.builder().setConfigurationReader(reader).setMetricRegistry(metrics).build();
+        for (int i = 0; i < ConfigurationMetrics.MAX_LAYERS + 10; ++i) {
+            String path = "conf.d/tenant " + i + ".yaml";
+            when(reader.readConfiguration(eq(path))).thenReturn("tenant: " + i);
+            merger.mergeConfigs(Arrays.asList("main.yaml", path));
+        }
+
+        String prefix = MultipleConfigurationMerger.class.getName();
+        // main.yaml and the first tenants get a histogram of their own, and every layer is in the aggregate one.
+        assertEquals(ConfigurationMetrics.MAX_LAYERS + 1, metrics.getHistograms().size());
+        assertEquals(1, metrics.histogram(prefix + ".layer.conf.d_tenant_0.yaml.bytes").getCount());
+        assertEquals(2 * (ConfigurationMetrics.MAX_LAYERS + 10), metrics.histogram(prefix + ".bytes").getCount());
+        // Nodes are only counted when asked for.
+        assertFalse(metrics.getHistograms().containsKey(prefix + ".nodes"));
+    }
+
+    @Test
+    public void testPathKeysExpandIntoNestedOverrides() {
+        when(reader.readConfiguration(eq("flat.yaml"))).thenReturn(StringUtils.join(new String[] {// @formatter:off
+                "server.applicationConnectors[0].port: 5310",
+                "server.applicationConnectors[1].type: https",
+                "logging.loggers.\"org.foo\": DEBUG",
+                "logging.loggers.org\\.bar: WARN",
+                "logging.level: INFO",
+                "logging: {level: WARN}",
+                "template: flat",
+        }, "\n")); // @formatter:on
+        merger = MultipleConfigurationMerger.builder().setConfigurationReader(reader).setExpandPathKeys(true).build();
+
+        Map<Object, Object> config = merger.mergeConfigs(Arrays.asList("main.yaml", "flat.yaml"));
+
+        //@formatter:off
+        assertEquals("{template=flat, "
+                + "server={applicationConnectors=[{type=http, port=5310}, {type=https}]}, "
+                + "logging={loggers={org.foo=DEBUG, org.bar=WARN}, level=WARN}}",
+                config.toString());
+        //@formatter:on
+
+        when(reader.readConfiguration(eq("flat.yaml"))).thenReturn("logging.loggers.\"org.foo\": DEBUG\n");
+        config = merger.mergeConfigs(Arrays.asList("main.yaml", "flat.yaml"));
+        assertEquals("DEBUG", ((Map<?, ?>) ((Map<?, ?>) config.get("logging")).get("loggers")).get("org.foo"));
+    }
+
+    @Test
+    public void testKeyedListsMatchEntriesByKey() {
+        when(reader.readConfiguration(eq("upstreams.yaml"))).thenReturn(StringUtils.join(new String[] {// @formatter:off
+                "upstreams:",
+                "  - {name: a, port: 1, weight: 1}",
+                "  - {name: b, port: 2}",
+                "  - {name: c, port: 3}",
+        }, "\n")); // @formatter:on
+        when(reader.readConfiguration(eq("configured.yaml"))).thenReturn(StringUtils.join(new String[] {// @formatter:off
+                "upstreams:",
+                "  - {name: c, port: 30}",
+                "  - {name: a, port: 10}",
+                "  - {name: b, $op: delete}",
+                "  - {name: d, port: 4}",
+        }, "\n")); // @formatter:on
+        when(reader.readConfiguration(eq("inline.yaml"))).thenReturn(StringUtils.join(new String[] {// @formatter:off
+                "upstreams:",
+                "  - {$key: name}",
+                "  - {name: a, port: 100, $op: replace}",
+        }, "\n")); // @formatter:on
+
+        merger = MultipleConfigurationMerger.builder().setConfigurationReader(reader).setListKey("upstreams", "name")
+                .setInlineListKeys(true).build();
+        Map<Object, Object> config = merger.mergeConfigs(Arrays.asList("upstreams.yaml", "configured.yaml"));
+        //@formatter:off
+        assertEquals(Arrays.asList(
+                ImmutableMap.of("name", "a", "port", 10, "weight", 1),
+                ImmutableMap.of("name", "c", "port", 30),
+                ImmutableMap.of("name", "d", "port", 4)), config.get("upstreams"));
+        //@formatter:on
+
+        merger = MultipleConfigurationMerger.builder().setConfigurationReader(reader).setInlineListKeys(true).build();
+        config = merger.mergeConfigs(Arrays.asList("upstreams.yaml", "inline.yaml"));
+        //@formatter:off
+        assertEquals(Arrays.asList(
+                ImmutableMap.of("name", "a", "port", 100),
+                ImmutableMap.of("name", "b", "port", 2),
+                ImmutableMap.of("name", "c", "port", 3)), config.get("upstreams"));
+        //@formatter:on
+    }
+
+    @Test
+    public void testStreamingMergeMatchesTreeMerge() {
+        when(reader.readConfiguration(eq("override2.yaml"))).thenReturn(StringUtils.join(new String[] {// @formatter:off
+                "server:",
+                "  applicationConnectors:",
+                "    - ~",
+                "    - {type: https, port: 8443}",
+                "  adminConnectors: [{port: 8081}]",
+                "logging: {level: INFO, enabled: yes, ratio: 0.5, size: 12345678901}",
+                "numbers:",
+                "  octal: 0777",
+                "  leading: 010",
+                "  hex: 0x10",
+                "  grouped: 1_000",
+                "  signed: +1",
+                "  binary: 0b101",
+                "  base60: 1:20",
+                "strings: {quoted: '0777', tagged: !!str 010, date: 2017-01-01, 'true': yes}",
+        }, "\n")); // @formatter:on
+        when(reader.readConfiguration(eq("override3.yaml"))).thenReturn("template: {replaced: true}\nlogging:\n  level: DEBUG\n");
+        when(reader.readConfiguration(eq("override4.yaml"))).thenReturn("server: off\n");
+        when(reader.readConfiguration(eq("aliases.yaml"))).thenReturn("a: &port {port: 1}\nb: *port\n");
+        when(reader.readConfiguration(eq("keys.yaml"))).thenReturn("codes: {404: missing, true: yes}\n");
+        MetricRegistry registry = new MetricRegistry();
+        MultipleConfigurationMerger streaming = MultipleConfigurationMerger.builder().setConfigurationReader(reader)
+                .setStreamingMerge(true).setMetricRegistry(registry).build();
+
+        for (List<String> paths : Arrays.asList(// @formatter:off
+                Arrays.asList("main.yaml", "override1.yaml"),
+                Arrays.asList("main.yaml", "override1.yaml", "override2.yaml", "override3.yaml"),
+                Arrays.asList("main.yaml", "override2.yaml", "override4.yaml"),
+                Arrays.asList("main.yaml", "aliases.yaml"),
+                Arrays.asList("main.yaml", "override2.yaml", "keys.yaml"))) { // @formatter:on
+            assertEquals(paths.toString(), merger.mergeConfigs(paths), streaming.mergeConfigs(paths));
+            assertEquals(paths.toString(), new ArrayList<>(merger.mergeConfigs(paths).keySet()),
+                    new ArrayList<>(streaming.mergeConfigs(paths).keySet()));
+            // Only the tree merge, which the layers with aliases or keys that aren't strings fall back to, reports merging
+            // separately.
+            String merge = MetricRegistry.name(MultipleConfigurationMerger.class, "merge");
+            assertEquals(paths.contains("aliases.yaml") || paths.contains("keys.yaml"), registry.getTimers().containsKey(merge));
+        }
+        Map<?, ?> numbers = (Map<?, ?>) streaming.mergeConfigs(Arrays.asList("main.yaml", "override2.yaml")).get("numbers");
+        assertEquals(Arrays.asList(511, 8, 16, 1000, 1, 5, 80), new ArrayList<>(numbers.values()));
+    }
+
+    @Test
+    public void testVariablesAreSubstitutedAcrossLayers() {
+        System.setProperty("multi-config.test.host", "example.com");
+        when(reader.readConfiguration(eq("override2.yaml"))).thenReturn(StringUtils.join(new String[] {// @formatter:off
+                "template: ${sys:multi-config.test.host}:${server.applicationConnectors[0].port}",
+                "copy: ${server.applicationConnectors}",
+                "home: ${env:MULTI_CONFIG_TEST_UNSET:-/opt}",
+                "literal: $${sys:multi-config.test.host}",
+                "labels: '${env:MULTI_CONFIG_TEST_UNSET:-{a: b}}'",
+                "braces: 'x${env:MULTI_CONFIG_TEST_UNSET:-{}}y'",
+                "unclosed: '${env:MULTI_CONFIG_TEST_UNSET:-{a}'",
+        }, "\n")); // @formatter:on
+        List<String> paths = Arrays.asList("main.yaml", "override1.yaml", "override2.yaml");
+
+        merger = MultipleConfigurationMerger.builder().setConfigurationReader(reader).setSubstituteVariables(true).build();
+        Map<Object, Object> config = merger.mergeConfigs(paths);
+        assertEquals("example.com:5310", config.get("template"));
+        assertSame(((Map<?, ?>) config.get("server")).get("applicationConnectors"), config.get("copy"));
+        assertEquals("/opt", config.get("home"));
+        assertEquals("${sys:multi-config.test.host}", config.get("literal"));
+        assertEquals("{a: b}", config.get("labels"));
+        assertEquals("x{}y", config.get("braces"));
+        assertEquals("${env:MULTI_CONFIG_TEST_UNSET:-{a}", config.get("unclosed"));
+        assertEquals(config, merger.incrementalMerge().merge(paths).getConfig());
+
+        when(reader.readConfiguration(eq("override2.yaml"))).thenReturn("a: ${b}\nb: x${a}\n");
+        try {
+            merger.mergeConfigs(paths);
+            fail("Expected a cycle");
+        } catch (IllegalArgumentException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("${b} -> ${a}"));
+        }
+    }
+
+    @Test
+    public void testParserLimitsRejectAliasBombs() {
+        // Nine levels of ten aliases each: under a kilobyte, and a billion strings once expanded.
+        StringBuilder laughs = new StringBuilder("a: &a [lol, lol, lol, lol, lol, lol, lol, lol, lol, lol]\n");
+        for (char level = 'b'; level <= 'j'; ++level) {
+            laughs.append(level).append(": &").append(level).append(" [");
+            for (int i = 0; i < 10; ++i) {
+                laughs.append(i == 0 ? "" : ", ").append('*').append((char) (level - 1));
+            }
+            laughs.append("]\n");
+        }
+        when(reader.readConfiguration(eq("laughs.yaml"))).thenReturn(laughs.toString());
+        when(reader.readConfiguration(eq("deep.yaml"))).thenReturn("a: {b: {c: {d: [[[1]]]}}}\n");
+        List<String> paths = Arrays.asList("main.yaml", "override1.yaml");
+
+        merger = MultipleConfigurationMerger.builder().setConfigurationReader(reader).setMaxAliasExpansions(1000)
+                .setMaxNodes(100000).setMaxDepth(5).setMaxLayerBytes(4096).build();
+        assertEquals(MultipleConfigurationMerger.builder().setConfigurationReader(reader).build().mergeConfigs(paths),
+                merger.mergeConfigs(paths));
+        for (String layer : Arrays.asList("laughs.yaml", "deep.yaml")) {
+            try {
+                merger.mergeConfigs(Arrays.asList("main.yaml", layer));
+                fail("Expected " + layer + " to be rejected");
+            } catch (YAMLException e) {
+                assertTrue(e.getMessage(), e.getMessage().startsWith("Configuration layer " + layer + " "));
+            }
+        }
+
+        MultipleConfigurationMerger streaming = MultipleConfigurationMerger.builder().setConfigurationReader(reader)
+                .setStreamingMerge(true).setMaxLayerBytes(16).build();
+        try {
+            streaming.mergeConfigs(paths);
+            fail("Expected override1.yaml to be rejected");
+        } catch (YAMLException e) {
+            assertEquals("Configuration layer override1.yaml is larger than the limit of 16 bytes", e.getMessage());
+        }
+    }
+
+    @Test(expected = YAMLException.class)
+    public void testMalformedPathKeyIsRejected() {
+        when(reader.readConfiguration(eq("flat.yaml"))).thenReturn("server..port: 5310\n");
+        merger = MultipleConfigurationMerger.builder().setConfigurationReader(reader).setExpandPathKeys(true).build();
+
+        merger.mergeConfigs(Arrays.asList("main.yaml", "flat.yaml"));
+    }
+
+    @Test
+    public void testPathKeyIndexesStayWithinTheList() {
+        merger = MultipleConfigurationMerger.builder().setConfigurationReader(reader).setExpandPathKeys(true).build();
+
+        // The second connector is appended; the first, which no key mentions, is left alone.
+        when(reader.readConfiguration(eq("flat.yaml"))).thenReturn(StringUtils.join(new String[] {// @formatter:off
+                "server.applicationConnectors[1].port: 5310",
+                "server.applicationConnectors[1].type: https",
+        }, "\n")); // @formatter:on
+        assertEquals("{template=test, server={applicationConnectors=[{type=http, port=5309}, {port=5310, type=https}]}}",
+                merger.mergeConfigs(Arrays.asList("main.yaml", "flat.yaml")).toString());
+
+        for (String layer : Arrays.asList(// @formatter:off
+                "server.applicationConnectors[2000000000].port: 5310",
+                "server.applicationConnectors[1].port: 5310\nserver.applicationConnectors[3].port: 5311",
+                "server.adminConnectors[1].port: 5310")) { // @formatter:on
+            when(reader.readConfiguration(eq("flat.yaml"))).thenReturn(layer);
+            try {
+                merger.mergeConfigs(Arrays.asList("main.yaml", "flat.yaml"));
+                fail("Expected " + layer + " to be rejected");
+            } catch (YAMLException e) {
+                assertTrue(e.getMessage(), e.getMessage().contains(" in flat.yaml is past the end of a list of "));
+            }
+        }
+    }
+}
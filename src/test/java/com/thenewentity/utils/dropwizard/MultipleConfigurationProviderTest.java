@@ -1,22 +1,57 @@
 package com.thenewentity.utils.dropwizard;
 
+import io.dropwizard.configuration.ConfigurationFactory;
+import io.dropwizard.configuration.ConfigurationValidationException;
+import io.dropwizard.configuration.DefaultConfigurationFactoryFactory;
+import io.dropwizard.jackson.Jackson;
+import io.dropwizard.jersey.validation.Validators;
+
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.anyString;
 import static org.mockito.Matchers.eq;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.reset;
+import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
+import java.io.File;
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import javax.validation.constraints.NotNull;
+import javax.validation.constraints.Size;
 
+import org.apache.commons.codec.digest.DigestUtils;
 import org.apache.commons.io.IOUtils;
 import org.apache.commons.lang3.StringUtils;
 import org.junit.Before;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import com.google.common.collect.ImmutableMap;
 
 public class MultipleConfigurationProviderTest {
 
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
     ConfigurationReader reader;
     MultipleConfigurationProvider provider;
 
@@ -149,4 +184,303 @@ public class MultipleConfigurationProviderTest {
         assertNotNull(effectiveYaml);
         assertEquals("template: test\nserver:\n  applicationConnectors:\n  - {type: http, port: 5309}\ntemplate2: test\n", effectiveYaml);
     }
+
+    void write(File file, String content) throws Exception {
+        Files.write(file.toPath(), content.getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void testWatchingPublishesChangedAndNewLayers() throws Exception {
+        File main = folder.newFile("main.yaml");
+        write(main, "template: test\nlogging:\n  level: INFO\n");
+        File confD = folder.newFolder("conf.d");
+        File first = new File(confD, "10-first.yaml");
+        write(first, "logging:\n  level: WARN\n");
+        DefaultConfigurationReader layerReader = spy(new DefaultConfigurationReader());
+
+        // @formatter:off
+        provider = MultipleConfigurationProvider.builder()
+                .setOverrideFiles(Arrays.asList(confD.getPath() + File.separator + "*.yaml"))
+                .setMultipleConfigurationMerger(MultipleConfigurationMerger.builder().setConfigurationReader(layerReader).build())
+                .build();
+        // @formatter:on
+
+        final BlockingQueue<Map<Object, Object>> changes = new LinkedBlockingQueue<>();
+        provider.addConfigurationChangeListener(new ConfigurationChangeListener() {
+            @Override
+            public void configurationChanged(Map<Object, Object> previousConfig, Map<Object, Object> effectiveConfig) {
+                changes.add(effectiveConfig);
+            }
+        });
+
+        provider.open(main.getPath());
+        provider.startWatching(200, TimeUnit.MILLISECONDS);
+        try {
+            // Watching starts from what open() merged, rather than merging every layer again.
+            verify(layerReader, times(1)).openConfiguration(main.getPath());
+
+            write(first, "logging:\n  level: DEBUG\n");
+            Map<Object, Object> changed = changes.poll(10, TimeUnit.SECONDS);
+            assertNotNull("change to a watched file was published", changed);
+            assertEquals("DEBUG", ((Map<?, ?>) changed.get("logging")).get("level"));
+
+            write(new File(confD, "20-second.yaml"), "template: test2\n");
+            changed = changes.poll(10, TimeUnit.SECONDS);
+            assertNotNull("new file matching the glob was published", changed);
+            assertEquals("test2", changed.get("template"));
+            assertEquals("template: test2\nlogging: {level: DEBUG}\n", provider.getEffectiveConfig());
+        } finally {
+            provider.stopWatching();
+        }
+    }
+
+    @Test
+    public void testRecursiveAndMultiSegmentGlobs() throws Exception {
+        File main = folder.newFile("main.yaml");
+        write(main, "template: test\n");
+        File confD = folder.newFolder("conf.d");
+        write(new File(confD, "00-top.yaml"), "order: [top]\n");
+        File east = folder.newFolder("conf.d", "us-east");
+        write(new File(east, "10-east.yaml"), "order: [top, east]\n");
+        File eastZone = folder.newFolder("conf.d", "us-east", "zone-a");
+        write(new File(eastZone, "20-zone.yaml"), "order: [top, east, zone]\n");
+        File west = folder.newFolder("conf.d", "us-west");
+        write(new File(west, "10-west.yaml"), "region: west\n");
+        write(new File(west, "ignored.txt"), "region: ignored\n");
+
+        String confDPath = confD.getPath() + File.separator;
+        // @formatter:off
+        provider = MultipleConfigurationProvider.builder()
+                .setOverrideFiles(Arrays.asList(
+                        confDPath + "**" + File.separator + "*.yaml",
+                        confDPath + "*" + File.separator + "10-*.yaml"))
+                .setMultipleConfigurationMerger(MultipleConfigurationMerger.builder().build())
+                .build();
+        // @formatter:on
+
+        String result = inputStreamToString(provider.open(main.getPath()));
+        assertEquals("template: test\norder: [top, east, zone]\nregion: west\n", result);
+
+        // @formatter:off
+        provider = MultipleConfigurationProvider.builder()
+                .setOverrideFiles(Arrays.asList(confDPath + "**" + File.separator + "*.yaml"))
+                .setMultipleConfigurationMerger(MultipleConfigurationMerger.builder().build())
+                .setMaxGlobDepth(2)
+                .build();
+        // @formatter:on
+
+        result = inputStreamToString(provider.open(main.getPath()));
+        assertEquals("template: test\norder: [top, east]\nregion: west\n", result);
+    }
+
+    @Test
+    public void testSnapshotSkipsTheMergeUntilALayerChanges() throws Exception {
+        File main = folder.newFile("main.yaml");
+        write(main, "template: test\n");
+        File confD = folder.newFolder("conf.d");
+        File first = new File(confD, "10-first.yaml");
+        write(first, "logging: {level: WARN}\n");
+        // Old enough that their timestamps are trusted.
+        long past = System.currentTimeMillis() - 60000;
+        for (File file : Arrays.asList(main, first, confD)) {
+            assertTrue(file.setLastModified(past));
+        }
+        File snapshot = new File(folder.getRoot(), "config.snapshot");
+
+        StreamingConfigurationReader reader = spy(new DefaultConfigurationReader());
+        // @formatter:off
+        provider = MultipleConfigurationProvider.builder()
+                .setOverrideFiles(Arrays.asList(confD.getPath() + File.separator + "*.yaml"))
+                .setMultipleConfigurationMerger(MultipleConfigurationMerger.builder().setConfigurationReader(reader).build())
+                .build();
+        // @formatter:on
+        provider.writeSnapshot(main.getPath(), snapshot.toPath());
+        provider.setSnapshot(snapshot.toPath());
+
+        reset(reader);
+        assertEquals("template: test\nlogging: {level: WARN}\n", inputStreamToString(provider.open(main.getPath())));
+        verify(reader, never()).openConfiguration(anyString());
+        verify(reader, never()).readConfiguration(anyString());
+
+        write(first, "logging: {level: ERROR}\n");
+        assertEquals("template: test\nlogging: {level: ERROR}\n", inputStreamToString(provider.open(main.getPath())));
+
+        write(new File(confD, "20-second.yaml"), "logging: {level: DEBUG}\n");
+        assertEquals("template: test\nlogging: {level: DEBUG}\n", inputStreamToString(provider.open(main.getPath())));
+    }
+
+    @Test
+    public void testManifestListsLayersAndChecksDigests() throws Exception {
+        File main = folder.newFile("main.yaml");
+        write(main, "template: test\n");
+        File base = folder.newFile("base.yaml");
+        write(base, "logging: {level: WARN}\n");
+        write(folder.newFile("region.yaml"), "region: east\n");
+        File manifest = folder.newFile("layers.manifest");
+        write(manifest, StringUtils.join(new String[] {// @formatter:off
+                "# base first",
+                "base.yaml  sha256:" + DigestUtils.sha256Hex("logging: {level: WARN}\n"),
+                "",
+                "region.yaml",
+        }, "\n")); // @formatter:on
+        // Old enough that their timestamps are trusted.
+        assertTrue(base.setLastModified(System.currentTimeMillis() - 60000));
+
+        StreamingConfigurationReader reader = spy(new DefaultConfigurationReader());
+        // @formatter:off
+        provider = MultipleConfigurationProvider.builder()
+                .setOverrideFiles(Arrays.asList("@" + manifest.getPath()))
+                .setMultipleConfigurationMerger(MultipleConfigurationMerger.builder()
+                        .setConfigurationReader(reader)
+                        .setParsedLayerCache(ParsedLayerCache.builder().setDirectory(folder.newFolder("cache").toPath()).build())
+                        .build())
+                .build();
+        // @formatter:on
+        assertEquals("template: test\nlogging: {level: WARN}\nregion: east\n", inputStreamToString(provider.open(main.getPath())));
+
+        // The cache vouches for the digested layer, so it is neither read nor parsed again.
+        reset(reader);
+        assertEquals("template: test\nlogging: {level: WARN}\nregion: east\n", inputStreamToString(provider.open(main.getPath())));
+        verify(reader, never()).openConfiguration(base.getPath());
+
+        write(base, "logging: {level: DEBUG}\n");
+        try {
+            provider.open(main.getPath());
+            fail("Expected the changed layer to be rejected");
+        } catch (IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().startsWith("Layer " + base.getPath() + " does not match"));
+        }
+    }
+
+    @Test
+    public void testManifestLayersAreMergedAsTheyWereVerified() throws Exception {
+        File main = folder.newFile("main.yaml");
+        write(main, "template: test\n");
+        File base = folder.newFile("base.yaml");
+        write(base, "logging: {level: WARN}\n");
+        File manifest = folder.newFile("layers.manifest");
+        write(manifest, "base.yaml sha256:" + DigestUtils.sha256Hex("logging: {level: WARN}\n") + "\n");
+
+        StreamingConfigurationReader reader = spy(new DefaultConfigurationReader());
+        MetricRegistry metrics = new MetricRegistry();
+        // @formatter:off
+        provider = MultipleConfigurationProvider.builder()
+                .setOverrideFiles(Arrays.asList("@" + manifest.getPath()))
+                .setMultipleConfigurationMerger(MultipleConfigurationMerger.builder().setConfigurationReader(reader)
+                        .setMetricRegistry(metrics).build())
+                .build();
+        // @formatter:on
+        assertEquals("template: test\nlogging: {level: WARN}\n", inputStreamToString(provider.open(main.getPath())));
+        // Read once, to be digested and parsed together; the merge doesn't read it again.
+        verify(reader, times(1)).openConfiguration(base.getPath());
+
+        // A snapshot expands the layers twice, but only its own merge parses them; checking the digests doesn't.
+        Timer parse = metrics.timer(MetricRegistry.name(MultipleConfigurationMerger.class, "parse"));
+        long parsed = parse.getCount();
+        provider.writeSnapshot(main.getPath(), new File(folder.getRoot(), "config.snapshot").toPath());
+        assertEquals(parsed + 2, parse.getCount());
+        reset(reader);
+
+        // Likewise for a layer listed from the home directory, which is verified under the path it is read from.
+        String home = System.getProperty("user.home");
+        System.setProperty("user.home", folder.getRoot().getPath());
+        try {
+            write(manifest, "~" + File.separator + "base.yaml sha256:" + DigestUtils.sha256Hex("logging: {level: WARN}\n") + "\n");
+            assertEquals("template: test\nlogging: {level: WARN}\n", inputStreamToString(provider.open(main.getPath())));
+            verify(reader, times(1)).openConfiguration(base.getPath());
+            verify(reader, never()).openConfiguration("~" + File.separator + "base.yaml");
+        } finally {
+            System.setProperty("user.home", home);
+        }
+
+        write(manifest, "*.yaml sha256:" + DigestUtils.sha256Hex("logging: {level: WARN}\n") + "\n");
+        try {
+            provider.open(main.getPath());
+            fail("Expected the digest on a glob pattern to be rejected");
+        } catch (IOException e) {
+            assertEquals("Manifest " + manifest.getPath() + " line 1: a glob pattern can't have a digest", e.getMessage());
+        }
+    }
+
+    @Test
+    public void testOpenUsesThePreloadedConfiguration() throws Exception {
+        when(reader.readConfiguration(eq("override.yaml"))).thenReturn("template: preloaded\n");
+        // @formatter:off
+        provider = MultipleConfigurationProvider.builder()
+                .setOverrideFiles(Arrays.asList("override.yaml"))
+                .setMultipleConfigurationMerger(MultipleConfigurationMerger.builder().setConfigurationReader(reader).build())
+                .build();
+        // @formatter:on
+
+        provider.preload("main.yaml");
+        String expected = "template: preloaded\nserver:\n  applicationConnectors:\n  - {type: http, port: 5309}\n";
+        assertEquals(expected, inputStreamToString(provider.open("main.yaml")));
+        verify(reader, times(1)).readConfiguration("main.yaml");
+
+        // Only the first open is preloaded.
+        assertEquals(expected, inputStreamToString(provider.open("main.yaml")));
+        verify(reader, times(2)).readConfiguration("main.yaml");
+
+        // A preload for some other path is discarded.
+        provider.preload("other.yaml");
+        assertEquals(expected, inputStreamToString(provider.open("main.yaml")));
+        verify(reader, times(3)).readConfiguration("main.yaml");
+    }
+
+    public static class TemplateConfiguration {
+        @NotNull
+        @Size(min = 1)
+        public String template;
+        public Map<String, Object> server;
+    }
+
+    @Test
+    public void testFactoryBindsTheMergedTree() throws Exception {
+        when(reader.readConfiguration(eq("override.yaml"))).thenReturn("server: {applicationConnectors: [{port: 8080}]}\n");
+        // @formatter:off
+        provider = MultipleConfigurationProvider.builder()
+                .setOverrideFiles(Arrays.asList("override.yaml"))
+                .setMultipleConfigurationMerger(MultipleConfigurationMerger.builder().setConfigurationReader(reader).build())
+                .build();
+        // @formatter:on
+        ConfigurationFactory<TemplateConfiguration> factory = new MultipleConfigurationFactoryFactory<TemplateConfiguration>()
+                .create(TemplateConfiguration.class, Validators.newValidator(), Jackson.newObjectMapper(), "dw");
+
+        TemplateConfiguration configuration = factory.build(provider, "main.yaml");
+        assertEquals("test", configuration.template);
+        assertEquals(Arrays.asList(ImmutableMap.of("type", "http", "port", 8080)),
+                configuration.server.get("applicationConnectors"));
+        // The yaml text is only produced on demand.
+        assertEquals("template: test\nserver:\n  applicationConnectors:\n  - {type: http, port: 8080}\n",
+                provider.getEffectiveConfig());
+
+        when(reader.readConfiguration(eq("override.yaml"))).thenReturn("template: ''\n");
+        try {
+            factory.build(provider, "main.yaml");
+            fail("Expected the configuration to be invalid");
+        } catch (ConfigurationValidationException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("template size must be between 1"));
+        }
+    }
+
+    @Test
+    public void testFactoryBindsTimestampsAsDropWizardReadsThem() throws Exception {
+        when(reader.readConfiguration(eq("override.yaml"))).thenReturn("template: 2017-01-01\n");
+        // @formatter:off
+        provider = MultipleConfigurationProvider.builder()
+                .setOverrideFiles(Arrays.asList("override.yaml"))
+                .setMultipleConfigurationMerger(MultipleConfigurationMerger.builder().setConfigurationReader(reader).build())
+                .build();
+        // @formatter:on
+
+        TemplateConfiguration direct = new MultipleConfigurationFactoryFactory<TemplateConfiguration>()
+                .create(TemplateConfiguration.class, Validators.newValidator(), Jackson.newObjectMapper(), "dw")
+                .build(provider, "main.yaml");
+        // DropWizard's own factory parses the yaml text instead.
+        TemplateConfiguration parsed = new DefaultConfigurationFactoryFactory<TemplateConfiguration>()
+                .create(TemplateConfiguration.class, Validators.newValidator(), Jackson.newObjectMapper(), "dw")
+                .build(provider, "main.yaml");
+        assertEquals("2017-01-01", direct.template);
+        assertEquals("2017-01-01", parsed.template);
+    }
 }
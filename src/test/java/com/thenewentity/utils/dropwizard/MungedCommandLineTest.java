@@ -3,6 +3,7 @@ package com.thenewentity.utils.dropwizard;
 import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
 
 import java.util.Arrays;
 import java.util.Collection;
@@ -60,6 +61,12 @@ public class MungedCommandLineTest {
 
         // Make sure that a command line with no arguments, but with defaults, works.
         testMunging(new String[] { "server" }, null, new String[] {}, new String[] { "server" });
+
+        // The configuration DropWizard opens is known only when it follows a '--'.
+        assertEquals("test.yaml", MungedCommandLine.builder().setOriginalArguments(new String[] { "server", "--", "test.yaml",
+                "override.yaml" }).build().getConfigurationPath());
+        assertNull(MungedCommandLine.builder().setOriginalArguments(new String[] { "server", "test.yaml" }).build()
+                .getConfigurationPath());
     }
 
 }
@@ -0,0 +1,149 @@
+package com.thenewentity.utils.dropwizard;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assume.assumeTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.File;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.nio.file.attribute.FileTime;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.yaml.snakeyaml.Yaml;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+
+public class ParsedLayerCacheTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    ParsedLayerCache cache;
+    Yaml parser;
+
+    @Before
+    public void beforeTest() throws Exception {
+        cache = ParsedLayerCache.builder().setDirectory(folder.newFolder("cache").toPath()).build();
+        parser = spy(new Yaml());
+    }
+
+    File writeLayer(String name, String content) throws Exception {
+        File file = folder.newFile(name);
+        Files.write(file.toPath(), content.getBytes(StandardCharsets.UTF_8));
+        // Old enough that size and mtime are trusted.
+        Files.setLastModifiedTime(file.toPath(), FileTime.fromMillis(System.currentTimeMillis() - 60000));
+        return file;
+    }
+
+    @Test
+    public void testUnchangedFileIsNeitherReadNorParsedAgain() throws Exception {
+        // The default reader streams layers to the parser.
+        String path = writeLayer("service.yaml", "template: test\nserver:\n  applicationConnectors:\n  - {type: http, port: 5309}\n")
+                .getPath();
+
+        Object first = cache.load(path, new DefaultConfigurationReader(), parser);
+
+        ConfigurationReader reader = mock(ConfigurationReader.class);
+        Object second = cache.load(path, reader, parser);
+
+        assertEquals(first, second);
+        verify(reader, never()).readConfiguration(anyString());
+        verify(parser, times(1)).load(any(InputStream.class));
+    }
+
+    @Test
+    public void testChangedFileIsParsedAgain() throws Exception {
+        File file = writeLayer("service.yaml", "template: test\n");
+        cache.load(file.getPath(), new DefaultConfigurationReader(), parser);
+
+        Files.write(file.toPath(), "template: test2\n".getBytes(StandardCharsets.UTF_8));
+        Files.setLastModifiedTime(file.toPath(), FileTime.fromMillis(System.currentTimeMillis() - 30000));
+
+        assertEquals(Collections.singletonMap("template", "test2"), cache.load(file.getPath(), new DefaultConfigurationReader(), parser));
+        verify(parser, times(2)).load(any(InputStream.class));
+    }
+
+    @Test
+    public void testIdenticalLayersAtDifferentPathsAreParsedOnce() throws Exception {
+        ConfigurationReader reader = mock(ConfigurationReader.class);
+        when(reader.readConfiguration("a.yaml")).thenReturn("logging:\n  level: DEBUG\n");
+        when(reader.readConfiguration("b.yaml")).thenReturn("logging:\n  level: DEBUG\n");
+
+        Object a = cache.load("a.yaml", reader, parser);
+        Object b = cache.load("b.yaml", reader, parser);
+
+        assertEquals(a, b);
+        verify(parser, times(1)).load(anyString());
+    }
+
+    @Test
+    public void testLayersWithNonStringKeysAreNotCached() throws Exception {
+        ConfigurationReader reader = mock(ConfigurationReader.class);
+        when(reader.readConfiguration("ports.yaml")).thenReturn("5309: jenny\n");
+
+        Map<Object, Object> expected = new LinkedHashMap<>();
+        expected.put(5309, "jenny");
+        assertEquals(expected, cache.load("ports.yaml", reader, parser));
+        assertEquals(expected, cache.load("ports.yaml", reader, parser));
+        verify(parser, times(2)).load(anyString());
+    }
+
+    @Test
+    public void testNewCacheDirectoryIsPrivate() throws Exception {
+        assumeTrue(FileSystems.getDefault().supportedFileAttributeViews().contains("posix"));
+        Path directory = folder.getRoot().toPath().resolve("private");
+        cache = ParsedLayerCache.builder().setDirectory(directory).build();
+
+        cache.load(writeLayer("service.yaml", "template: test\n").getPath(), new DefaultConfigurationReader(), parser);
+        assertEquals(PosixFilePermissions.fromString("rwx------"), Files.getPosixFilePermissions(directory));
+    }
+
+    @Test
+    public void testCacheDirectoryOthersCanWriteIsNotUsed() throws Exception {
+        assumeTrue(FileSystems.getDefault().supportedFileAttributeViews().contains("posix"));
+        Path directory = folder.newFolder("shared").toPath();
+        Files.setPosixFilePermissions(directory, PosixFilePermissions.fromString("rwxrwxrwx"));
+        cache = ParsedLayerCache.builder().setDirectory(directory).build();
+        String path = writeLayer("service.yaml", "template: test\n").getPath();
+
+        cache.load(path, new DefaultConfigurationReader(), parser);
+        cache.load(path, new DefaultConfigurationReader(), parser);
+        verify(parser, times(2)).load(any(InputStream.class));
+        assertEquals(0, directory.toFile().list().length);
+    }
+
+    @Test
+    public void testTamperedEntryIsIgnored() throws Exception {
+        ConfigurationReader reader = mock(ConfigurationReader.class);
+        when(reader.readConfiguration("service.yaml")).thenReturn("template: test\n");
+        cache.load("service.yaml", reader, parser);
+
+        // Replace the entry with a well-formed one which says something else.
+        File[] entries = cache.getDirectory().resolve("layers").toFile().listFiles();
+        assertEquals(1, entries.length);
+        Files.write(entries[0].toPath(), new ObjectMapper(new SmileFactory()).writeValueAsBytes(Collections.singletonMap(
+                "template", "planted")));
+
+        assertEquals(Collections.singletonMap("template", "test"), cache.load("service.yaml", reader, parser));
+        verify(parser, times(2)).load(anyString());
+    }
+}